@@ -0,0 +1,109 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Measures downloading many small files one session per file against downloading them as batches with --batch
+ * Starts the Server in its own process, then downloads a directory of small files by listing every file,
+ * one session per file with and without --parallel, and as a batch, once listing every file and once listing only
+ * the directory. Runs over loopback and over a link with the given delay, where the round trips a session
+ * spends on its handshake and close dominate the download of a small file.
+ * For each download it reports the time taken, the files and megabytes per second, and whether every file arrived intact.
+ * Compile the Client, Server and Benchmark sources into one directory and run from there:
+ * java -cp out BatchBenchmark [fileCount] [fileSizeBytes] [delayMs]
+ */
+public class BatchBenchmark {
+    private static final int SERVER_PORT = 50999;
+    private static final String DIRECTORY = "files";
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int fileSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int delay = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        // Create separate server and client directories, with a directory of random files on the server
+        Path workDir = Files.createTempDirectory("udp-batch-benchmark");
+        Path serverDir = Files.createDirectories(workDir.resolve("server"));
+        Path clientDir = Files.createDirectories(workDir.resolve("client"));
+        Files.createDirectories(serverDir.resolve(DIRECTORY));
+        Random random = new Random(42);
+        List<byte[]> contents = new ArrayList<>();
+        StringBuilder fileList = new StringBuilder();
+        for (int i = 0; i < fileCount; i++) {
+            byte[] content = new byte[fileSize];
+            random.nextBytes(content);
+            contents.add(content);
+            Files.write(serverDir.resolve(fileName(i)), content);
+            fileList.append(fileName(i)).append('\n');
+        }
+        Files.write(clientDir.resolve("files.txt"), fileList.toString().getBytes());
+        Files.write(clientDir.resolve("directory.txt"), (DIRECTORY + "\n").getBytes());
+
+        Process server = ThroughputBenchmark.startProcess(serverDir, "Server", String.valueOf(SERVER_PORT));
+        try {
+            Thread.sleep(1000);
+            System.out.println(fileCount + " files of " + fileSize + " bytes");
+            System.out.printf("%-10s %-26s %-10s %-10s %-10s %s%n", "Link", "Download", "Seconds", "Files/s", "MB/s", "Result");
+            String[][] downloads = {
+                    {"files.txt"},
+                    {"files.txt", "--parallel", "8"},
+                    {"files.txt", "--batch"},
+                    {"directory.txt", "--batch"},
+            };
+            for (int linkDelay : new int[] {0, delay}) {
+                for (String[] download : downloads) {
+                    // Downloads one session per file write into the directory, they do not create it
+                    deleteDirectory(clientDir.resolve(DIRECTORY));
+                    Files.createDirectories(clientDir.resolve(DIRECTORY));
+
+                    List<String> clientArgs = new ArrayList<>(List.of("localhost", String.valueOf(SERVER_PORT)));
+                    clientArgs.addAll(Arrays.asList(download));
+                    if (linkDelay > 0) {
+                        clientArgs.addAll(List.of("--delay", String.valueOf(linkDelay)));
+                    }
+                    long start = System.nanoTime();
+                    Process client = ThroughputBenchmark.startProcess(clientDir, "Client", clientArgs.toArray(new String[0]));
+                    client.waitFor();
+                    double seconds = (System.nanoTime() - start) / 1e9;
+
+                    boolean correct = true;
+                    for (int i = 0; i < fileCount && correct; i++) {
+                        Path file = clientDir.resolve(fileName(i));
+                        correct = Files.exists(file) && Arrays.equals(contents.get(i), Files.readAllBytes(file));
+                    }
+                    System.out.printf("%-10s %-26s %-10.3f %-10.1f %-10.2f %s%n", linkDelay > 0 ? linkDelay + "ms" : "loopback",
+                            String.join(" ", download), seconds, fileCount / seconds, (double) fileCount * fileSize / 1024 / 1024 / seconds,
+                            correct ? "OK" : "MISMATCH");
+                }
+            }
+        } finally {
+            server.destroy();
+        }
+    }
+
+    /**
+     * @return The name of a file of the benchmark, relative to the server and client directories
+     */
+    private static String fileName(int i) {
+        return DIRECTORY + "/file" + i + ".bin";
+    }
+
+    /**
+     * Deletes a directory and everything under it, if it exists
+     */
+    private static void deleteDirectory(Path directory) throws Exception {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures download throughput of the Client against a local Server over loopback for a range of chunk sizes
+ * Starts the Server in its own process, then downloads the same file once per chunk size negotiated with --chunk-size
+ * and reports the time taken, the number of chunks and the throughput.
+ * Compile the Client, Server and Benchmark sources into one directory and run from there:
+ * java -cp out ChunkSizeBenchmark [fileSizeBytes] [chunkSizes...]
+ */
+public class ChunkSizeBenchmark {
+    private static final int SERVER_PORT = 50999;
+
+    public static void main(String[] args) throws Exception {
+        long fileSize = args.length > 0 ? Long.parseLong(args[0]) : 20_000_000;
+        List<Integer> chunkSizes = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            chunkSizes.add(Integer.parseInt(args[i]));
+        }
+        if (chunkSizes.isEmpty()) {
+            chunkSizes.addAll(Arrays.asList(512, 1400, 4096, 8972, 16384, 32768, 65490));
+        }
+
+        // Create separate server and client directories with a random file to transfer
+        Path workDir = Files.createTempDirectory("udp-chunk-benchmark");
+        Path serverDir = Files.createDirectories(workDir.resolve("server"));
+        Path clientDir = Files.createDirectories(workDir.resolve("client"));
+        byte[] content = new byte[(int) fileSize];
+        new Random(42).nextBytes(content);
+        Files.write(serverDir.resolve("benchmark.bin"), content);
+        Files.write(clientDir.resolve("files.txt"), "benchmark.bin\n".getBytes());
+
+        Process server = ThroughputBenchmark.startProcess(serverDir, "Server", String.valueOf(SERVER_PORT));
+        try {
+            Thread.sleep(1000);
+            System.out.println("File size: " + fileSize + " bytes over loopback");
+            System.out.printf("%-12s %-10s %-12s %-12s %s%n", "Chunk size", "Chunks", "Seconds", "MB/s", "Result");
+            for (int chunkSize : chunkSizes) {
+                Files.deleteIfExists(clientDir.resolve("benchmark.bin"));
+                long start = System.nanoTime();
+                Process client = ThroughputBenchmark.startProcess(clientDir, "Client", "localhost", String.valueOf(SERVER_PORT),
+                        "files.txt", "--chunk-size", String.valueOf(chunkSize));
+                client.waitFor();
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                boolean correct = Files.exists(clientDir.resolve("benchmark.bin")) &&
+                        Arrays.equals(content, Files.readAllBytes(clientDir.resolve("benchmark.bin")));
+                System.out.printf("%-12d %-10d %-12.3f %-12.2f %s%n", chunkSize, (fileSize + chunkSize - 1) / chunkSize, seconds,
+                        fileSize / 1024.0 / 1024.0 / seconds, correct ? "OK" : "MISMATCH");
+            }
+        } finally {
+            server.destroy();
+        }
+    }
+}
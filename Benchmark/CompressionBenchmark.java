@@ -0,0 +1,129 @@
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures what negotiating compression with --compress does to download throughput and to the Server's CPU per byte
+ * Starts the Server in its own process with the chunk cache off, so every chunk is compressed as it is served,
+ * then downloads a text file that compresses and a random file that does not, with and without --compress,
+ * over loopback and over a link limited to the given bandwidth with --bandwidth.
+ * For each download it reports the throughput, the bytes the chunks took on the wire from the Server's METRICS,
+ * and the CPU time the Server process used per file byte.
+ * One download runs first without being reported, so the Server's JIT compilation is not counted against the first row.
+ * Compile the Client, Server and Benchmark sources into one directory and run from there:
+ * java -cp out CompressionBenchmark [fileSizeBytes] [bandwidthKbps] [chunkSize]
+ */
+public class CompressionBenchmark {
+    private static final int SERVER_PORT = 50999;
+
+    public static void main(String[] args) throws Exception {
+        int fileSize = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int bandwidth = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int chunkSize = args.length > 2 ? Integer.parseInt(args[2]) : 8192;
+
+        // Create separate server and client directories with a text file and a random file to transfer
+        Path workDir = Files.createTempDirectory("udp-compression-benchmark");
+        Path serverDir = Files.createDirectories(workDir.resolve("server"));
+        Path clientDir = Files.createDirectories(workDir.resolve("client"));
+        byte[] text = textContent(fileSize, new Random(42));
+        byte[] random = new byte[fileSize];
+        new Random(42).nextBytes(random);
+        Files.write(serverDir.resolve("text.txt"), text);
+        Files.write(serverDir.resolve("random.bin"), random);
+
+        Process server = ThroughputBenchmark.startProcess(serverDir, "Server", String.valueOf(SERVER_PORT), "--cache-size", "0");
+        try (DatagramSocket socket = new DatagramSocket()) {
+            Thread.sleep(1000);
+            Files.write(clientDir.resolve("files.txt"), "text.txt\n".getBytes());
+            ThroughputBenchmark.startProcess(clientDir, "Client", "localhost", String.valueOf(SERVER_PORT), "files.txt",
+                    "--chunk-size", String.valueOf(chunkSize), "--compress").waitFor();
+            System.out.println("File size: " + fileSize + " bytes, chunk size: " + chunkSize + " bytes, limited link: " + bandwidth + " kbit/s");
+            System.out.printf("%-8s %-12s %-10s %-10s %-10s %-10s %-8s %-16s %s%n",
+                    "Content", "Link", "Compress", "Seconds", "MB/s", "Wire MB", "Ratio", "Server CPU ns/B", "Result");
+            for (String fileName : new String[] {"text.txt", "random.bin"}) {
+                byte[] content = fileName.equals("text.txt") ? text : random;
+                Files.write(clientDir.resolve("files.txt"), (fileName + "\n").getBytes());
+                for (int linkBandwidth : new int[] {0, bandwidth}) {
+                    for (boolean compress : new boolean[] {false, true}) {
+                        Files.deleteIfExists(clientDir.resolve(fileName));
+                        long[] before = wireBytes(socket);
+                        Duration cpuBefore = server.toHandle().info().totalCpuDuration().orElse(Duration.ZERO);
+
+                        String[] clientArgs = {"localhost", String.valueOf(SERVER_PORT), "files.txt",
+                                "--chunk-size", String.valueOf(chunkSize), "--bandwidth", String.valueOf(linkBandwidth)};
+                        if (compress) {
+                            clientArgs = Arrays.copyOf(clientArgs, clientArgs.length + 1);
+                            clientArgs[clientArgs.length - 1] = "--compress";
+                        }
+                        long start = System.nanoTime();
+                        Process client = ThroughputBenchmark.startProcess(clientDir, "Client", clientArgs);
+                        client.waitFor();
+                        double seconds = (System.nanoTime() - start) / 1e9;
+
+                        Duration cpu = server.toHandle().info().totalCpuDuration().orElse(Duration.ZERO).minus(cpuBefore);
+                        long[] after = wireBytes(socket);
+                        long served = after[0] - before[0];
+                        long wire = served - (after[1] - before[1]) + (after[2] - before[2]);
+                        boolean correct = Files.exists(clientDir.resolve(fileName)) &&
+                                Arrays.equals(content, Files.readAllBytes(clientDir.resolve(fileName)));
+                        System.out.printf("%-8s %-12s %-10s %-10.3f %-10.2f %-10.2f %-8.2f %-16.1f %s%n",
+                                fileName.equals("text.txt") ? "text" : "random",
+                                linkBandwidth > 0 ? linkBandwidth + "kbit/s" : "loopback", compress ? "on" : "off",
+                                seconds, fileSize / 1024.0 / 1024.0 / seconds, wire / 1024.0 / 1024.0,
+                                served > 0 ? (double) served / wire : 0, (double) cpu.toNanos() / fileSize,
+                                correct ? "OK" : "MISMATCH");
+                    }
+                }
+            }
+        } finally {
+            server.destroy();
+        }
+    }
+
+    /**
+     * Builds text from lines of words drawn from a small vocabulary, compressing about as well as source code or logs
+     *
+     * @param size The number of bytes of text
+     * @param random The source of the words
+     * @return The text
+     */
+    private static byte[] textContent(int size, Random random) {
+        String[] words = {"the", "server", "session", "chunk", "request", "response", "file", "client", "offset", "length",
+                "DOWNLOAD", "OK", "SIZE", "PORT", "return", "private", "static", "final", "int", "long", "ByteBuffer"};
+        StringBuilder text = new StringBuilder(size + 64);
+        while (text.length() < size) {
+            text.append(words[random.nextInt(words.length)]);
+            text.append(random.nextInt(12) == 0 ? '\n' : ' ');
+            if (random.nextInt(20) == 0) {
+                text.append(random.nextInt(1_000_000));
+            }
+        }
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.US_ASCII), size);
+    }
+
+    /**
+     * Reads the Server's totals of bytes served and of bytes in and out of compression from METRICS
+     *
+     * @return The file bytes served, the file bytes of the chunks sent compressed and the bytes they were compressed to
+     */
+    private static long[] wireBytes(DatagramSocket socket) throws Exception {
+        String response = LoadTest.request(socket, "METRICS".getBytes(), InetAddress.getLoopbackAddress(), SERVER_PORT);
+        String[] metrics = response == null ? new String[0] : response.split("\\s+");
+        long[] totals = new long[3];
+        for (int i = 0; i < metrics.length - 1; i++) {
+            if (metrics[i].equals("SERVED") && metrics[i + 1].equals("BYTES")) {
+                totals[0] = Long.parseLong(metrics[i + 2]);
+            } else if (metrics[i].equals("BYTES_IN")) {
+                totals[1] = Long.parseLong(metrics[i + 1]);
+            } else if (metrics[i].equals("BYTES_OUT")) {
+                totals[2] = Long.parseLong(metrics[i + 1]);
+            }
+        }
+        return totals;
+    }
+}
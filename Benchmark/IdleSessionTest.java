@@ -0,0 +1,112 @@
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the Server gets back its full capacity after clients abandon their sessions without a CLOSE.
+ * Starts each server mode with a short --idle-timeout and opens more sessions than the handler port pool holds,
+ * never sending them a request, as if every client had crashed. After the idle timeout it reads the server's
+ * METRICS, then opens the same number of sessions again. With the reaper, the second round opens as many
+ * sessions as the first, and no port or session is left in use.
+ * Compile the Client, Server and Benchmark sources into one directory and run from there:
+ * java -cp out IdleSessionTest [sessions] [idleTimeoutSeconds]
+ */
+public class IdleSessionTest {
+    private static final int SERVER_PORT = 50999;
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 1200;
+        int idleTimeout = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+        Path serverDir = Files.createTempDirectory("udp-idle-test");
+        Files.write(serverDir.resolve("idle.bin"), new byte[64 * 1024]);
+
+        System.out.printf("%-20s %-10s %-10s %-10s %-10s %-12s %-12s %s%n",
+                "Mode", "Requested", "Opened", "Rejected", "Reaped", "Ports used", "Active", "Reopened");
+        run("thread-per-handler", serverDir, sessions, idleTimeout);
+        run("nio (4 threads)", serverDir, sessions, idleTimeout, "--nio", "4");
+
+        Files.deleteIfExists(serverDir.resolve("idle.bin"));
+        Files.deleteIfExists(serverDir);
+    }
+
+    /**
+     * Starts a server with the given options, abandons a round of sessions, waits for the reaper,
+     * opens a second round and prints one row of results
+     *
+     * @param mode The name of the server mode for the results
+     * @param serverDir The directory holding the file to download
+     * @param sessions The number of sessions to open in each round
+     * @param idleTimeout The server's idle timeout in seconds
+     * @param serverOptions Options passed to the server after its port and idle timeout
+     */
+    private static void run(String mode, Path serverDir, int sessions, int idleTimeout, String... serverOptions) throws Exception {
+        String[] serverArgs = new String[serverOptions.length + 3];
+        serverArgs[0] = String.valueOf(SERVER_PORT);
+        serverArgs[1] = "--idle-timeout";
+        serverArgs[2] = String.valueOf(idleTimeout);
+        System.arraycopy(serverOptions, 0, serverArgs, 3, serverOptions.length);
+        Process server = ThroughputBenchmark.startProcess(serverDir, "Server", serverArgs);
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            Thread.sleep(1000);
+            InetAddress serverAddress = InetAddress.getLoopbackAddress();
+            socket.setReceiveBufferSize(4 * 1024 * 1024);
+
+            // Open every session and abandon it, as a client that crashed would
+            List<int[]> abandoned = openSessions(socket, serverAddress, sessions);
+
+            // Give the reaper the idle timeout and a few of its checks to end every abandoned session
+            Thread.sleep(idleTimeout * 1000L + 2000);
+            String[] metrics = LoadTest.request(socket, "METRICS".getBytes(), serverAddress, SERVER_PORT).split("\\s+");
+
+            // Every port and session should be free again, so a second round opens as many sessions as the first
+            List<int[]> reopened = openSessions(socket, serverAddress, sessions);
+            System.out.printf("%-20s %-10d %-10d %-10d %-10s %-12s %-12s %d%n", mode, sessions, abandoned.size(),
+                    sessions - abandoned.size(), metricAfter(metrics, "REAPED"), metricAfter(metrics, "IN_USE"),
+                    metricAfter(metrics, "ACTIVE"), reopened.size());
+
+            // Close the second round so the handler threads finish before the server is stopped
+            for (int[] session : reopened) {
+                byte[] close = ByteBuffer.allocate(5).put((byte) 3).putInt(session[1]).array();
+                LoadTest.request(socket, close, serverAddress, session[0]);
+            }
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    /**
+     * Opens binary sessions one after another without sending them any request
+     *
+     * @return The handler port and session id of every session the server accepted
+     */
+    private static List<int[]> openSessions(DatagramSocket socket, InetAddress serverAddress, int sessions) throws Exception {
+        List<int[]> openSessions = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            String response = LoadTest.request(socket, "DOWNLOAD idle.bin MODE BINARY".getBytes(), serverAddress, SERVER_PORT);
+            String[] responseParts = response == null ? new String[0] : response.split(" ");
+            if (responseParts.length >= 10 && responseParts[0].equals("OK")) {
+                openSessions.add(new int[] {Integer.parseInt(responseParts[5]), Integer.parseInt(responseParts[responseParts.length - 1])});
+            }
+        }
+        return openSessions;
+    }
+
+    /**
+     * @return The value following a name in the METRICS response, or n/a if the name is missing
+     */
+    private static String metricAfter(String[] metrics, String name) {
+        for (int i = 0; i < metrics.length - 1; i++) {
+            if (metrics[i].equals(name)) {
+                return metrics[i + 1];
+            }
+        }
+        return "n/a";
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares how many concurrent download sessions the thread-per-handler Server and the
+ * event loop Server (--nio) can hold open, and the memory and threads each uses to do so.
+ * Opens the sessions one after another without closing them, checks each one still serves a chunk,
+ * then reads the server process's resident memory and thread count from /proc (Linux only).
+ * Compile the Client, Server and Benchmark sources into one directory and run from there:
+ * java -cp out LoadTest [sessions] [nioThreads]
+ */
+public class LoadTest {
+    private static final int SERVER_PORT = 50999;
+    private static final int TIMEOUT = 1000;
+    private static final int MAX_RETRIES = 3;
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int nioThreads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        Path serverDir = Files.createTempDirectory("udp-load-test");
+        Files.write(serverDir.resolve("load.bin"), new byte[64 * 1024]);
+
+        System.out.printf("%-20s %-10s %-10s %-10s %-10s %-10s %s%n",
+                "Mode", "Requested", "Opened", "Rejected", "Serving", "RSS (MB)", "Threads");
+        run("thread-per-handler", serverDir, sessions);
+        run("nio (" + nioThreads + " threads)", serverDir, sessions, "--nio", String.valueOf(nioThreads));
+    }
+
+    /**
+     * Starts a server with the given options, opens the sessions and prints one row of results
+     *
+     * @param mode The name of the server mode for the results
+     * @param serverDir The directory holding the file to download
+     * @param sessions The number of sessions to open
+     * @param serverOptions Options passed to the server after its port
+     */
+    private static void run(String mode, Path serverDir, int sessions, String... serverOptions) throws Exception {
+        String[] serverArgs = new String[serverOptions.length + 1];
+        serverArgs[0] = String.valueOf(SERVER_PORT);
+        System.arraycopy(serverOptions, 0, serverArgs, 1, serverOptions.length);
+        Process server = ThroughputBenchmark.startProcess(serverDir, "Server", serverArgs);
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            Thread.sleep(1000);
+            InetAddress serverAddress = InetAddress.getLoopbackAddress();
+            socket.setReceiveBufferSize(4 * 1024 * 1024);
+
+            // Open every session without closing any of them, keeping the handler port and session id of each
+            List<int[]> openSessions = new ArrayList<>();
+            int rejected = 0;
+            for (int i = 0; i < sessions; i++) {
+                String response = request(socket, "DOWNLOAD load.bin MODE BINARY".getBytes(), serverAddress, SERVER_PORT);
+                String[] responseParts = response == null ? new String[0] : response.split(" ");
+                if (responseParts.length >= 10 && responseParts[0].equals("OK")) {
+                    openSessions.add(new int[] {Integer.parseInt(responseParts[5]), Integer.parseInt(responseParts[responseParts.length - 1])});
+                } else {
+                    rejected++;
+                }
+            }
+
+            // Check that every open session still serves a chunk
+            int serving = 0;
+            for (int[] session : openSessions) {
+                byte[] get = ByteBuffer.allocate(17).put((byte) 1).putInt(session[1]).putLong(0).putInt(1400).array();
+                String response = request(socket, get, serverAddress, session[0]);
+                if (response != null && response.charAt(0) == 2) {
+                    serving++;
+                }
+            }
+
+            String[] usage = processUsage(server.pid());
+            System.out.printf("%-20s %-10d %-10d %-10d %-10d %-10s %s%n",
+                    mode, sessions, openSessions.size(), rejected, serving, usage[0], usage[1]);
+
+            // Close the sessions so the handler threads finish before the server is stopped
+            for (int[] session : openSessions) {
+                byte[] close = ByteBuffer.allocate(5).put((byte) 3).putInt(session[1]).array();
+                request(socket, close, serverAddress, session[0]);
+            }
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    /**
+     * Sends a request and waits for the response from the same port, retrying on timeout
+     *
+     * @return The response, or null if none arrived
+     */
+    static String request(DatagramSocket socket, byte[] sendData, InetAddress serverAddress, int port) throws IOException {
+        byte[] receiveBuffer = new byte[2048];
+        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+            socket.send(new DatagramPacket(sendData, sendData.length, serverAddress, port));
+            socket.setSoTimeout(TIMEOUT);
+            try {
+                while (true) {
+                    DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+                    socket.receive(receivePacket);
+                    // Skip late responses to earlier requests
+                    if (receivePacket.getPort() == port && (receiveBuffer[0] != 2 || sendData[0] == 1)) {
+                        return new String(receiveBuffer, 0, receivePacket.getLength(), "ISO-8859-1");
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // Retry the request
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the resident memory and thread count of a process from /proc
+     *
+     * @param pid The process id
+     * @return The resident memory in MB and the thread count, or n/a if they cannot be read
+     */
+    private static String[] processUsage(long pid) {
+        String[] usage = {"n/a", "n/a"};
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/" + pid + "/status"))) {
+                String[] fields = line.split("\\s+");
+                if (fields[0].equals("VmRSS:")) {
+                    usage[0] = String.valueOf(Long.parseLong(fields[1]) / 1024);
+                } else if (fields[0].equals("Threads:")) {
+                    usage[1] = fields[1];
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not available on this platform
+        }
+        return usage;
+    }
+}
@@ -0,0 +1,61 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures download throughput of the Client against a local Server under different simulated link conditions
+ * Starts the Server in its own process, then downloads the same file once for every combination of
+ * delay, jitter and loss and reports the time taken and the throughput.
+ * The Client adapts its retransmission timeout and congestion window to each link, --window only caps the window.
+ * Compile the Client, Server and Benchmark sources into one directory and run from there:
+ * java -cp out NetworkConditionsBenchmark [fileSizeBytes] [maxWindow]
+ */
+public class NetworkConditionsBenchmark {
+    private static final int SERVER_PORT = 50999;
+    private static final int[] DELAYS = {1, 10, 50};
+    private static final int[] JITTERS = {0, 10};
+    private static final int[] LOSS_PERCENTAGES = {0, 1, 5};
+
+    public static void main(String[] args) throws Exception {
+        long fileSize = args.length > 0 ? Long.parseLong(args[0]) : 500_000;
+        int maxWindow = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+        // Create separate server and client directories with a random file to transfer
+        Path workDir = Files.createTempDirectory("udp-network-benchmark");
+        Path serverDir = Files.createDirectories(workDir.resolve("server"));
+        Path clientDir = Files.createDirectories(workDir.resolve("client"));
+        byte[] content = new byte[(int) fileSize];
+        new Random(42).nextBytes(content);
+        Files.write(serverDir.resolve("benchmark.bin"), content);
+        Files.write(clientDir.resolve("files.txt"), "benchmark.bin\n".getBytes());
+
+        Process server = ThroughputBenchmark.startProcess(serverDir, "Server", String.valueOf(SERVER_PORT));
+        try {
+            Thread.sleep(1000);
+            System.out.println("File size: " + fileSize + " bytes, maximum window: " + maxWindow);
+            System.out.printf("%-10s %-10s %-8s %-12s %-12s %s%n", "Delay ms", "Jitter ms", "Loss %", "Seconds", "KB/s", "Result");
+            for (int delay : DELAYS) {
+                for (int jitter : JITTERS) {
+                    for (int loss : LOSS_PERCENTAGES) {
+                        Files.deleteIfExists(clientDir.resolve("benchmark.bin"));
+                        long start = System.nanoTime();
+                        Process client = ThroughputBenchmark.startProcess(clientDir, "Client", "localhost",
+                                String.valueOf(SERVER_PORT), "files.txt", "--window", String.valueOf(maxWindow),
+                                "--delay", String.valueOf(delay), "--jitter", String.valueOf(jitter),
+                                "--loss", String.valueOf(loss));
+                        client.waitFor();
+                        double seconds = (System.nanoTime() - start) / 1e9;
+
+                        boolean correct = Files.exists(clientDir.resolve("benchmark.bin")) &&
+                                Arrays.equals(content, Files.readAllBytes(clientDir.resolve("benchmark.bin")));
+                        System.out.printf("%-10d %-10d %-8d %-12.3f %-12.1f %s%n", delay, jitter, loss, seconds,
+                                fileSize / 1024.0 / seconds, correct ? "OK" : "MISMATCH");
+                    }
+                }
+            }
+        } finally {
+            server.destroy();
+        }
+    }
+}
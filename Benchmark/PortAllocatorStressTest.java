@@ -0,0 +1,200 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress test of the Server's PortAllocator under many threads acquiring and releasing ports at once.
+ * Each thread plays a stream of sessions: it acquires a port, holds a few ports at a time so the pool
+ * can run dry, and releases them in a random order. Every port handed out is claimed in a shared
+ * ownership table, so a port handed to two sessions at once is detected the moment it happens.
+ * Once every thread has finished, the allocator must report the whole pool free, and draining it must
+ * return every port exactly once before it runs out.
+ * The same workload is then run against a pool built the way the Server used to allocate ports,
+ * a synchronized ArrayList removing a random index, to compare the throughput of the two.
+ * Compile the Client, Server and Benchmark sources into one directory and run from there:
+ * java -cp out PortAllocatorStressTest [threads] [sessionsPerThread]
+ */
+public class PortAllocatorStressTest {
+    private static final int MIN_PORT = 50000;
+    private static final int MAX_PORT = 51000;
+    private static final int SERVER_PORT = 50500;
+    // The most ports a thread holds at once, enough for the threads together to exhaust the pool
+    private static final int MAX_HELD_PER_THREAD = 32;
+
+    /**
+     * The operations the workload needs from a port pool
+     */
+    interface PortPool {
+        int acquire();
+
+        boolean release(int port);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int sessionsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+
+        System.out.printf("%-24s %-10s %-12s %-12s %-12s %-12s %s%n",
+                "Pool", "Threads", "Sessions", "Exhausted", "Duplicates", "Ops/s", "Result");
+        PortAllocator allocator = new PortAllocator(MIN_PORT, MAX_PORT, Set.of(SERVER_PORT), new Random(42));
+        boolean passed = run("PortAllocator", new PortPool() {
+            @Override
+            public int acquire() {
+                return allocator.acquire();
+            }
+
+            @Override
+            public boolean release(int port) {
+                return allocator.release(port);
+            }
+        }, threads, sessionsPerThread) && checkNothingLeaked(allocator);
+        run("synchronized ArrayList", new SynchronizedPortPool(), threads, sessionsPerThread);
+
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the workload on a pool and prints one row of results
+     *
+     * @param name The name of the pool for the results
+     * @param pool The pool to stress
+     * @param threads The number of threads acquiring and releasing at once
+     * @param sessionsPerThread The number of ports each thread acquires and releases
+     * @return True if no port was handed out twice and every release succeeded
+     */
+    private static boolean run(String name, PortPool pool, int threads, int sessionsPerThread) throws InterruptedException {
+        AtomicIntegerArray owners = new AtomicIntegerArray(MAX_PORT - MIN_PORT + 1);
+        AtomicLong exhausted = new AtomicLong();
+        AtomicLong duplicates = new AtomicLong();
+        AtomicLong failedReleases = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            int owner = t + 1;
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                ArrayDeque<Integer> held = new ArrayDeque<>();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                int sessions = 0;
+                while (sessions < sessionsPerThread || !held.isEmpty()) {
+                    // Acquire until this thread holds a random number of ports, then release one
+                    if (sessions < sessionsPerThread && held.size() < random.nextInt(1, MAX_HELD_PER_THREAD + 1)) {
+                        int port = pool.acquire();
+                        if (port == -1) {
+                            exhausted.incrementAndGet();
+                            if (held.isEmpty()) {
+                                Thread.yield();
+                                continue;
+                            }
+                        } else {
+                            sessions++;
+                            if (!owners.compareAndSet(port - MIN_PORT, 0, owner)) {
+                                duplicates.incrementAndGet();
+                            }
+                            held.add(port);
+                            continue;
+                        }
+                    }
+                    // Release from either end, so ports are returned out of order
+                    int port = random.nextBoolean() ? held.pollFirst() : held.pollLast();
+                    if (!owners.compareAndSet(port - MIN_PORT, owner, 0)) {
+                        duplicates.incrementAndGet();
+                    }
+                    if (!pool.release(port)) {
+                        failedReleases.incrementAndGet();
+                    }
+                }
+            }, "stress-" + owner);
+            worker.start();
+            workers.add(worker);
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        long operations = 2L * threads * sessionsPerThread;
+        boolean passed = duplicates.get() == 0 && failedReleases.get() == 0;
+        System.out.printf("%-24s %-10d %-12d %-12d %-12d %-12.0f %s%n", name, threads, (long) threads * sessionsPerThread,
+                exhausted.get(), duplicates.get(), operations / seconds,
+                passed ? "OK" : "FAILED (" + failedReleases.get() + " failed releases)");
+        return passed;
+    }
+
+    /**
+     * Checks that every port came back to the allocator and that a release of a free port is refused
+     *
+     * @param allocator The allocator, with no port held
+     * @return True if the allocator returned every port exactly once
+     */
+    private static boolean checkNothingLeaked(PortAllocator allocator) {
+        boolean passed = allocator.available() == allocator.size();
+        Set<Integer> drained = new HashSet<>();
+        int port;
+        while ((port = allocator.acquire()) != -1) {
+            passed &= drained.add(port) && port != SERVER_PORT;
+        }
+        passed &= drained.size() == MAX_PORT - MIN_PORT;
+        for (int drainedPort : drained) {
+            passed &= allocator.release(drainedPort) && !allocator.release(drainedPort);
+        }
+        passed &= !allocator.release(SERVER_PORT) && !allocator.release(MIN_PORT - 1);
+        System.out.println("PortAllocator after the run: " + allocator.available() + " of " + allocator.size()
+                + " ports free, " + drained.size() + " distinct ports drained: " + (passed ? "OK" : "LEAKED"));
+        return passed;
+    }
+
+    /**
+     * SynchronizedPortPool class allocating ports the way the Server used to,
+     * a random index removed from an ArrayList and a HashSet of used ports, with every call synchronized
+     */
+    static class SynchronizedPortPool implements PortPool {
+        private final Set<Integer> usedPorts = new HashSet<>();
+        private final ArrayList<Integer> availablePorts = new ArrayList<>();
+        private final Random rand = new Random(42);
+
+        SynchronizedPortPool() {
+            for (int port = MIN_PORT; port <= MAX_PORT; port++) {
+                if (port != SERVER_PORT) {
+                    availablePorts.add(port);
+                }
+            }
+        }
+
+        @Override
+        public synchronized int acquire() {
+            if (availablePorts.isEmpty()) {
+                return -1;
+            }
+            int port = availablePorts.remove(rand.nextInt(availablePorts.size()));
+            usedPorts.add(port);
+            return port;
+        }
+
+        @Override
+        public synchronized boolean release(int port) {
+            if (usedPorts.remove(port)) {
+                availablePorts.add(port);
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+/**
+ * Measures what the server's read-ahead does to downloading a large file that is not in the page cache
+ * Starts the Server in its own process with the chunk cache off for every download, for each server mode, read path
+ * and with read-ahead off and at 1 MB per session, and downloads one large file. Before every cold download the page cache is dropped, which
+ * needs root, so every chunk the server sends has to come from the disk. A warm download follows each cold one for comparison.
+ * The downloads go without checksums, since the server's digest of the whole file would read it into the page cache
+ * alongside the download, and the copy is checked against the original afterwards instead.
+ * For each download it reports the throughput, the Server's median and 99th percentile request latency and the
+ * read-ahead hits and misses from its METRICS.
+ * Compile the Client, Server and Benchmark sources into one directory and run from there:
+ * java -cp out ReadAheadBenchmark [fileSizeBytes] [chunkSize]
+ */
+public class ReadAheadBenchmark {
+    private static final int SERVER_PORT = 50999;
+    // The read-ahead of each session when it is on, the Server has it off by default
+    private static final long READ_AHEAD = 1024 * 1024;
+    private static final Path DROP_CACHES = Paths.get("/proc/sys/vm/drop_caches");
+
+    public static void main(String[] args) throws Exception {
+        long fileSize = args.length > 0 ? Long.parseLong(args[0]) : 256L * 1024 * 1024;
+        int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : 65000;
+
+        // Create separate server and client directories with a large random file to transfer, written a block at a time
+        Path workDir = Files.createTempDirectory("udp-read-ahead-benchmark");
+        Path serverDir = Files.createDirectories(workDir.resolve("server"));
+        Path clientDir = Files.createDirectories(workDir.resolve("client"));
+        Random random = new Random(42);
+        byte[] block = new byte[1024 * 1024];
+        try (OutputStream out = Files.newOutputStream(serverDir.resolve("large.bin"))) {
+            for (long written = 0; written < fileSize; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, fileSize - written));
+            }
+        }
+        long expectedCrc = crc(serverDir.resolve("large.bin"));
+        Files.write(clientDir.resolve("files.txt"), "large.bin\n".getBytes());
+
+        boolean canDrop = dropPageCache();
+        if (!canDrop) {
+            System.out.println("Could not drop the page cache, run as root for cold downloads, every download below is warm");
+        }
+        System.out.println("File size: " + fileSize + " bytes, chunk size: " + chunkSize + " bytes");
+        System.out.printf("%-8s %-12s %-11s %-6s %-10s %-10s %-10s %-10s %-8s %-8s %s%n",
+                "Mode", "Read path", "Read-ahead", "Cache", "Seconds", "MB/s", "P50 us", "P99 us", "Hits", "Misses", "Result");
+        String[][] modes = {{"thread"}, {"nio", "--nio", "4"}};
+        String[][] readPaths = {{"positional", "--mmap-threshold", String.valueOf(Long.MAX_VALUE)}, {"mmap", "--mmap-threshold", "0"}};
+        for (String[] mode : modes) {
+            for (String[] readPath : readPaths) {
+                for (boolean readAhead : new boolean[] {false, true}) {
+                    List<String> serverArgs = new ArrayList<>(List.of(String.valueOf(SERVER_PORT), "--cache-size", "0"));
+                    serverArgs.addAll(List.of(mode).subList(1, mode.length));
+                    serverArgs.addAll(List.of(readPath).subList(1, readPath.length));
+                    if (readAhead) {
+                        serverArgs.addAll(List.of("--read-ahead", String.valueOf(READ_AHEAD)));
+                    }
+                    for (boolean cold : new boolean[] {true, false}) {
+                        Files.deleteIfExists(clientDir.resolve("large.bin"));
+                        if (cold && canDrop) {
+                            dropPageCache();
+                        }
+                        Process server = ThroughputBenchmark.startProcess(serverDir, "Server", serverArgs.toArray(new String[0]));
+                        try (DatagramSocket socket = new DatagramSocket()) {
+                            Thread.sleep(1000);
+                            long start = System.nanoTime();
+                            ThroughputBenchmark.startProcess(clientDir, "Client", "localhost", String.valueOf(SERVER_PORT), "files.txt",
+                                    "--chunk-size", String.valueOf(chunkSize), "--no-checksum").waitFor();
+                            double seconds = (System.nanoTime() - start) / 1e9;
+                            long[] metrics = metrics(socket);
+
+                            boolean correct = Files.exists(clientDir.resolve("large.bin")) && crc(clientDir.resolve("large.bin")) == expectedCrc;
+                            System.out.printf("%-8s %-12s %-11s %-6s %-10.3f %-10.2f %-10d %-10d %-8d %-8d %s%n",
+                                    mode[0], readPath[0], readAhead ? "on" : "off", cold && canDrop ? "cold" : "warm",
+                                    seconds, fileSize / 1024.0 / 1024.0 / seconds, metrics[0], metrics[1],
+                                    metrics[2], metrics[3], correct ? "OK" : "MISMATCH");
+                        } finally {
+                            server.destroy();
+                            server.waitFor();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes back dirty pages and drops the page cache, so the next reads of the file come from the disk
+     *
+     * @return True if the page cache was dropped
+     */
+    private static boolean dropPageCache() {
+        try {
+            new ProcessBuilder("sync").inheritIO().start().waitFor();
+            Files.write(DROP_CACHES, "3\n".getBytes());
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return The CRC32C of a whole file
+     */
+    private static long crc(Path file) throws Exception {
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[1024 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Reads the Server's request latency percentiles and read-ahead totals from METRICS, for the one download it has served
+     *
+     * @return The median and 99th percentile request latency in microseconds, the read-ahead hits and its misses
+     */
+    private static long[] metrics(DatagramSocket socket) throws Exception {
+        String response = LoadTest.request(socket, "METRICS".getBytes(), InetAddress.getLoopbackAddress(), SERVER_PORT);
+        String[] metrics = response == null ? new String[0] : response.split("\\s+");
+        long[] values = new long[4];
+        boolean latency = false;
+        for (int i = 0; i < metrics.length - 1; i++) {
+            if (metrics[i].equals("REQUEST_LATENCY")) {
+                latency = true;
+            } else if (metrics[i].equals("SESSION_DURATION")) {
+                latency = false;
+            } else if (latency && metrics[i].equals("P50")) {
+                values[0] = Long.parseLong(metrics[i + 1].replace("us", ""));
+            } else if (latency && metrics[i].equals("P99")) {
+                values[1] = Long.parseLong(metrics[i + 1].replace("us", ""));
+            } else if (metrics[i].equals("HITS") && metrics[i - 1].equals("READ_AHEAD")) {
+                values[2] = Long.parseLong(metrics[i + 1]);
+            } else if (metrics[i].equals("MISSES") && metrics[i - 2].equals("WAITS")) {
+                values[3] = Long.parseLong(metrics[i + 1]);
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures download throughput of the Client against a local Server
+ * Starts the Server in its own process, then downloads the same file with each window size
+ * over a simulated link delay and reports the time taken and the throughput.
+ * Compile the Client, Server and Benchmark sources into one directory and run from there:
+ * java -cp out ThroughputBenchmark [fileSizeBytes] [delayMs] [windowSizes...]
+ */
+public class ThroughputBenchmark {
+    private static final int SERVER_PORT = 50999;
+
+    public static void main(String[] args) throws Exception {
+        long fileSize = args.length > 0 ? Long.parseLong(args[0]) : 1_000_000;
+        int delay = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        List<Integer> windowSizes = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            windowSizes.add(Integer.parseInt(args[i]));
+        }
+        if (windowSizes.isEmpty()) {
+            windowSizes.addAll(Arrays.asList(1, 4, 16, 64));
+        }
+
+        // Create separate server and client directories with a random file to transfer
+        Path workDir = Files.createTempDirectory("udp-benchmark");
+        Path serverDir = Files.createDirectories(workDir.resolve("server"));
+        Path clientDir = Files.createDirectories(workDir.resolve("client"));
+        byte[] content = new byte[(int) fileSize];
+        new Random(42).nextBytes(content);
+        Files.write(serverDir.resolve("benchmark.bin"), content);
+        Files.write(clientDir.resolve("files.txt"), "benchmark.bin\n".getBytes());
+
+        Process server = startProcess(serverDir, "Server", String.valueOf(SERVER_PORT));
+        try {
+            Thread.sleep(1000);
+            System.out.println("File size: " + fileSize + " bytes, simulated delay: " + delay + "ms");
+            System.out.printf("%-8s %-12s %-12s %s%n", "Window", "Seconds", "KB/s", "Result");
+            for (int windowSize : windowSizes) {
+                Files.deleteIfExists(clientDir.resolve("benchmark.bin"));
+                long start = System.nanoTime();
+                Process client = startProcess(clientDir, "Client", "localhost", String.valueOf(SERVER_PORT), "files.txt",
+                        "--window", String.valueOf(windowSize), "--delay", String.valueOf(delay));
+                client.waitFor();
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                boolean correct = Files.exists(clientDir.resolve("benchmark.bin")) &&
+                        Arrays.equals(content, Files.readAllBytes(clientDir.resolve("benchmark.bin")));
+                System.out.printf("%-8d %-12.3f %-12.1f %s%n", windowSize, seconds, fileSize / 1024.0 / seconds,
+                        correct ? "OK" : "MISMATCH");
+            }
+        } finally {
+            server.destroy();
+        }
+    }
+
+    /**
+     * Starts a class from the current classpath in a new JVM with its output discarded
+     *
+     * @param directory The working directory of the process
+     * @param mainClass The class to run
+     * @param args The arguments to pass to the class
+     * @return The started process
+     */
+    static Process startProcess(Path directory, String mainClass, String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.append(new File(entry).getAbsolutePath()).append(File.pathSeparator);
+        }
+        command.add(classPath.toString());
+        command.add(mainClass);
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+}
@@ -0,0 +1,283 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * BatchFileSink class writing the stream of a batch download into the files it is made of
+ * The stream starts with the manifest, so the files are not known until the chunks it spans have arrived.
+ * Those chunks, the head of the stream, are kept in memory; once the manifest has been read openFiles creates
+ * every file and writes out the part of the head after the manifest. From then on a positional write is split
+ * across the files its range covers, so chunks go straight to their files in whatever order they arrive.
+ * Only a few files are kept open at once, and writes are serialized across the stripes of the download.
+ */
+public class BatchFileSink implements ChunkSink {
+    private static final int MAX_OPEN_FILES = 16;
+
+    private final long streamSize;
+    private final int manifestSize;
+    private final ByteBuffer head;
+    // Set by openFiles from the manifest: every file, its size, -1 for a name the server did not find, and its offset in the stream
+    private String[] names;
+    private long[] sizes;
+    private long[] offsets;
+    // The most recently written files, the least recently written one is closed when another is opened
+    private final Map<Integer, FileChannel> openChannels = new LinkedHashMap<>(MAX_OPEN_FILES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, FileChannel> eldest) {
+            if (size() <= MAX_OPEN_FILES) {
+                return false;
+            }
+            try {
+                eldest.getValue().close();
+            } catch (IOException e) {
+                System.out.println("Error closing file: " + e.getMessage());
+            }
+            return true;
+        }
+    };
+
+    /**
+     * @param streamSize The size of the batch's stream
+     * @param manifestSize The number of bytes of the manifest at the start of the stream
+     * @param chunkSize The number of bytes in each chunk of the download
+     */
+    public BatchFileSink(long streamSize, int manifestSize, int chunkSize) {
+        this.streamSize = streamSize;
+        this.manifestSize = manifestSize;
+        long manifestChunks = (manifestSize + (long) chunkSize - 1) / chunkSize;
+        this.head = ByteBuffer.allocate((int) Math.min(streamSize, manifestChunks * chunkSize));
+    }
+
+    /**
+     * @return The number of bytes at the start of the stream kept in memory, the chunks the manifest spans
+     */
+    public int getHeadSize() {
+        return head.capacity();
+    }
+
+    /**
+     * Reads the manifest once every chunk of the head has arrived, creates every file it lists, truncating any that
+     * already exist, and writes out the part of the head after the manifest
+     * Every manifest line holds a file's size, last-modified time and name. A file whose size is -1 was not found
+     * on the server and is not created. A name must be one that was asked for or lie under a directory that was,
+     * so a manifest can never write outside what was asked for.
+     *
+     * @param requestedNames The names of the files and directories the batch asked for
+     * @throws IOException If the manifest is invalid or does not add up to the stream, or a file cannot be created
+     */
+    public synchronized void openFiles(List<String> requestedNames) throws IOException {
+        String manifest = new String(head.array(), 0, manifestSize, StandardCharsets.UTF_8);
+        List<String> lines = manifest.isEmpty() ? List.of() : Arrays.asList(manifest.split("\n"));
+        Set<String> requested = new HashSet<>(requestedNames);
+        String[] names = new String[lines.size()];
+        long[] sizes = new long[lines.size()];
+        long[] offsets = new long[lines.size()];
+        long offset = manifestSize;
+        for (int i = 0; i < names.length; i++) {
+            String[] parts = lines.get(i).split(" ", 3);
+            try {
+                sizes[i] = Long.parseLong(parts[0]);
+                Long.parseLong(parts[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Invalid manifest line: " + lines.get(i));
+            }
+            names[i] = parts[2];
+            if (sizes[i] < -1 || !(requested.contains(names[i]) || isUnderDirectory(names[i], requestedNames))) {
+                throw new IOException("Manifest lists a file that was not asked for: " + names[i]);
+            }
+            offsets[i] = offset;
+            offset += Math.max(0, sizes[i]);
+        }
+        if (offset != streamSize) {
+            throw new IOException("Manifest lists " + (offset - manifestSize) + " bytes of files in a stream of " + streamSize + " bytes");
+        }
+
+        this.names = names;
+        this.sizes = sizes;
+        this.offsets = offsets;
+        for (int i = 0; i < names.length; i++) {
+            if (sizes[i] < 0) {
+                continue;
+            }
+            Path path = Paths.get(names[i]);
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            openChannels.put(i, FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        }
+        writeFiles(ByteBuffer.wrap(head.array(), manifestSize, head.capacity() - manifestSize), manifestSize);
+    }
+
+    /**
+     * @return True if a name lies under one of the requested directories without any .. stepping back out of it
+     */
+    private static boolean isUnderDirectory(String name, List<String> requestedNames) {
+        for (String requestedName : requestedNames) {
+            String directory = directoryPrefix(requestedName);
+            if (name.startsWith(directory) && !Arrays.asList(name.substring(directory.length()).split("/")).contains("..")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The prefix of the names the server lists for the files under a requested directory
+     */
+    public static String directoryPrefix(String requestedName) {
+        int end = requestedName.length();
+        while (end > 1 && requestedName.charAt(end - 1) == '/') {
+            end--;
+        }
+        return requestedName.substring(0, end).equals("/") ? "/" : requestedName.substring(0, end) + "/";
+    }
+
+    /**
+     * @return The number of files the manifest lists, including the names that were not found
+     */
+    public int getFileCount() {
+        return names.length;
+    }
+
+    /**
+     * @param file The index of a file in the manifest
+     * @return The name of the file
+     */
+    public String getFileName(int file) {
+        return names[file];
+    }
+
+    /**
+     * @param file The index of a file in the manifest
+     * @return The size of the file, -1 if the server did not find it
+     */
+    public long getFileSize(int file) {
+        return sizes[file];
+    }
+
+    /**
+     * @param file The index of a file in the manifest
+     * @return The offset of the file's contents in the stream
+     */
+    public long getFileOffset(int file) {
+        return offsets[file];
+    }
+
+    /**
+     * Writes part of the stream: the part within the head is kept in memory, the part after the manifest
+     * goes to the files it covers once they have been opened
+     *
+     * @param src The bytes to write, from its position to its limit, its position is moved to its limit
+     * @param position The offset in the stream to write at
+     * @return The number of bytes written
+     */
+    @Override
+    public synchronized int write(ByteBuffer src, long position) throws IOException {
+        int length = src.remaining();
+        if (position < head.capacity()) {
+            head.put((int) position, src, src.position(), (int) Math.min(length, head.capacity() - position));
+        }
+        if (names != null && position + length > manifestSize) {
+            int skipped = (int) Math.max(0, manifestSize - position);
+            writeFiles(src.duplicate().position(src.position() + skipped), position + skipped);
+        }
+        src.position(src.limit());
+        return length;
+    }
+
+    /**
+     * Writes bytes of the stream past the manifest into the files they belong to
+     *
+     * @param data The bytes, from its position to its limit
+     * @param position The offset in the stream of the first byte
+     */
+    private void writeFiles(ByteBuffer data, long position) throws IOException {
+        long end = Math.min(position + data.remaining(), streamSize);
+        int limit = data.limit();
+        for (int file = position < end ? fileAt(position) : sizes.length; position < end; file++) {
+            long fileEnd = offsets[file] + Math.max(0, sizes[file]);
+            if (fileEnd <= position) {
+                continue;
+            }
+            int length = (int) (Math.min(end, fileEnd) - position);
+            data.limit(data.position() + length);
+            FileChannel channel = channel(file);
+            long filePosition = position - offsets[file];
+            while (data.hasRemaining()) {
+                filePosition += channel.write(data, filePosition);
+            }
+            data.limit(limit);
+            position += length;
+        }
+    }
+
+    /**
+     * @return The index of the file whose contents hold a stream offset past the manifest
+     */
+    private int fileAt(long position) {
+        // The last file that starts at or before the offset, any file of no bytes before it starts at the same offset
+        int low = 0;
+        int high = offsets.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (offsets[middle] <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return The open channel of a file, opening it if it is not among the recently written files
+     */
+    private FileChannel channel(int file) throws IOException {
+        FileChannel channel = openChannels.get(file);
+        if (channel == null) {
+            channel = FileChannel.open(Paths.get(names[file]), StandardOpenOption.WRITE);
+            openChannels.put(file, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * Forces the files still open to storage, files closed earlier have already been handed to the operating system
+     */
+    @Override
+    public synchronized void force() throws IOException {
+        for (FileChannel channel : openChannels.values()) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Closes every file still open
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        IOException error = null;
+        for (FileChannel channel : openChannels.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        openChannels.clear();
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChunkChannel class sending binary GET packets and receiving binary DATA packets for one session
+ * without allocating anything per chunk.
+ * Requests are built in one reused direct buffer, and every response is received into another,
+ * so a chunk's payload goes from the socket to the file being written without passing through the Java heap.
+ * Only works on a socket backed by a DatagramChannel. While it is open the channel is in non-blocking mode
+ * and waits for packets with a Selector, so the socket's own send and receive cannot be used until it is closed.
+ */
+public class ChunkChannel implements Closeable {
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final SocketAddress handlerAddress;
+    private final int sessionId;
+    private final ByteBuffer request = ByteBuffer.allocateDirect(Client.BINARY_HEADER_SIZE);
+    private final ByteBuffer response;
+
+    /**
+     * @param channel The channel of the session's socket
+     * @param handlerAddress The address of the session's client handler
+     * @param sessionId The session id to put in every GET packet
+     * @param maxPacketSize The size of the largest DATA packet of the session
+     */
+    private ChunkChannel(DatagramChannel channel, SocketAddress handlerAddress, int sessionId, int maxPacketSize) throws IOException {
+        this.channel = channel;
+        this.handlerAddress = handlerAddress;
+        this.sessionId = sessionId;
+        this.response = ByteBuffer.allocateDirect(maxPacketSize);
+        this.selector = Selector.open();
+        channel.configureBlocking(false);
+        this.key = channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Opens a ChunkChannel on a socket if the socket is backed by a DatagramChannel
+     *
+     * @param socket The socket of the session
+     * @param transfer The binary session to request chunks for
+     * @return The ChunkChannel, or null if the socket has no channel, such as a SimulatedLinkSocket
+     */
+    public static ChunkChannel open(DatagramSocket socket, Client.FileTransfer transfer) throws IOException {
+        DatagramChannel channel = socket.getChannel();
+        if (channel == null) {
+            return null;
+        }
+        return new ChunkChannel(channel, new InetSocketAddress(transfer.getServerAddress(), transfer.getClientHandlerPort()),
+                transfer.getSessionId(), transfer.getMaxPacketSize());
+    }
+
+    /**
+     * Sends a binary GET packet for a range of the file
+     *
+     * @param startByte The offset of the range
+     * @param length The length of the range
+     */
+    public void sendGet(long startByte, int length) throws IOException {
+        request.clear();
+        request.put(Client.OP_GET).putInt(sessionId).putLong(startByte).putInt(length).flip();
+        channel.send(request, handlerAddress);
+    }
+
+    /**
+     * Waits for the next packet and receives it into the reused response buffer
+     * The buffer is overwritten by the next receive, so its contents must be used before then.
+     *
+     * @param timeout The longest time to wait in milliseconds, more than 0
+     * @return The response buffer, positioned at the start of the packet and limited to its length
+     * @throws SocketTimeoutException If no packet arrived before the timeout
+     */
+    public ByteBuffer receive(long timeout) throws IOException {
+        response.clear();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        // The selector can wake up without a packet, so wait again until the timeout has really passed
+        while (channel.receive(response) == null) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                throw new SocketTimeoutException();
+            }
+            selector.select(remaining);
+            selector.selectedKeys().clear();
+        }
+        return response.flip();
+    }
+
+    /**
+     * Stops waiting with the selector and puts the channel back in blocking mode for the socket's own send and receive
+     */
+    @Override
+    public void close() throws IOException {
+        key.cancel();
+        selector.close();
+        if (channel.isOpen()) {
+            channel.configureBlocking(true);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * ChunkInflater class inflating the compressed chunks of one session
+ * The server compresses every chunk on its own with raw Deflate, so each chunk is inflated with a reset Inflater
+ * into one reused direct buffer, which is then written to the file like the payload of an uncompressed chunk.
+ * A chunk only counts as inflated if it comes out at exactly the length its header gives.
+ */
+public class ChunkInflater {
+    private final Inflater inflater = new Inflater(true);
+    private final ByteBuffer output;
+
+    /**
+     * @param chunkSize The number of bytes in each chunk of the session
+     */
+    public ChunkInflater(int chunkSize) {
+        // One spare byte shows a chunk that inflates to more than its length
+        this.output = ByteBuffer.allocateDirect(chunkSize + 1);
+    }
+
+    /**
+     * Inflates a compressed chunk
+     * The returned buffer is overwritten by the next call, so it must be used before then.
+     *
+     * @param data The compressed chunk, from its position to its limit
+     * @param length The length of the chunk once inflated
+     * @return The inflated chunk, or null if the data is not a raw Deflate stream of exactly that length
+     */
+    public ByteBuffer inflate(ByteBuffer data, int length) {
+        if (length < 0 || length >= output.capacity()) {
+            return null;
+        }
+        inflater.reset();
+        inflater.setInput(data);
+        output.clear().limit(length + 1);
+        try {
+            while (!inflater.finished()) {
+                if (inflater.inflate(output) == 0 && (inflater.needsInput() || inflater.needsDictionary() || !output.hasRemaining())) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            return null;
+        }
+        if (!inflater.finished() || output.position() != length) {
+            return null;
+        }
+        return output.flip();
+    }
+}
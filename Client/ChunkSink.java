@@ -0,0 +1,62 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * ChunkSink interface for where the chunks of a download are written
+ * A download writes every chunk at its offset in the stream, in whatever order the chunks arrive, and forces what it
+ * has written to storage before the journal records it. A single file is written through its FileChannel and a batch
+ * through a BatchFileSink, which splits the stream across the files it is made of.
+ */
+public interface ChunkSink extends Closeable {
+    /**
+     * Writes bytes at an offset in the stream
+     *
+     * @param src The bytes to write, from its position to its limit, its position is advanced past the bytes written
+     * @param position The offset in the stream to write at
+     * @return The number of bytes written
+     */
+    int write(ByteBuffer src, long position) throws IOException;
+
+    /**
+     * Forces every byte written so far to storage
+     */
+    void force() throws IOException;
+
+    /**
+     * FileSink class writing the chunks of a single file download into the file's channel
+     */
+    class FileSink implements ChunkSink {
+        private final FileChannel channel;
+
+        /**
+         * @param channel The channel of the file being written, closed with the sink
+         */
+        public FileSink(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * @return The channel of the file being written
+         */
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public void force() throws IOException {
+            channel.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
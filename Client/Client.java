@@ -1,14 +1,29 @@
 import java.io.BufferedReader;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Client class to download files from a server using UDP
@@ -18,17 +33,70 @@ import java.util.List;
 public class Client {
     private static final int TIMEOUT = 200;
     private static final int MAX_RETRIES = 5;
+    // A download never gives up sooner than MAX_RETRIES doubling timeouts from TIMEOUT would, however short the RTT
+    private static final long MIN_GIVE_UP_TIME = (long) TIMEOUT * ((1 << MAX_RETRIES) - 1);
+    private static final int CHUNK_SIZE = 1000;
+    // The congestion window decides how many requests are in flight, this only caps it
+    private static final int DEFAULT_WINDOW_SIZE = 64;
+    private static final int DEFAULT_PARALLEL_DOWNLOADS = 1;
+    private static final String USAGE = "Usage: java Client <hostname> <port> <filename> [--window <requests>] [--delay <ms>] [--jitter <ms>] [--loss <percent>] [--text] [--parallel <files>] [--stripes <sessions>] [--chunk-size <bytes>] [--verbose] [--copy-receive] [--no-checksum] [--compress] [--bandwidth <kbit/s>] [--batch]";
+    // The largest UDP payload over IPv4, a BATCH request must fit in one datagram
+    private static final int MAX_REQUEST_SIZE = 65507;
+
+    // Binary data path: opcode (1 byte), session id (4 bytes), offset (8 bytes), length (4 bytes), then raw file bytes
+    // CLOSE and CLOSE_OK packets carry only the opcode and session id
+    static final byte OP_GET = 1;
+    static final byte OP_DATA = 2;
+    // A DATA packet whose payload is the chunk compressed with raw Deflate
+    static final byte OP_DATA_DEFLATE = 5;
+    private static final byte OP_CLOSE = 3;
+    private static final byte OP_CLOSE_OK = 4;
+    // Asks for the CRC32C of the whole file, answered by DIGEST_OK with a status byte and the CRC32C
+    private static final byte OP_DIGEST = 6;
+    private static final byte OP_DIGEST_OK = 7;
+    private static final byte DIGEST_READY = 0;
+    private static final byte DIGEST_PENDING = 1;
+    // Asks for the CRC32C of the file's segments from a first segment, answered by SEGMENTS_OK with a status byte,
+    // the segment size and the first segment, then the CRC32C of each segment
+    private static final byte OP_SEGMENTS = 8;
+    private static final byte OP_SEGMENTS_OK = 9;
+    static final int BINARY_HEADER_SIZE = 17;
+    private static final int BINARY_CLOSE_SIZE = 5;
+    private static final int BINARY_DIGEST_OK_SIZE = 10;
+    private static final int BINARY_SEGMENTS_SIZE = 9;
+    private static final int BINARY_SEGMENTS_OK_HEADER_SIZE = 14;
+    // Returned by requestDigest when the server could not compute the CRC32C of the whole file
+    private static final long NO_DIGEST = -1;
+    // How many times the chunks of a complete download that do not match the server's CRC32C are downloaded again
+    private static final int REPAIR_ROUNDS = 1;
+    // Sessions that negotiate checksums get a CRC32C after the length field of every DATA packet,
+    // of the payload followed by the header fields before it
+    private static final int CHECKSUM_SIZE = 4;
+    // Keeps a binary chunk and its header within a 1472 byte UDP payload, the largest that fits a 1500 byte Ethernet MTU
+    // Used unless a chunk size is negotiated with --chunk-size
+    private static final int BINARY_CHUNK_SIZE = 1400;
 
     /**
      * Main method to run the client.
      * Sends download requests for files listed in a specified file to the server
      * 
-     * @param args Command line arguments: hostname, port, and file list filename.
+     * @param args Command line arguments: hostname, port, and file list filename,
+     *             optionally followed by --window (most requests in flight), --delay, --jitter and --loss (simulated link)
+     *             --text (use the text data protocol instead of negotiating binary framing)
+     *             --parallel (number of files downloaded at the same time)
+     *             --stripes (number of parallel sessions a single file is split across)
+     *             --chunk-size (chunk size in bytes to negotiate with the server)
+     *             --verbose (print a line for every chunk requested and written)
+     *             --copy-receive (receive binary chunks through DatagramPacket arrays instead of a direct buffer)
+     *             --no-checksum (do not ask for the CRC32C of every chunk and of the whole file)
+     *             --compress (ask for chunks worth compressing to be sent compressed)
+     *             --bandwidth (simulated link bandwidth in kilobits per second)
+     *             and --batch (download the listed files and directories in as few sessions as fit in BATCH requests)
      */
     public static void main(String[] args) {
         // Check if the correct number of arguments is provided
-        if (args.length != 3) {
-            System.out.println("Usage: java Client <hostname> <port> <filename>");
+        if (args.length < 3) {
+            System.out.println(USAGE);
             return;
         }
 
@@ -45,6 +113,75 @@ public class Client {
             return;
         }
 
+        // Parse the optional settings that follow the required arguments
+        DownloadOptions options = new DownloadOptions();
+        try {
+            for (int i = 3; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--window":
+                        options.windowSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "--delay":
+                        options.simulatedDelay = Integer.parseInt(args[++i]);
+                        break;
+                    case "--jitter":
+                        options.simulatedJitter = Integer.parseInt(args[++i]);
+                        break;
+                    case "--loss":
+                        options.simulatedLoss = Double.parseDouble(args[++i]) / 100;
+                        break;
+                    case "--text":
+                        options.textOnly = true;
+                        break;
+                    case "--parallel":
+                        options.parallelDownloads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--stripes":
+                        options.stripes = Integer.parseInt(args[++i]);
+                        break;
+                    case "--chunk-size":
+                        options.chunkSize = Integer.parseInt(args[++i]);
+                        if (options.chunkSize < 1) {
+                            System.out.println("Chunk size must be at least 1.");
+                            return;
+                        }
+                        break;
+                    case "--verbose":
+                        options.verbose = true;
+                        break;
+                    case "--copy-receive":
+                        options.copyReceive = true;
+                        break;
+                    case "--no-checksum":
+                        options.checksum = false;
+                        break;
+                    case "--compress":
+                        options.compress = true;
+                        break;
+                    case "--bandwidth":
+                        options.simulatedBandwidth = Integer.parseInt(args[++i]);
+                        break;
+                    case "--batch":
+                        options.batch = true;
+                        break;
+                    default:
+                        System.out.println("Unknown option: " + args[i]);
+                        System.out.println(USAGE);
+                        return;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid option value. " + USAGE);
+            return;
+        }
+        if (options.windowSize < 1 || options.parallelDownloads < 1 || options.stripes < 1 ||
+                options.simulatedDelay < 0 || options.simulatedJitter < 0 || options.simulatedLoss < 0 || options.simulatedLoss >= 1 ||
+                options.simulatedBandwidth < 0) {
+            System.out.println("Window size, parallel downloads and stripes must be at least 1, delay, jitter and bandwidth must not be negative" +
+                    " and loss must be a percentage below 100.");
+            return;
+        }
+
         // Read the list of files to download from the specified file
         List<String> filesToDownload = new ArrayList<>();
         try (BufferedReader fileReader = new BufferedReader(new FileReader(fileList))) {
@@ -59,149 +196,1164 @@ public class Client {
             System.out.println("Error reading files list: " + e.getMessage());
         }
 
-        // Create a DatagramSocket to communicate with the server
-        try(DatagramSocket clientSocket = new DatagramSocket()){
-            InetAddress serverAddress = InetAddress.getByName(hostname);
+        InetAddress serverAddress;
+        try {
+            serverAddress = InetAddress.getByName(hostname);
+        } catch (IOException e) {
+            System.out.println("Error in client: " + e.getMessage());
+            return;
+        }
 
-            // Loop through each file name and send a download request sequentially
+        // Download up to parallelDownloads files at the same time, each on its own socket
+        // With --batch the files are grouped into BATCH requests instead, each group downloaded as one session
+        List<List<String>> groups = options.batch ? groupBatches(filesToDownload, options) : new ArrayList<>();
+        if (!options.batch) {
             for (String fileName : filesToDownload) {
-                System.out.println("Sending file name: " + fileName);
-                String requestMessage = "DOWNLOAD " + fileName;
-                String response = null;
-                int currentTimeout = TIMEOUT;
-
-                // Retry sending the request up to MAX_RETRIES times if no response is received
-                for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
-                    response = sendReceiveRequest(clientSocket, requestMessage, serverAddress, serverPort, currentTimeout);
-                    if (response != null) {
-                        break;
-                    } 
-                    System.out.println("Retrying DOWNLOAD Attempt for " + fileName + " Timeout:" + currentTimeout + "ms Attempt " + (attempt + 1) + "/" + MAX_RETRIES);
-                    currentTimeout *= 2;
+                groups.add(List.of(fileName));
+            }
+        }
+        ExecutorService executor = newDownloadExecutor(options.parallelDownloads);
+        Semaphore downloadSlots = new Semaphore(options.parallelDownloads);
+        AtomicInteger filesFinished = new AtomicInteger();
+        List<Future<DownloadStatus[]>> results = new ArrayList<>();
+        for (List<String> group : groups) {
+            results.add(executor.submit(() -> {
+                downloadSlots.acquire();
+                DownloadStatus[] statuses;
+                try {
+                    statuses = options.batch
+                            ? downloadBatch(group, serverAddress, serverPort, options)
+                            : new DownloadStatus[] {downloadFile(group.get(0), serverAddress, serverPort, options)};
+                } finally {
+                    downloadSlots.release();
+                }
+                for (int i = 0; i < group.size(); i++) {
+                    System.out.println("Progress: " + filesFinished.incrementAndGet() + "/" + filesToDownload.size() +
+                            " files finished, " + group.get(i) + " " + statuses[i]);
                 }
+                return statuses;
+            }));
+        }
+        executor.shutdown();
 
-                // If no response is received, continue to the next file
-                if (response == null) {
-                    System.out.println("Failed to receive response after " + MAX_RETRIES + " attempts");
+        // Wait for every download, so the results are not mixed into the progress of downloads still running
+        List<DownloadStatus[]> groupStatuses = new ArrayList<>();
+        for (int i = 0; i < groups.size(); i++) {
+            DownloadStatus[] statuses;
+            try {
+                statuses = results.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                System.out.println("Error in client: " + e.getMessage());
+                statuses = new DownloadStatus[groups.get(i).size()];
+                Arrays.fill(statuses, DownloadStatus.FAILED);
+            }
+            groupStatuses.add(statuses);
+        }
+
+        // Report the result of every file in the order they were listed
+        int downloaded = 0;
+        System.out.println("Download results:");
+        for (int i = 0; i < groups.size(); i++) {
+            DownloadStatus[] statuses = groupStatuses.get(i);
+            for (int j = 0; j < statuses.length; j++) {
+                if (statuses[j] == DownloadStatus.DOWNLOADED) {
+                    downloaded++;
+                }
+                System.out.println("  " + groups.get(i).get(j) + ": " + statuses[j]);
+            }
+        }
+        System.out.println("Downloaded " + downloaded + " of " + filesToDownload.size() + " files");
+    }
+
+    /**
+     * Splits the list of files into groups whose BATCH request each fits in a single datagram
+     *
+     * @param fileNames The files and directories to download, in the order they were listed
+     * @param options The settings for the download, whose options every request carries
+     * @return The groups, in list order
+     */
+    private static List<List<String>> groupBatches(List<String> fileNames, DownloadOptions options) {
+        int headerSize = batchRequest(List.of(), options).getBytes().length;
+        List<List<String>> groups = new ArrayList<>();
+        List<String> group = new ArrayList<>();
+        int requestSize = headerSize;
+        for (String fileName : fileNames) {
+            int nameSize = fileName.getBytes().length + 1;
+            if (!group.isEmpty() && requestSize + nameSize > MAX_REQUEST_SIZE) {
+                groups.add(group);
+                group = new ArrayList<>();
+                requestSize = headerSize;
+            }
+            group.add(fileName);
+            requestSize += nameSize;
+        }
+        if (!group.isEmpty()) {
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    /**
+     * Downloads a single file on its own socket: sends the DOWNLOAD request,
+     * fetches the chunks from the client handler and closes the file
+     * With more than one stripe the file is split into byte ranges fetched over parallel sessions
+     *
+     * @param fileName The name of the file to download
+     * @param serverAddress The server's address to send to
+     * @param serverPort The server's port to send the DOWNLOAD request to
+     * @param options The settings for the download
+     * @return The result of the download
+     */
+    private static DownloadStatus downloadFile(String fileName, InetAddress serverAddress, int serverPort, DownloadOptions options) {
+        // Create a DatagramSocket to communicate with the server
+        try (DatagramSocket clientSocket = openSocket(options)) {
+            FileTransfer transfer;
+            try {
+                transfer = requestDownload(clientSocket, fileName, serverAddress, serverPort, options);
+            } catch (DownloadException e) {
+                return e.getStatus();
+            }
+
+            System.out.println("File name: " + fileName);
+            System.out.println("File size: " + transfer.fileSize);
+            System.out.println("Client handler port: " + transfer.clientHandlerPort);
+            System.out.println("Data protocol: " + (transfer.isBinary() ? "binary, session " + transfer.sessionId : "text"));
+
+            // Resume from the journal of an earlier run if it describes the same version of the file
+            DownloadJournal journal = DownloadJournal.open(fileName, transfer.fileSize, transfer.lastModified, transfer.chunkSize);
+            long bytesReceived = journal.getBytesReceived();
+            if (bytesReceived > 0) {
+                System.out.println("Resuming " + fileName + ": " + bytesReceived + " of " + transfer.fileSize + " bytes already downloaded");
+            }
+
+            // With checksums every chunk is verified as it arrives, and the whole-file CRC32C is built from the chunk CRCs
+            FileChecksum checksum = transfer.isChecksummed() ? new FileChecksum(transfer.fileSize, transfer.chunkSize) : null;
+
+            // Download the missing chunks, keeping up to windowSize requests in flight on each stripe
+            // The partial file is only kept when resuming, otherwise it is truncated and downloaded again
+            int stripes = Math.max(1, Math.min(options.stripes, transfer.getTotalChunks()));
+            long fileChecksum = NO_DIGEST;
+            boolean verified = true;
+            try (ChunkSink.FileSink fileWriter = new ChunkSink.FileSink(bytesReceived > 0
+                    ? FileChannel.open(Paths.get(fileName), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                    : FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+                if (checksum != null && bytesReceived > 0) {
+                    checksumResumedChunks(fileWriter.getChannel(), transfer, journal, checksum);
+                }
+                try {
+                    if (stripes == 1) {
+                        bytesReceived += downloadChunks(clientSocket, transfer, journal, fileWriter, 0, transfer.getTotalChunks(), checksum, options);
+                    } else {
+                        bytesReceived += downloadStripes(clientSocket, transfer, journal, fileWriter, 0, stripes, serverPort, checksum, options);
+                    }
+                    // The server computes the whole-file CRC32C while the file downloads, so it is only asked for now
+                    if (bytesReceived == transfer.fileSize && checksum != null) {
+                        fileChecksum = verifyDownload(clientSocket, transfer, journal, fileWriter, checksum, options);
+                    }
+                } catch (DownloadException e) {
+                    // The journal keeps every chunk that matched the server's, so the next run downloads only the rest
+                    verified = false;
+                } finally {
+                    // Record the progress so far, so a failed download resumes where it stopped
+                    journal.checkpoint(fileWriter, true);
+                }
+            }
+            DownloadStatus status = bytesReceived == transfer.fileSize && verified ? DownloadStatus.DOWNLOADED : DownloadStatus.FAILED;
+            if (status == DownloadStatus.DOWNLOADED) {
+                journal.delete();
+                System.out.println("File " + fileName + " downloaded successfully" + (fileChecksum != NO_DIGEST ? ", CRC32C verified" : ""));
+            } else if (bytesReceived != transfer.fileSize) {
+                System.out.println("File " + fileName + " incomplete, received " + bytesReceived + " of " + transfer.fileSize + " bytes");
+            }
+
+            closeTransfer(clientSocket, transfer);
+            return status;
+        }
+        catch (Exception e){
+            System.out.println("Error in client: " + e.getMessage());
+            return DownloadStatus.FAILED;
+        }
+    }
+
+    /**
+     * Downloads a group of files and directories on its own socket as the single stream of one BATCH session
+     * The chunks the manifest at the start of the stream spans are downloaded first, then the files it lists
+     * are created and the rest of the stream is downloaded into them, striped if asked, every chunk written
+     * to its files as it arrives. A batch is never resumed, as its stream is not a file with a journal on disk.
+     * If the stream does not complete, a name still counts as downloaded if every chunk of its files arrived.
+     *
+     * @param fileNames The names of the files and directories to download
+     * @param serverAddress The server's address to send to
+     * @param serverPort The server's port to send the BATCH request to
+     * @param options The settings for the download
+     * @return The result for every name, in the order they were given
+     */
+    private static DownloadStatus[] downloadBatch(List<String> fileNames, InetAddress serverAddress, int serverPort, DownloadOptions options) {
+        DownloadStatus[] statuses = new DownloadStatus[fileNames.size()];
+        Arrays.fill(statuses, DownloadStatus.FAILED);
+        try (DatagramSocket clientSocket = openSocket(options)) {
+            FileTransfer transfer;
+            try {
+                transfer = requestBatch(clientSocket, fileNames, serverAddress, serverPort, options);
+            } catch (DownloadException e) {
+                Arrays.fill(statuses, e.getStatus());
+                return statuses;
+            }
+
+            System.out.println("Batch name: " + transfer.fileName);
+            System.out.println("Batch size: " + transfer.fileSize + ", manifest size: " + transfer.manifestSize);
+            System.out.println("Client handler port: " + transfer.clientHandlerPort);
+            System.out.println("Data protocol: " + (transfer.isBinary() ? "binary, session " + transfer.sessionId : "text"));
+
+            // Without a last-modified time the journal only keeps track of the chunks in memory
+            DownloadJournal journal = DownloadJournal.open(transfer.fileName, transfer.fileSize, -1, transfer.chunkSize);
+            FileChecksum checksum = transfer.isChecksummed() ? new FileChecksum(transfer.fileSize, transfer.chunkSize) : null;
+            int totalChunks = transfer.getTotalChunks();
+            long bytesReceived;
+            try (BatchFileSink fileWriter = new BatchFileSink(transfer.fileSize, (int) transfer.manifestSize, transfer.chunkSize)) {
+                // The files are only known once every chunk of the manifest is in
+                int headChunks = (int) ((fileWriter.getHeadSize() + (long) transfer.chunkSize - 1) / transfer.chunkSize);
+                bytesReceived = downloadChunks(clientSocket, transfer, journal, fileWriter, 0, headChunks, checksum, options);
+                if (bytesReceived < fileWriter.getHeadSize()) {
+                    System.out.println("Batch " + transfer.fileName + " incomplete, the manifest did not arrive");
+                    closeTransfer(clientSocket, transfer);
+                    return statuses;
+                }
+                try {
+                    fileWriter.openFiles(fileNames);
+                } catch (IOException e) {
+                    System.out.println("Batch " + transfer.fileName + " failed: " + e.getMessage());
+                    closeTransfer(clientSocket, transfer);
+                    return statuses;
+                }
+                System.out.println("Batch " + transfer.fileName + " lists " + fileWriter.getFileCount() + " files");
+
+                int stripes = Math.max(1, Math.min(options.stripes, totalChunks - headChunks));
+                if (stripes == 1) {
+                    bytesReceived += downloadChunks(clientSocket, transfer, journal, fileWriter, headChunks, totalChunks, checksum, options);
+                } else {
+                    bytesReceived += downloadStripes(clientSocket, transfer, journal, fileWriter, headChunks, stripes, serverPort, checksum, options);
+                }
+
+                long fileChecksum = NO_DIGEST;
+                if (bytesReceived == transfer.fileSize && checksum != null) {
+                    try {
+                        fileChecksum = verifyDownload(clientSocket, transfer, journal, fileWriter, checksum, options);
+                    } catch (DownloadException e) {
+                        // Once the segments have been compared, the chunks that did not match are dropped from the journal and every
+                        // file left complete matched the server's, otherwise nothing in the batch was verified
+                        if (journal.countMissingChunks(0, totalChunks) > 0) {
+                            statuses = batchStatuses(fileNames, fileWriter, transfer, journal);
+                        }
+                        closeTransfer(clientSocket, transfer);
+                        return statuses;
+                    }
+                }
+                statuses = batchStatuses(fileNames, fileWriter, transfer, journal);
+                if (bytesReceived == transfer.fileSize) {
+                    System.out.println("Batch " + transfer.fileName + " downloaded successfully" + (fileChecksum != NO_DIGEST ? ", CRC32C verified" : ""));
+                } else {
+                    System.out.println("Batch " + transfer.fileName + " incomplete, received " + bytesReceived + " of " + transfer.fileSize + " bytes");
+                }
+            }
+            closeTransfer(clientSocket, transfer);
+            return statuses;
+        }
+        catch (Exception e){
+            System.out.println("Error in client: " + e.getMessage());
+            return statuses;
+        }
+    }
+
+    /**
+     * Works out the result for every name of a batch from the files of its manifest and the chunks that arrived
+     * A name the server did not find is NOT_FOUND, and any other name is DOWNLOADED if every chunk of every file listed under it arrived.
+     *
+     * @param fileNames The names of the files and directories the batch asked for
+     * @param files The files of the batch, opened from its manifest
+     * @param transfer The batch's session
+     * @param journal The record of the chunks received
+     * @return The result for every name, in the order they were given
+     */
+    private static DownloadStatus[] batchStatuses(List<String> fileNames, BatchFileSink files, FileTransfer transfer, DownloadJournal journal) {
+        // A file name is listed under itself, only a directory needs a search for the files under it
+        Map<String, Integer> listedFiles = new HashMap<>();
+        for (int file = files.getFileCount() - 1; file >= 0; file--) {
+            listedFiles.put(files.getFileName(file), file);
+        }
+        DownloadStatus[] statuses = new DownloadStatus[fileNames.size()];
+        for (int i = 0; i < statuses.length; i++) {
+            Integer listedFile = listedFiles.get(fileNames.get(i));
+            if (listedFile != null) {
+                statuses[i] = files.getFileSize(listedFile) < 0 ? DownloadStatus.NOT_FOUND
+                        : isFileComplete(files, listedFile, transfer, journal) ? DownloadStatus.DOWNLOADED : DownloadStatus.FAILED;
+                continue;
+            }
+            String directory = BatchFileSink.directoryPrefix(fileNames.get(i));
+            boolean complete = true;
+            for (int file = 0; file < files.getFileCount(); file++) {
+                if (files.getFileName(file).startsWith(directory)) {
+                    complete &= isFileComplete(files, file, transfer, journal);
+                }
+            }
+            statuses[i] = complete ? DownloadStatus.DOWNLOADED : DownloadStatus.FAILED;
+        }
+        return statuses;
+    }
+
+    /**
+     * @return True if every chunk holding a file of a batch has arrived, a file of no bytes needs only the manifest
+     */
+    private static boolean isFileComplete(BatchFileSink files, int file, FileTransfer transfer, DownloadJournal journal) {
+        long offset = files.getFileOffset(file);
+        long size = files.getFileSize(file);
+        int firstChunk = (int) (offset / transfer.chunkSize);
+        int endChunk = size <= 0 ? firstChunk : (int) ((offset + size - 1) / transfer.chunkSize) + 1;
+        return journal.countMissingChunks(firstChunk, endChunk) == 0;
+    }
+
+    /**
+     * Downloads a file as several byte-range stripes at the same time.
+     * The first stripe uses the session that was already opened, every other stripe opens its own socket
+     * and session, so the server serves the stripes from separate handlers. Each stripe writes its chunks
+     * straight to their offsets in the shared output file.
+     *
+     * @param socket The socket of the session that was already opened
+     * @param transfer The session that was already opened
+     * @param journal The record of the chunks already received, shared by every stripe
+     * @param fileWriter Where the chunks of the file are written
+     * @param firstChunk The index of the first chunk to split into stripes, the chunks before it are already in
+     * @param stripes The number of stripes to split the file into
+     * @param serverPort The server's port to send the DOWNLOAD requests to
+     * @param checksum The chunk CRCs of the file, shared by every stripe, or null without checksums
+     * @param options The settings for the download
+     * @return The number of bytes received across all stripes
+     */
+    private static long downloadStripes(DatagramSocket socket, FileTransfer transfer, DownloadJournal journal, ChunkSink fileWriter,
+                                        int firstChunk, int stripes, int serverPort, FileChecksum checksum, DownloadOptions options)
+            throws InterruptedException {
+        int stripedChunks = transfer.getTotalChunks() - firstChunk;
+        ExecutorService executor = newDownloadExecutor(stripes);
+        List<Future<Long>> results = new ArrayList<>();
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            int stripeStart = firstChunk + (int) ((long) stripedChunks * stripe / stripes);
+            int stripeEnd = firstChunk + (int) ((long) stripedChunks * (stripe + 1) / stripes);
+            System.out.println("Stripe " + stripe + " of " + transfer.fileName + ": chunks " + stripeStart + " to " + (stripeEnd - 1));
+            if (stripe == 0) {
+                results.add(executor.submit(() -> downloadChunks(socket, transfer, journal, fileWriter, stripeStart, stripeEnd, checksum, options)));
+                continue;
+            }
+            results.add(executor.submit(() -> {
+                try (DatagramSocket stripeSocket = openSocket(options)) {
+                    // A stripe of a batch sends the same BATCH request, and must be given the same batch
+                    FileTransfer stripeTransfer = openSession(stripeSocket, transfer.isBatch() ? null : transfer.fileName, transfer.request,
+                            transfer.serverAddress, serverPort, options);
+                    // Every stripe must see the same file and chunk layout, or the stripes would not line up
+                    if (!stripeTransfer.fileName.equals(transfer.fileName) ||
+                            stripeTransfer.fileSize != transfer.fileSize || stripeTransfer.lastModified != transfer.lastModified ||
+                            stripeTransfer.chunkSize != transfer.chunkSize || stripeTransfer.checksummed != transfer.checksummed) {
+                        System.out.println("File " + transfer.fileName + " changed while opening stripes");
+                        closeTransfer(stripeSocket, stripeTransfer);
+                        return 0L;
+                    }
+                    long bytesReceived = downloadChunks(stripeSocket, stripeTransfer, journal, fileWriter, stripeStart, stripeEnd, checksum, options);
+                    closeTransfer(stripeSocket, stripeTransfer);
+                    return bytesReceived;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        long bytesReceived = 0;
+        for (Future<Long> result : results) {
+            try {
+                bytesReceived += result.get();
+            } catch (ExecutionException e) {
+                System.out.println("Error downloading stripe: " + e.getCause().getMessage());
+            }
+        }
+        return bytesReceived;
+    }
+
+    /**
+     * Sends the DOWNLOAD request for a file and parses the server's response
+     *
+     * @param socket The DatagramSocket to use for communication
+     * @param fileName The name of the file to download
+     * @param serverAddress The server's address to send to
+     * @param serverPort The server's port to send the DOWNLOAD request to
+     * @param options The settings for the download
+     * @return The agreed transfer
+     * @throws DownloadException If the server did not respond, rejected the request or sent an invalid response
+     */
+    private static FileTransfer requestDownload(DatagramSocket socket, String fileName, InetAddress serverAddress,
+                                                int serverPort, DownloadOptions options) throws DownloadException {
+        System.out.println("Sending file name: " + fileName);
+        return openSession(socket, fileName, "DOWNLOAD " + fileName + requestOptions(options), serverAddress, serverPort, options);
+    }
+
+    /**
+     * Sends the BATCH request for a group of files and directories and parses the server's response
+     *
+     * @param socket The DatagramSocket to use for communication
+     * @param fileNames The names of the files and directories to download
+     * @param serverAddress The server's address to send to
+     * @param serverPort The server's port to send the BATCH request to
+     * @param options The settings for the download
+     * @return The agreed transfer of the batch's stream
+     * @throws DownloadException If the server did not respond, rejected the request or sent an invalid response
+     */
+    private static FileTransfer requestBatch(DatagramSocket socket, List<String> fileNames, InetAddress serverAddress,
+                                             int serverPort, DownloadOptions options) throws DownloadException {
+        System.out.println("Sending batch of " + fileNames.size() + " names, starting with: " + fileNames.get(0));
+        return openSession(socket, null, batchRequest(fileNames, options), serverAddress, serverPort, options);
+    }
+
+    /**
+     * Builds a BATCH request: the options on the first line, then one file or directory name per line
+     *
+     * @param fileNames The names of the files and directories to download
+     * @param options The settings for the download
+     * @return The request message
+     */
+    private static String batchRequest(List<String> fileNames, DownloadOptions options) {
+        return "BATCH" + requestOptions(options) + "\n" + String.join("\n", fileNames);
+    }
+
+    /**
+     * Builds the options that follow the file name of a DOWNLOAD request or BATCH on the first line of a BATCH request
+     * Asks for the file's last-modified time, which the journal needs to resume the download, for a chunk size if one was given or checksums are on,
+     * for checksums unless they were turned off, for compression if it was asked for and for binary framing of the data path unless the text protocol was requested
+     *
+     * @param options The settings for the download
+     * @return The options, each starting with a space
+     */
+    private static String requestOptions(DownloadOptions options) {
+        String requestOptions = " MTIME";
+        if (requestedChunkSize(options) > 0) {
+            requestOptions += " CHUNK " + requestedChunkSize(options);
+        }
+        if (options.checksum) {
+            requestOptions += " CHECKSUM CRC32C";
+        }
+        if (options.compress) {
+            requestOptions += " COMPRESS DEFLATE";
+        }
+        if (!options.textOnly) {
+            requestOptions += " MODE BINARY";
+        }
+        return requestOptions;
+    }
+
+    /**
+     * With checksums the chunk size is always asked for, as the server lines the segments of its whole-file digest up with the session's
+     * chunks, and a server not told the chunk size of a text session would take the largest that fits a datagram
+     *
+     * @param options The settings for the download
+     * @return The chunk size to ask for, or 0 to leave it to the server
+     */
+    private static int requestedChunkSize(DownloadOptions options) {
+        if (options.chunkSize > 0 || !options.checksum) {
+            return options.chunkSize;
+        }
+        return options.textOnly ? CHUNK_SIZE : BINARY_CHUNK_SIZE;
+    }
+
+    /**
+     * Sends a DOWNLOAD or BATCH request and parses the server's response into the transfer it agrees
+     *
+     * @param socket The DatagramSocket to use for communication
+     * @param fileName The name of the file to download, or null for a batch, which the server names in its response
+     * @param requestMessage The request to send
+     * @param serverAddress The server's address to send to
+     * @param serverPort The server's port to send the request to
+     * @param options The settings for the download
+     * @return The agreed transfer
+     * @throws DownloadException If the server did not respond, rejected the request or sent an invalid response
+     */
+    private static FileTransfer openSession(DatagramSocket socket, String fileName, String requestMessage, InetAddress serverAddress,
+                                            int serverPort, DownloadOptions options) throws DownloadException {
+        // A BATCH request is described by its first line, not the list of names that follows
+        String description = fileName != null ? requestMessage : requestMessage.substring(0, requestMessage.indexOf('\n'));
+        String requestType = fileName != null ? "DOWNLOAD" : "BATCH";
+        String response = null;
+        int currentTimeout = TIMEOUT;
+        double handshakeRtt = -1;
+
+        // Retry sending the request up to MAX_RETRIES times if no response is received
+        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+            long sentTime = System.nanoTime();
+            byte[] responseData = sendReceiveRequest(socket, requestMessage.getBytes(), description, serverAddress, serverPort, currentTimeout);
+            response = responseData != null ? new String(responseData) : null;
+            if (response != null) {
+                // The first round trip seeds the session's RTT estimate, unless the request had to be resent
+                handshakeRtt = attempt == 0 ? (System.nanoTime() - sentTime) / 1e6 : -1;
+                break;
+            } 
+            System.out.println("Retrying " + requestType + " Attempt for " + (fileName != null ? fileName : description) + " Timeout:" + currentTimeout +
+                    "ms Attempt " + (attempt + 1) + "/" + MAX_RETRIES);
+            currentTimeout *= 2;
+        }
+
+        // If no response is received, give up on this file
+        if (response == null) {
+            System.out.println("Failed to receive response after " + MAX_RETRIES + " attempts");
+            throw new DownloadException(DownloadStatus.FAILED);
+        }
+
+        // Split the response into parts to check
+        String[] responseParts = response.split(" ");
+        if (responseParts[0].equals("ERR") && responseParts.length >= 3) {
+            // Print an error message if the server responds with an error
+            System.out.println("Error: " + responseParts[1] + " " + responseParts[2]);
+            throw new DownloadException(responseParts[2].equals("NOT_FOUND") ? DownloadStatus.NOT_FOUND : DownloadStatus.FAILED);
+        }
+        // Check if the server responds with OK SIZE and PORT, optionally followed by MTIME <millis>, MANIFEST <bytes> for a batch,
+        // the agreed CHUNK <bytes>
+        // CHECKSUM CRC32C if the server sends the CRC32C of every chunk and of the whole file, which a server without checksums leaves out,
+        // and COMPRESS DEFLATE if the server may send chunks compressed
+        // A server that accepted binary framing adds MODE BINARY SESSION <id>, otherwise the text protocol is used
+        boolean validResponse = responseParts.length >= 6 && responseParts[0].equals("OK") &&
+                responseParts[2].equals("SIZE") && responseParts[4].equals("PORT");
+        int next = 6;
+        long lastModified = -1;
+        if (validResponse && responseParts.length >= next + 2 && responseParts[next].equals("MTIME")) {
+            lastModified = Long.parseLong(responseParts[next + 1]);
+            next += 2;
+        }
+        long manifestSize = -1;
+        if (validResponse && responseParts.length >= next + 2 && responseParts[next].equals("MANIFEST")) {
+            manifestSize = Long.parseLong(responseParts[next + 1]);
+            next += 2;
+        }
+        int chunkSize = -1;
+        if (validResponse && responseParts.length >= next + 2 && responseParts[next].equals("CHUNK")) {
+            chunkSize = Integer.parseInt(responseParts[next + 1]);
+            next += 2;
+        }
+        boolean checksummed = false;
+        if (validResponse && responseParts.length >= next + 2 && responseParts[next].equals("CHECKSUM") &&
+                responseParts[next + 1].equals("CRC32C")) {
+            checksummed = true;
+            next += 2;
+        }
+        boolean compressed = false;
+        if (validResponse && responseParts.length >= next + 2 && responseParts[next].equals("COMPRESS") &&
+                responseParts[next + 1].equals("DEFLATE")) {
+            compressed = true;
+            next += 2;
+        }
+        boolean binaryResponse = validResponse && responseParts.length == next + 4 && responseParts[next].equals("MODE") &&
+                responseParts[next + 1].equals("BINARY") && responseParts[next + 2].equals("SESSION");
+        if (!validResponse || !(responseParts.length == next || binaryResponse) || (requestedChunkSize(options) > 0 && chunkSize < 1) ||
+                (fileName == null) != (manifestSize >= 0) || manifestSize > Integer.MAX_VALUE) {
+            System.out.println("Invalid response from server");
+            throw new DownloadException(DownloadStatus.FAILED);
+        }
+
+        // Parse the file size and client handler port from the response, a batch's stream is served under the name it is given
+        String sessionName = fileName != null ? fileName : responseParts[1];
+        long fileSize = Long.parseLong(responseParts[3]);
+        int clientHandlerPort = Integer.parseInt(responseParts[5]);
+        FileTransfer transfer = binaryResponse
+                ? new FileTransfer(sessionName, fileSize, lastModified, serverAddress, clientHandlerPort, Integer.parseInt(responseParts[next + 3]),
+                        chunkSize > 0 ? chunkSize : BINARY_CHUNK_SIZE, checksummed, compressed, manifestSize, requestMessage)
+                : new FileTransfer(sessionName, fileSize, lastModified, serverAddress, clientHandlerPort, -1,
+                        chunkSize > 0 ? chunkSize : CHUNK_SIZE, checksummed, compressed, manifestSize, requestMessage);
+        if (handshakeRtt >= 0) {
+            transfer.rtt.sample(handshakeRtt);
+        }
+        return transfer;
+    }
+
+    /**
+     * Asks the client handler for the CRC32C of the whole file, which the server computes while the file downloads
+     * While the server replies that it is still computing it, the request is sent again after a pause, for as long
+     * as the server keeps replying, so a large file on a slow disk is still verified. Unanswered requests and replies
+     * that cannot be parsed are retried up to MAX_RETRIES times in a row.
+     *
+     * @param socket The DatagramSocket to use for communication
+     * @param transfer The transfer whose whole-file CRC32C to ask for
+     * @return The CRC32C as an unsigned value, or NO_DIGEST if the server could not compute it
+     * @throws DownloadException If the server stopped replying
+     */
+    private static long requestDigest(DatagramSocket socket, FileTransfer transfer) throws DownloadException {
+        String fileName = transfer.fileName;
+        String digestMessage = "FILE " + fileName + " DIGEST";
+        byte[] digestData = transfer.isBinary()
+                ? ByteBuffer.allocate(BINARY_CLOSE_SIZE).put(OP_DIGEST).putInt(transfer.sessionId).array()
+                : digestMessage.getBytes();
+
+        int currentTimeout = transfer.rtt.getRto();
+        int attempt = 0;
+        while (attempt < MAX_RETRIES) {
+            byte[] digestResponse = sendReceiveRequest(socket, digestData, digestMessage, transfer.serverAddress, transfer.clientHandlerPort, currentTimeout);
+            if (digestResponse == null) {
+                attempt++;
+                System.out.println("Retrying FILE DIGEST Attempt for " + fileName + " Timeout:" + currentTimeout + "ms Attempt " + attempt + "/" + MAX_RETRIES);
+                currentTimeout *= 2;
+                continue;
+            }
+
+            // A binary reply carries a status byte and the CRC32C, a text reply READY <hex>, PENDING or FAILED
+            byte status;
+            long crc = 0;
+            if (transfer.isBinary()) {
+                ByteBuffer reply = ByteBuffer.wrap(digestResponse);
+                if (digestResponse.length != BINARY_DIGEST_OK_SIZE || reply.get() != OP_DIGEST_OK || reply.getInt() != transfer.sessionId) {
+                    attempt++;
+                    continue;
+                }
+                status = reply.get();
+                crc = Integer.toUnsignedLong(reply.getInt());
+            } else {
+                String[] digestResponseParts = new String(digestResponse).split(" ");
+                if (digestResponseParts.length < 4 || !digestResponseParts[0].equals("FILE") || !digestResponseParts[1].equals(fileName) ||
+                        !digestResponseParts[2].equals("DIGEST_OK")) {
+                    attempt++;
                     continue;
                 }
+                status = digestResponseParts[3].equals("READY") ? DIGEST_READY : digestResponseParts[3].equals("PENDING") ? DIGEST_PENDING : -1;
+                try {
+                    crc = status == DIGEST_READY ? Long.parseLong(digestResponseParts[4], 16) : 0;
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    attempt++;
+                    continue;
+                }
+            }
 
-                // Split the response into parts to check
-                String[] responseParts = response.split(" ");
-                // Check if the server responds with OK and the expected number of parts
-                if (responseParts[0].equals("OK") && responseParts.length == 6) {
-                    // Parse the file size and client handler port from the response
-                    long fileSize = Long.parseLong(responseParts[3]);
-                    int clientHandlerPort = Integer.parseInt(responseParts[5]);
-
-                    System.out.println("File name: " + fileName);
-                    System.out.println("File size: " + fileSize);
-                    System.out.println("Client handler port: " + clientHandlerPort);
-                    
-                    long bytesReceived = 0;
-                    // Open a FileOutputStream to write the received data
-                    try (FileOutputStream fileWriter = new FileOutputStream(fileName)) {
-                        // Download the file in chunks of 1000 bytes
-                        while (bytesReceived < fileSize) {
-                            long endBytes = Math.min(bytesReceived + 999, fileSize - 1);
-                            System.out.println("Requesting bytes from " + bytesReceived + " to " + endBytes);
-
-                            // Prepare the request message for the file data
-                            String fileGetMessage = "FILE " + fileName + " GET START " + bytesReceived + " END " + endBytes;
-                            String fileDataResponse = null;
-                            currentTimeout = TIMEOUT;
-
-                            // Retry sending the file data request up to MAX_RETRIES times
-                            for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
-                                fileDataResponse = sendReceiveRequest(clientSocket, fileGetMessage, serverAddress, clientHandlerPort, currentTimeout);
-                                if (fileDataResponse != null) {
-                                    break;
-                                } 
-                                System.out.println("Retrying FILE GET Attempt for " + fileName + " Timeout:" + currentTimeout + "ms Attempt " + (attempt + 1) + "/" + MAX_RETRIES);
-                                currentTimeout *= 2;
-                            }
+            // The server answered, so the retries start over, and a pending digest is asked for again after a pause
+            attempt = 0;
+            currentTimeout = transfer.rtt.getRto();
+            if (status == DIGEST_READY) {
+                return crc;
+            }
+            if (status != DIGEST_PENDING) {
+                System.out.println("The server could not compute the CRC32C of " + fileName + ", only its chunks were verified");
+                return NO_DIGEST;
+            }
+            try {
+                Thread.sleep(TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DownloadException(DownloadStatus.FAILED);
+            }
+        }
+        System.out.println("Failed to receive response after " + MAX_RETRIES + " attempts");
+        throw new DownloadException(DownloadStatus.FAILED);
+    }
 
-                            // If no response is received stop downloading the file
-                            if (fileDataResponse == null) {
-                                System.out.println("Failed to receive response after " + MAX_RETRIES + " attempts");
-                                break;
-                            }
-                            
-                            // Split the file data response into parts to check
-                            String[] fileDataResponseParts = fileDataResponse.split(" ", 9);
-                            String base64DataString = null;
-                            
-                            // Check if the response is valid and contains the expected parts
-                            if (fileDataResponseParts[0].equals("FILE") && fileDataResponseParts[1].equals(fileName) &&
-                                    fileDataResponseParts[2].equals("OK") && fileDataResponseParts[3].equals("START") &&
-                                    fileDataResponseParts[5].equals("END") && fileDataResponseParts[7].equals("DATA")) {
-                                
-                                // Parse the start and end byte positions and the base64 encoded data
-                                long startByte = Long.parseLong(fileDataResponseParts[4]);
-                                long endByte = Long.parseLong(fileDataResponseParts[6]);
-                                bytesReceived += (endByte - startByte + 1);
-                                base64DataString = fileDataResponseParts[8];
+    /**
+     * Checks a complete download against the server's CRC32C of the whole file, downloading again the chunks that differ
+     * Every chunk passed its own check, so a different CRC32C means part of a resumed file was damaged on disk, or the file
+     * changed on the server without a new size or last-modified time. The CRC32C of every segment of the file, combined
+     * from the chunk CRCs, is then compared with the server's, and the chunks of the segments that differ are downloaded
+     * again on the transfer's session, up to REPAIR_ROUNDS times. Chunks that still differ are dropped from the journal,
+     * so the next run downloads only them rather than the whole file.
+     *
+     * @param socket The DatagramSocket of the transfer's session
+     * @param transfer The transfer to verify, every chunk of which has been received
+     * @param journal The record of the chunks received
+     * @param fileWriter Where the chunks of the file are written
+     * @param checksum The chunk CRCs of the file, every chunk recorded
+     * @param options The settings for the download
+     * @return The CRC32C of the whole file, which the download matches, or NO_DIGEST if the server could not compute it
+     * @throws DownloadException If the server stopped replying, or the download still differs from the server's file
+     */
+    private static long verifyDownload(DatagramSocket socket, FileTransfer transfer, DownloadJournal journal, ChunkSink fileWriter,
+                                       FileChecksum checksum, DownloadOptions options) throws DownloadException, IOException {
+        String description = (transfer.isBatch() ? "Batch " : "File ") + transfer.fileName;
+        long fileChecksum;
+        try {
+            fileChecksum = requestDigest(socket, transfer);
+        } catch (DownloadException e) {
+            // Every chunk is in and the journal says so, so the next run only has to ask for the CRC32C again
+            System.out.println(description + " could not be verified, the server did not send its CRC32C");
+            throw e;
+        }
+        int totalChunks = transfer.getTotalChunks();
+        for (int round = 0; fileChecksum != NO_DIGEST && checksum.getValue() != (int) fileChecksum; round++) {
+            System.out.println(description + " failed verification: CRC32C " + String.format("%08x", checksum.getValue()) +
+                    ", the server reported " + String.format("%08x", fileChecksum));
+            BitSet differingChunks = findDifferingChunks(socket, transfer, checksum);
+            for (int chunk = differingChunks.nextSetBit(0); chunk >= 0; chunk = differingChunks.nextSetBit(chunk + 1)) {
+                journal.markMissing(chunk);
+            }
+            if (round == REPAIR_ROUNDS || differingChunks.isEmpty()) {
+                throw new DownloadException(DownloadStatus.FAILED);
+            }
+            System.out.println("Downloading the " + differingChunks.cardinality() + " chunks of " + transfer.fileName +
+                    " that differ from the server's again");
+            downloadChunks(socket, transfer, journal, fileWriter, 0, totalChunks, checksum, options);
+            if (journal.countMissingChunks(0, totalChunks) > 0) {
+                System.out.println(description + " incomplete, the chunks downloaded again did not all arrive");
+                throw new DownloadException(DownloadStatus.FAILED);
+            }
+        }
+        return fileChecksum;
+    }
+
+    /**
+     * Asks the client handler for the CRC32C of every segment of the file and compares them with the chunk CRCs
+     * A segment is a whole number of chunks, so its CRC32C is combined from theirs without reading the file.
+     *
+     * @param socket The DatagramSocket of the transfer's session
+     * @param transfer The transfer whose segments to compare
+     * @param checksum The chunk CRCs of the file, every chunk recorded
+     * @return The chunks of every segment whose CRC32C differs from the server's
+     * @throws DownloadException If the server stopped replying or sent segments that do not line up with the chunks
+     */
+    private static BitSet findDifferingChunks(DatagramSocket socket, FileTransfer transfer, FileChecksum checksum) throws DownloadException {
+        int totalChunks = transfer.getTotalChunks();
+        BitSet differingChunks = new BitSet(totalChunks);
+        int segment = 0;
+        long firstChunk = 0;
+        while (firstChunk < totalChunks) {
+            SegmentsResponse response = requestSegments(socket, transfer, segment);
+            if (response.crcs.length == 0 || response.segmentSize % transfer.chunkSize != 0) {
+                System.out.println("Invalid response from server");
+                throw new DownloadException(DownloadStatus.FAILED);
+            }
+            int segmentChunks = response.segmentSize / transfer.chunkSize;
+            for (int i = 0; i < response.crcs.length && firstChunk < totalChunks; i++, segment++) {
+                int endChunk = (int) Math.min(totalChunks, firstChunk + segmentChunks);
+                if (checksum.getValue((int) firstChunk, endChunk) != response.crcs[i]) {
+                    differingChunks.set((int) firstChunk, endChunk);
+                }
+                firstChunk = endChunk;
+            }
+        }
+        return differingChunks;
+    }
+
+    /**
+     * Sends a SEGMENTS request for the CRC32C of the segments of the file from a first segment
+     * Only sent once the whole-file CRC32C is ready, as the server computes both in the same pass.
+     * Unanswered requests and replies that cannot be parsed are retried up to MAX_RETRIES times.
+     *
+     * @param socket The DatagramSocket to use for communication
+     * @param transfer The transfer whose segments to ask for
+     * @param firstSegment The index of the first segment to ask for
+     * @return The reply, holding the CRC32C of as many segments from the first one as the server sends at once
+     * @throws DownloadException If the server stopped replying or no longer has the segments
+     */
+    private static SegmentsResponse requestSegments(DatagramSocket socket, FileTransfer transfer, int firstSegment) throws DownloadException {
+        String fileName = transfer.fileName;
+        String segmentsMessage = "FILE " + fileName + " SEGMENTS " + firstSegment;
+        byte[] segmentsData = transfer.isBinary()
+                ? ByteBuffer.allocate(BINARY_SEGMENTS_SIZE).put(OP_SEGMENTS).putInt(transfer.sessionId).putInt(firstSegment).array()
+                : segmentsMessage.getBytes();
+
+        int currentTimeout = transfer.rtt.getRto();
+        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+            byte[] segmentsResponse = sendReceiveRequest(socket, segmentsData, segmentsMessage, transfer.serverAddress, transfer.clientHandlerPort, currentTimeout);
+            if (segmentsResponse == null) {
+                System.out.println("Retrying FILE SEGMENTS Attempt for " + fileName + " Timeout:" + currentTimeout + "ms Attempt " + (attempt + 1) + "/" + MAX_RETRIES);
+                currentTimeout *= 2;
+                continue;
+            }
+            SegmentsResponse response = transfer.isBinary()
+                    ? SegmentsResponse.parseBinary(ByteBuffer.wrap(segmentsResponse), transfer.sessionId)
+                    : SegmentsResponse.parseText(new String(segmentsResponse), fileName);
+            if (response == null || (response.status == DIGEST_READY && response.firstSegment != firstSegment)) {
+                continue;
+            }
+            if (response.status != DIGEST_READY) {
+                System.out.println("The server could not send the segments of " + fileName);
+                throw new DownloadException(DownloadStatus.FAILED);
+            }
+            return response;
+        }
+        System.out.println("Failed to receive response after " + MAX_RETRIES + " attempts");
+        throw new DownloadException(DownloadStatus.FAILED);
+    }
+
+    /**
+     * Sends the CLOSE request for a transfer and checks the server's confirmation
+     *
+     * @param socket The DatagramSocket to use for communication
+     * @param transfer The transfer to close
+     * @return True if the server confirmed the close
+     */
+    private static boolean closeTransfer(DatagramSocket socket, FileTransfer transfer) {
+        String fileName = transfer.fileName;
+        String closeMessage = "FILE " + fileName + " CLOSE";
+        byte[] closeData = transfer.isBinary()
+                ? ByteBuffer.allocate(BINARY_CLOSE_SIZE).put(OP_CLOSE).putInt(transfer.sessionId).array()
+                : closeMessage.getBytes();
+
+        byte[] closeResponse = null;
+        int currentTimeout = transfer.rtt.getRto();
+        // Send a request to close the file after downloading up to MAX_RETRIES times
+        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+            closeResponse = sendReceiveRequest(socket, closeData, closeMessage, transfer.serverAddress, transfer.clientHandlerPort, currentTimeout);
+            if (closeResponse != null) {
+                break;
+            } 
+            System.out.println("Retrying FILE CLOSE Attempt for " + fileName + " Timeout:" + currentTimeout + "ms Attempt " + (attempt + 1) + "/" + MAX_RETRIES);
+            currentTimeout *= 2;
+        }
+
+        if (closeResponse == null) {
+            System.out.println("Failed to receive response after " + MAX_RETRIES + " attempts");
+            return false;
+        }
+
+        // Check if the close response was successful
+        boolean closed;
+        if (transfer.isBinary()) {
+            closed = closeResponse.length == BINARY_CLOSE_SIZE && closeResponse[0] == OP_CLOSE_OK &&
+                    ByteBuffer.wrap(closeResponse, 1, 4).getInt() == transfer.sessionId;
+        } else {
+            System.out.println("Received close response: " + new String(closeResponse));
+            String[] closeResponseParts = new String(closeResponse).split(" ");
+            closed = closeResponseParts.length == 3 && closeResponseParts[0].equals("FILE") &&
+                    closeResponseParts[1].equals(fileName) && closeResponseParts[2].equals("CLOSE_OK");
+        }
+        if (closed) {
+            System.out.println("FILE " + fileName + " CLOSED_OK");
+        } else {
+            System.out.println("Error: Unexpected response from server");
+        }
+        return closed;
+    }
+
+    /**
+     * Opens a socket for one session
+     * Simulated delay, jitter, loss or bandwidth wraps the socket so packets are held back or dropped
+     * Otherwise the socket is backed by a DatagramChannel, so binary chunks can be received with a ChunkChannel,
+     * unless --copy-receive asks for a plain socket
+     *
+     * @param options The settings for the download
+     * @return The new socket
+     */
+    private static DatagramSocket openSocket(DownloadOptions options) throws IOException {
+        if (options.simulatedDelay > 0 || options.simulatedJitter > 0 || options.simulatedLoss > 0 || options.simulatedBandwidth > 0) {
+            return new SimulatedLinkSocket(options.simulatedDelay, options.simulatedJitter, options.simulatedLoss, options.simulatedBandwidth);
+        }
+        if (options.copyReceive) {
+            return new DatagramSocket();
+        }
+        return DatagramChannel.open().socket();
+    }
+
+    /**
+     * Creates the executor that runs the file downloads
+     * Uses a virtual thread per download when the JDK supports them (Java 21 and later),
+     * otherwise a fixed pool of platform threads, one per parallel download
+     *
+     * @param parallelDownloads The maximum number of files downloaded at the same time
+     * @return The executor for the downloads
+     */
+    private static ExecutorService newDownloadExecutor(int parallelDownloads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(parallelDownloads);
+        }
+    }
+
+    /**
+     * Downloads a range of chunks of a file from its client handler using a sliding window of chunk requests.
+     * The number of requests in flight follows the session's congestion window, up to the --window size,
+     * and each request has its own retransmission timer set from the session's RTT estimate.
+     * Responses are accepted in any order, matched to their request by the START offset
+     * and written straight to that offset in the file.
+     * Binary sessions on a channel-backed socket send and receive through a ChunkChannel, so no chunk allocates on the heap.
+     * Chunks the journal already holds are skipped, and every chunk written is recorded in it.
+     * With checksums a chunk whose CRC32C does not match is dropped and only that chunk is requested again, at once and
+     * without backing off, as a damaged response shows the link is delivering rather than congested.
+     * Compressed chunks are inflated on the stripe's own ChunkInflater before they are written.
+     * The download gives up only after MAX_RETRIES timeouts in a row, and at least MIN_GIVE_UP_TIME, without any chunk arriving.
+     *
+     * @param socket The DatagramSocket to use for communication
+     * @param transfer The file being downloaded and how to reach its client handler
+     * @param journal The record of the chunks already received
+     * @param fileWriter Where the chunks of the file are written
+     * @param firstChunk The index of the first chunk to download
+     * @param endChunk The index after the last chunk to download
+     * @param checksum The chunk CRCs of the file to verify and record every chunk in, or null without checksums
+     * @param options The settings for the download
+     * @return The number of bytes received, less than the size of the range if the download failed
+     */
+    private static long downloadChunks(DatagramSocket socket, FileTransfer transfer, DownloadJournal journal, ChunkSink fileWriter,
+                                       int firstChunk, int endChunk, FileChecksum checksum, DownloadOptions options) throws IOException {
+        String fileName = transfer.fileName;
+        int windowSize = options.windowSize;
+        int chunksMissing = journal.countMissingChunks(firstChunk, endChunk);
+        BitSet receivedChunks = new BitSet(endChunk);
+        CongestionWindow congestionWindow = new CongestionWindow(windowSize);
+        // The requests currently in flight and their retransmission state, never more than a window of them
+        InFlightChunks inFlight = new InFlightChunks(windowSize);
+        int nextChunk = journal.nextMissingChunk(firstChunk, endChunk);
+        int chunksReceived = 0;
+        int consecutiveTimeouts = 0;
+        long lastProgress = System.currentTimeMillis();
+        long bytesReceived = 0;
+        // Size the receive buffer to the largest response, and the socket's buffer to a full window of them
+        byte[] receiveBuffer = new byte[transfer.getMaxPacketSize()];
+        socket.setReceiveBufferSize(Math.max(socket.getReceiveBufferSize(), windowSize * receiveBuffer.length));
+        ChunkInflater inflater = transfer.isCompressed() ? new ChunkInflater(transfer.chunkSize) : null;
+
+        try (ChunkChannel chunkChannel = transfer.isBinary() ? ChunkChannel.open(socket, transfer) : null) {
+            while (chunksReceived < chunksMissing) {
+                // Fill the congestion window with requests for missing chunks that have not been requested yet
+                while (inFlight.size() < congestionWindow.getWindow() && nextChunk < endChunk) {
+                    if (options.verbose) {
+                        System.out.println("Requesting bytes from " + (long) nextChunk * transfer.chunkSize + " to " +
+                                ((long) nextChunk * transfer.chunkSize + transfer.getChunkLength(nextChunk) - 1));
+                    }
+                    sendChunkRequest(socket, chunkChannel, transfer, nextChunk);
+                    inFlight.add(nextChunk, System.nanoTime(), System.currentTimeMillis() + transfer.rtt.getRto());
+                    nextChunk = journal.nextMissingChunk(nextChunk + 1, endChunk);
+                }
+
+                // Wait for a response until the earliest retransmission timer expires
+                long earliestDeadline = Long.MAX_VALUE;
+                for (int i = 0; i < inFlight.size(); i++) {
+                    earliestDeadline = Math.min(earliestDeadline, inFlight.getDeadline(i));
+                }
+                long wait = earliestDeadline - System.currentTimeMillis();
+                if (wait > 0) {
+                    try {
+                        int chunk;
+                        if (chunkChannel != null) {
+                            ByteBuffer response = chunkChannel.receive(wait);
+                            chunk = isDataPacket(response.get(0)) ? handleChunkResponse(ChunkResponse.parseBinary(response, checksum != null, inflater != null),
+                                    transfer, fileWriter, receivedChunks, inFlight, checksum, inflater) : -1;
+                        } else {
+                            DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+                            socket.setSoTimeout((int) wait);
+                            socket.receive(receivePacket);
+                            if (transfer.isBinary() && receivePacket.getLength() > 0 && isDataPacket(receiveBuffer[0])) {
+                                ByteBuffer response = ByteBuffer.wrap(receivePacket.getData(), receivePacket.getOffset(), receivePacket.getLength());
+                                chunk = handleChunkResponse(ChunkResponse.parseBinary(response, checksum != null, inflater != null),
+                                        transfer, fileWriter, receivedChunks, inFlight, checksum, inflater);
                             } else {
-                                System.out.println("Invalid response from server");
+                                String fileDataResponse = new String(receivePacket.getData(), 0, receivePacket.getLength());
+                                chunk = handleChunkResponse(ChunkResponse.parseText(fileDataResponse, checksum != null, inflater != null),
+                                        transfer, fileWriter, receivedChunks, inFlight, checksum, inflater);
                             }
-                            
-                            // Decode the base64 data string and write it to the file
-                            if (base64DataString != null) {
-                                byte[] fileData = Base64.getDecoder().decode(base64DataString);
-                                System.out.println("File data received: " + fileData.length + " bytes");
-
-                                fileWriter.write(fileData);
-                                System.out.println("Written " + fileData.length + " bytes to file: " + fileName);
-                                System.out.println("Total bytes received: " + bytesReceived);
-                            } else {
-                                System.out.println("No file data received");
+                        }
+                        int corruptChunk = inFlight.pollCorrupt();
+                        if (corruptChunk >= 0) {
+                            sendChunkRequest(socket, chunkChannel, transfer, corruptChunk);
+                            inFlight.retransmitted(inFlight.indexOf(corruptChunk), System.currentTimeMillis() + transfer.rtt.getRto());
+                        }
+                        if (chunk >= 0) {
+                            if (options.verbose) {
+                                System.out.println("Written " + transfer.getChunkLength(chunk) + " bytes to file: " + fileName +
+                                        " at offset " + (long) chunk * transfer.chunkSize);
                             }
+                            // Only responses to requests sent once give an unambiguous round trip time
+                            if (inFlight.getRemovedAttempts() == 1) {
+                                transfer.rtt.sample((System.nanoTime() - inFlight.getRemovedSentTime()) / 1e6);
+                            }
+                            journal.markReceived(chunk);
+                            journal.checkpoint(fileWriter, false);
+                            congestionWindow.onSuccess();
+                            consecutiveTimeouts = 0;
+                            lastProgress = System.currentTimeMillis();
+                            chunksReceived++;
+                            bytesReceived += transfer.getChunkLength(chunk);
                         }
+                        continue;
+                    } catch (SocketTimeoutException e) {
+                        // Fall through to retransmit the requests whose timers expired
                     }
-                    System.out.println("File " + fileName + " downloaded successfully");
-                    String closeMessage = "FILE " + fileName + " CLOSE";
-
-                    String closeResponse = null;
-                    currentTimeout = TIMEOUT;
-                    // Send a request to close the file after downloading up to MAX_RETRIES times
-                    for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
-                        closeResponse = sendReceiveRequest(clientSocket, closeMessage, serverAddress, clientHandlerPort, currentTimeout);
-                        if (closeResponse != null) {
-                            break;
-                        } 
-                        System.out.println("Retrying FILE CLOSE Attempt for " + fileName + " Timeout:" + currentTimeout + "ms Attempt " + (attempt + 1) + "/" + MAX_RETRIES);
-                        currentTimeout *= 2;
-                    }
+                }
+
+                // The timer expired: back off the timeout and shrink the window once for this loss event
+                long now = System.currentTimeMillis();
+                consecutiveTimeouts++;
+                if (consecutiveTimeouts > MAX_RETRIES && now - lastProgress >= MIN_GIVE_UP_TIME) {
+                    System.out.println("Failed to receive response after " + MAX_RETRIES + " attempts");
+                    return bytesReceived;
+                }
+                transfer.rtt.backoff();
+                congestionWindow.onLoss(now, transfer.rtt.getSrtt());
 
-                    if (closeResponse == null) {
-                        System.out.println("Failed to receive response after " + MAX_RETRIES + " attempts");
+                // Retransmit every request whose timer has expired with the backed off timeout
+                for (int i = 0; i < inFlight.size(); i++) {
+                    int chunk = inFlight.get(i);
+                    if (inFlight.getDeadline(i) > now) {
                         continue;
                     }
+                    System.out.println("Retrying FILE GET Attempt for " + fileName + " Timeout:" + transfer.rtt.getRto() + "ms Attempt " + (inFlight.getAttempts(i) + 1));
+                    sendChunkRequest(socket, chunkChannel, transfer, chunk);
+                    inFlight.retransmitted(i, now + transfer.rtt.getRto());
+                }
+            }
+        }
+        return bytesReceived;
+    }
 
-                    System.out.println("Received close response: " + closeResponse);
-                    String[] closeResponseParts = closeResponse.split(" ");
-                    
-                    // Check if the close response was successful
-                    if (closeResponseParts[0].equals("FILE") && closeResponseParts[1].equals(fileName) && closeResponseParts[2].equals("CLOSE_OK")) {
-                        System.out.println("FILE " + fileName + " CLOSED_OK");
-                    } else {
-                        System.out.println("Error: Unexpected response from server");
-                    }
-                } else if (responseParts[0].equals("ERR")) {
-                    // Print an error message if the server responds with an error
-                    System.out.println("Error: " + responseParts[1] + " " + responseParts[2]);
-                } else {
-                    System.out.println("Invalid response from server");
+    /**
+     * Sends a request for a single chunk of the file, as a binary GET packet
+     * when binary framing was negotiated or as a FILE GET message otherwise
+     *
+     * @param socket The DatagramSocket to use for communication
+     * @param chunkChannel The session's ChunkChannel to send binary requests on, or null to send on the socket
+     * @param transfer The file being downloaded and how to reach its client handler
+     * @param chunk The index of the chunk to request
+     */
+    private static void sendChunkRequest(DatagramSocket socket, ChunkChannel chunkChannel, FileTransfer transfer, int chunk) throws IOException {
+        long startByte = (long) chunk * transfer.chunkSize;
+        long endByte = Math.min(startByte + transfer.chunkSize - 1, transfer.fileSize - 1);
+        if (chunkChannel != null) {
+            chunkChannel.sendGet(startByte, (int) (endByte - startByte + 1));
+            return;
+        }
+
+        byte[] sendData;
+        if (transfer.isBinary()) {
+            sendData = ByteBuffer.allocate(BINARY_HEADER_SIZE)
+                    .put(OP_GET)
+                    .putInt(transfer.sessionId)
+                    .putLong(startByte)
+                    .putInt((int) (endByte - startByte + 1))
+                    .array();
+        } else {
+            sendData = ("FILE " + transfer.fileName + " GET START " + startByte + " END " + endByte).getBytes();
+        }
+        socket.send(new DatagramPacket(sendData, sendData.length, transfer.serverAddress, transfer.clientHandlerPort));
+    }
+
+    /**
+     * Checks a chunk response and writes its data to the file at its offset.
+     * Responses for chunks that are not in flight, such as duplicates of retransmitted requests, are ignored.
+     * With checksums, a response that does not match the CRC32C it carries, of its data followed by its header fields, is dropped.
+     * A chunk sent compressed carries the CRC32C of its compressed bytes, and is inflated once that has been verified.
+     *
+     * @param response The parsed response, or null if it could not be parsed
+     * @param transfer The file being downloaded
+     * @param fileWriter Where the chunks of the file are written
+     * @param receivedChunks The chunks that have already been written
+     * @param inFlight The chunks that have been requested but not received
+     * @param checksum The chunk CRCs of the file, or null without checksums
+     * @param inflater The inflater for compressed chunks, or null without compression
+     * @return The index of the chunk written to the file, or -1 if the response was not used
+     */
+    private static int handleChunkResponse(ChunkResponse response, FileTransfer transfer, ChunkSink fileWriter,
+                                           BitSet receivedChunks, InFlightChunks inFlight, FileChecksum checksum,
+                                           ChunkInflater inflater) throws IOException {
+        // A text response names the file of the session, a binary one carries its session id
+        if (response == null || (response.fileName != null ? !response.fileName.equals(transfer.fileName) : response.sessionId != transfer.sessionId)) {
+            System.out.println("Invalid response from server");
+            return -1;
+        }
+        long startByte = response.startByte;
+        long endByte = response.endByte;
+        ByteBuffer data = response.data;
+        int payloadCrc = checksum != null ? checksum.compute(data) : 0;
+        if (checksum != null && checksum.extend(response.header) != response.expectedCrc) {
+            rejectCorruptChunk(transfer, startByte, endByte, inFlight);
+            return -1;
+        }
+        if (response.compressed) {
+            data = endByte >= startByte && endByte - startByte < transfer.chunkSize
+                    ? inflater.inflate(data, (int) (endByte - startByte + 1)) : null;
+            if (data == null) {
+                System.out.println("Invalid response from server");
+                return -1;
+            }
+        }
+
+        // Match the response to its chunk and write the data to the file at its offset
+        int chunk = acceptChunk(transfer, startByte, receivedChunks, inFlight);
+        if (chunk < 0) {
+            System.out.println("Ignoring duplicate response for bytes " + startByte + " to " + endByte);
+            return -1;
+        }
+        if (checksum != null) {
+            checksum.record(chunk, response.compressed ? checksum.compute(data) : payloadCrc);
+        }
+        writeChunk(fileWriter, data, startByte);
+        return chunk;
+    }
+
+    /**
+     * @return True if the opcode is that of a binary DATA packet, compressed or not
+     */
+    private static boolean isDataPacket(byte opcode) {
+        return opcode == OP_DATA || opcode == OP_DATA_DEFLATE;
+    }
+
+    /**
+     * Matches a response to an in flight chunk by its start offset and marks the chunk as received.
+     * Responses for chunks that are not in flight, such as duplicates of retransmitted requests, are rejected.
+     *
+     * @param transfer The file being downloaded
+     * @param startByte The start offset of the response
+     * @param receivedChunks The chunks that have already been written
+     * @param inFlight The chunks that have been requested but not received
+     * @return The index of the chunk, or -1 if the response is not for a chunk that is still in flight
+     */
+    private static int acceptChunk(FileTransfer transfer, long startByte, BitSet receivedChunks, InFlightChunks inFlight) {
+        int chunk = (int) (startByte / transfer.chunkSize);
+        if (startByte < 0 || startByte % transfer.chunkSize != 0 || receivedChunks.get(chunk) || !inFlight.remove(chunk)) {
+            return -1;
+        }
+        receivedChunks.set(chunk);
+        return chunk;
+    }
+
+    /**
+     * Marks the in flight chunk of a response that failed its checksum, so it is requested again
+     * A response whose offset was damaged matches no chunk in flight, and is left to the retransmission timer.
+     *
+     * @param transfer The file being downloaded
+     * @param startByte The start offset of the response
+     * @param endByte The end offset of the response
+     * @param inFlight The chunks that have been requested but not received
+     */
+    private static void rejectCorruptChunk(FileTransfer transfer, long startByte, long endByte, InFlightChunks inFlight) {
+        System.out.println("Checksum mismatch for bytes " + startByte + " to " + endByte + ", requesting them again");
+        if (startByte >= 0 && startByte % transfer.chunkSize == 0) {
+            inFlight.markCorrupt((int) (startByte / transfer.chunkSize));
+        }
+    }
+
+    /**
+     * Records the CRC32C of every chunk a resumed download already holds, reading back only those chunks
+     *
+     * @param partialFile The channel of the partial file, open for reading
+     * @param transfer The file being downloaded
+     * @param journal The record of the chunks already received
+     * @param checksum The chunk CRCs of the file
+     */
+    private static void checksumResumedChunks(FileChannel partialFile, FileTransfer transfer, DownloadJournal journal,
+                                              FileChecksum checksum) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(transfer.chunkSize);
+        int totalChunks = transfer.getTotalChunks();
+        for (int chunk = journal.nextReceivedChunk(0, totalChunks); chunk < totalChunks; chunk = journal.nextReceivedChunk(chunk + 1, totalChunks)) {
+            long position = (long) chunk * transfer.chunkSize;
+            buffer.clear().limit((int) transfer.getChunkLength(chunk));
+            while (buffer.hasRemaining()) {
+                if (partialFile.read(buffer, position + buffer.position()) < 0) {
+                    break;
                 }
             }
+            checksum.record(chunk, checksum.compute(buffer.flip()));
         }
-        catch (Exception e){
-            System.out.println("Error in client: " + e.getMessage());
+    }
+
+    /**
+     * Writes a chunk of data to the file at its offset
+     *
+     * @param fileWriter Where the chunks of the file are written
+     * @param data The data to write
+     * @param position The offset in the file to write the data at
+     */
+    private static void writeChunk(ChunkSink fileWriter, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += fileWriter.write(data, position);
         }
     }
 
     /**
      * Sends a request to the server and waits for a response
+     * Packets from other ports and stray chunk responses are discarded while waiting
      * 
      * @param socket The DatagramSocket to use for communication
      * @param message The request message to send
@@ -211,21 +1363,48 @@ public class Client {
      * @return The response from the server or null if timed out or error
      */
     private static String sendReceiveRequest(DatagramSocket socket, String message, InetAddress serverAddress, int serverPort, int timeout){
+        byte[] response = sendReceiveRequest(socket, message.getBytes(), message, serverAddress, serverPort, timeout);
+        return response == null ? null : new String(response);
+    }
+
+    /**
+     * Sends a request to the server and waits for a response, for requests that may be binary packets
+     * Packets from other ports and stray chunk responses are discarded while waiting
+     *
+     * @param socket The DatagramSocket to use for communication
+     * @param sendData The request to send
+     * @param message A description of the request for log messages
+     * @param serverAddress The server's address to send to
+     * @param serverPort The server's port to send to
+     * @param timeout Timeout in milliseconds
+     * @return The response bytes from the server or null if timed out or error
+     */
+    private static byte[] sendReceiveRequest(DatagramSocket socket, byte[] sendData, String message, InetAddress serverAddress, int serverPort, int timeout){
         try {
-            // Prepare the request message as a byte array and send it to the server
-            byte[] sendData = message.getBytes();
+            // Send the request to the server
             DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, serverPort);
             socket.send(sendPacket);
 
             // Prepare to receive the response from the server
             byte[] receiveBuffer = new byte[2048];
             DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-            socket.setSoTimeout(timeout);
+            long deadline = System.currentTimeMillis() + timeout;
 
-            // Receive the response from the server
-            socket.receive(receivePacket);
-            String response = new String(receivePacket.getData(), 0, receivePacket.getLength());
-            return response;
+            // Receive the response from the server, skipping late chunk responses left over from a windowed download
+            while (true) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new SocketTimeoutException();
+                }
+                socket.setSoTimeout((int) wait);
+                receivePacket.setLength(receiveBuffer.length);
+                socket.receive(receivePacket);
+                String response = new String(receivePacket.getData(), 0, receivePacket.getLength());
+                boolean chunkResponse = isDataPacket(receiveBuffer[0]) || response.contains(" OK START ");
+                if (receivePacket.getPort() == serverPort && !chunkResponse) {
+                    return Arrays.copyOf(receiveBuffer, receivePacket.getLength());
+                }
+            }
         } catch (SocketTimeoutException e) {
             System.out.println("Timeout occured for request: " + message);
             return null;
@@ -234,4 +1413,491 @@ public class Client {
             return null;
         }
     }
+
+    /**
+     * ChunkResponse class holding a chunk response from a client handler, parsed from a text response or a binary packet
+     * Parsing only checks that a response is well formed, handleChunkResponse checks that it belongs to the transfer.
+     */
+    static class ChunkResponse {
+        // The file named by a text response, null for a binary one
+        private final String fileName;
+        // The session id of a binary response, -1 for a text one
+        private final int sessionId;
+        private final long startByte;
+        private final long endByte;
+        private final boolean compressed;
+        // The CRC32C the response carries, 0 without checksums
+        private final int expectedCrc;
+        // The header fields the CRC32C covers after the data, null without checksums
+        private final ByteBuffer header;
+        // The data as sent, compressed if the chunk was sent compressed
+        private final ByteBuffer data;
+
+        public ChunkResponse(String fileName, int sessionId, long startByte, long endByte, boolean compressed, int expectedCrc,
+                             ByteBuffer header, ByteBuffer data) {
+            this.fileName = fileName;
+            this.sessionId = sessionId;
+            this.startByte = startByte;
+            this.endByte = endByte;
+            this.compressed = compressed;
+            this.expectedCrc = expectedCrc;
+            this.header = header;
+            this.data = data;
+        }
+
+        /**
+         * Parses a FILE <name> OK START <s> END <e> DATA <base64> response and decodes its data
+         * With checksums the response carries CRC <hex> before DATA, covering the decoded data followed by the response
+         * up to DATA and its trailing space without the CRC field. With compression a chunk sent compressed is marked DEFLATE instead of DATA.
+         *
+         * @param fileDataResponse The response received from the client handler
+         * @param checksum True if the session negotiated checksums
+         * @param compression True if the session negotiated compression
+         * @return The parsed response, or null if it is malformed
+         */
+        public static ChunkResponse parseText(String fileDataResponse, boolean checksum, boolean compression) {
+            // Split the file data response into parts to check, the CRC field adds two parts
+            int partCount = checksum ? 11 : 9;
+            String[] fileDataResponseParts = fileDataResponse.split(" ", partCount);
+
+            // Check if the response is valid and contains the expected parts
+            boolean compressed = fileDataResponseParts.length == partCount && compression &&
+                    fileDataResponseParts[partCount - 2].equals("DEFLATE");
+            if (fileDataResponseParts.length != partCount || !fileDataResponseParts[0].equals("FILE") ||
+                    !fileDataResponseParts[2].equals("OK") || !fileDataResponseParts[3].equals("START") ||
+                    !fileDataResponseParts[5].equals("END") || !(compressed || fileDataResponseParts[partCount - 2].equals("DATA")) ||
+                    (checksum && !fileDataResponseParts[7].equals("CRC"))) {
+                return null;
+            }
+
+            // Parse the start and end byte positions and decode the base64 data string, a damaged response is dropped
+            try {
+                ByteBuffer header = checksum ? ByteBuffer.wrap((String.join(" ", Arrays.asList(fileDataResponseParts).subList(0, 7)) +
+                        " " + fileDataResponseParts[partCount - 2] + " ").getBytes()) : null;
+                return new ChunkResponse(fileDataResponseParts[1], -1, Long.parseLong(fileDataResponseParts[4]),
+                        Long.parseLong(fileDataResponseParts[6]), compressed,
+                        checksum ? (int) Long.parseLong(fileDataResponseParts[8], 16) : 0, header,
+                        ByteBuffer.wrap(Base64.getDecoder().decode(fileDataResponseParts[partCount - 1])));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Parses the header of a binary DATA or DATA_DEFLATE packet, leaving its payload in place to be written
+         * With checksums the header ends with the CRC32C of the payload followed by the 17 bytes of the header before it.
+         * A DATA_DEFLATE packet carries the chunk compressed, its length field still giving the chunk's length.
+         *
+         * @param data The packet received from the client handler, positioned at its opcode, left positioned at its payload
+         * @param checksum True if the session negotiated checksums
+         * @param compression True if the session negotiated compression
+         * @return The parsed response, or null if it is malformed
+         */
+        public static ChunkResponse parseBinary(ByteBuffer data, boolean checksum, boolean compression) {
+            if (data.remaining() < (checksum ? BINARY_HEADER_SIZE + CHECKSUM_SIZE : BINARY_HEADER_SIZE)) {
+                return null;
+            }
+            ByteBuffer header = checksum ? data.slice(data.position(), BINARY_HEADER_SIZE) : null;
+            boolean compressed = data.get() == OP_DATA_DEFLATE;
+            int sessionId = data.getInt();
+            long startByte = data.getLong();
+            int length = data.getInt();
+            int expectedCrc = checksum ? data.getInt() : 0;
+            if (compressed ? !compression : length != data.remaining()) {
+                return null;
+            }
+            return new ChunkResponse(null, sessionId, startByte, startByte + length - 1, compressed, expectedCrc, header, data);
+        }
+    }
+
+    /**
+     * SegmentsResponse class holding a SEGMENTS_OK reply, parsed from a text response or a binary packet
+     */
+    static class SegmentsResponse {
+        // DIGEST_READY if the reply carries the segments, DIGEST_PENDING or another status if it does not
+        private final byte status;
+        private final int segmentSize;
+        private final int firstSegment;
+        // The CRC32C of each segment from the first one
+        private final int[] crcs;
+
+        public SegmentsResponse(byte status, int segmentSize, int firstSegment, int[] crcs) {
+            this.status = status;
+            this.segmentSize = segmentSize;
+            this.firstSegment = firstSegment;
+            this.crcs = crcs;
+        }
+
+        /**
+         * Parses a FILE <name> SEGMENTS_OK READY <segment size> <first> <hex>... response, or one that is PENDING or FAILED
+         *
+         * @param segmentsResponse The response received from the client handler
+         * @param fileName The name of the transfer's file
+         * @return The parsed response, or null if it is malformed or for another file
+         */
+        public static SegmentsResponse parseText(String segmentsResponse, String fileName) {
+            String[] segmentsResponseParts = segmentsResponse.split(" ");
+            if (segmentsResponseParts.length < 4 || !segmentsResponseParts[0].equals("FILE") || !segmentsResponseParts[1].equals(fileName) ||
+                    !segmentsResponseParts[2].equals("SEGMENTS_OK")) {
+                return null;
+            }
+            if (!segmentsResponseParts[3].equals("READY")) {
+                return new SegmentsResponse(segmentsResponseParts[3].equals("PENDING") ? DIGEST_PENDING : -1, 0, 0, new int[0]);
+            }
+            try {
+                int[] crcs = new int[segmentsResponseParts.length - 6];
+                for (int i = 0; i < crcs.length; i++) {
+                    crcs[i] = (int) Long.parseLong(segmentsResponseParts[6 + i], 16);
+                }
+                int segmentSize = Integer.parseInt(segmentsResponseParts[4]);
+                return segmentSize > 0 ? new SegmentsResponse(DIGEST_READY, segmentSize, Integer.parseInt(segmentsResponseParts[5]), crcs) : null;
+            } catch (NumberFormatException | NegativeArraySizeException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Parses a binary SEGMENTS_OK packet: opcode, session id, status, segment size, first segment, then the CRC32C of each segment
+         *
+         * @param data The packet received from the client handler
+         * @param sessionId The id of the transfer's session
+         * @return The parsed response, or null if it is malformed or for another session
+         */
+        public static SegmentsResponse parseBinary(ByteBuffer data, int sessionId) {
+            if (data.remaining() < BINARY_SEGMENTS_OK_HEADER_SIZE || data.remaining() % CHECKSUM_SIZE != BINARY_SEGMENTS_OK_HEADER_SIZE % CHECKSUM_SIZE ||
+                    data.get() != OP_SEGMENTS_OK || data.getInt() != sessionId) {
+                return null;
+            }
+            byte status = data.get();
+            int segmentSize = data.getInt();
+            int firstSegment = data.getInt();
+            int[] crcs = new int[data.remaining() / CHECKSUM_SIZE];
+            data.asIntBuffer().get(crcs);
+            return status != DIGEST_READY || segmentSize > 0 ? new SegmentsResponse(status, segmentSize, firstSegment, crcs) : null;
+        }
+    }
+
+    /**
+     * FileTransfer class describing a single file download agreed with the server
+     * Holds the file details and how to reach its client handler
+     */
+    static class FileTransfer {
+        private final String fileName;
+        private final long fileSize;
+        // Last-modified time reported by the server, -1 if the server did not send one
+        private final long lastModified;
+        private final InetAddress serverAddress;
+        private final int clientHandlerPort;
+        private final int sessionId;
+        private final int chunkSize;
+        // True if the server sends the CRC32C of every chunk and of the whole file
+        private final boolean checksummed;
+        // True if the server may send chunks compressed
+        private final boolean compressed;
+        // The size of the manifest at the start of a batch's stream, -1 for a single file
+        private final long manifestSize;
+        // The DOWNLOAD or BATCH request that opened the session, sent again to open the session of every other stripe
+        private final String request;
+        // Round trip time estimate carried across every request of the session
+        private final RttEstimator rtt = new RttEstimator(TIMEOUT);
+
+        public FileTransfer(String fileName, long fileSize, long lastModified, InetAddress serverAddress, int clientHandlerPort,
+                            int sessionId, int chunkSize, boolean checksummed, boolean compressed, long manifestSize, String request) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+            this.serverAddress = serverAddress;
+            this.clientHandlerPort = clientHandlerPort;
+            this.sessionId = sessionId;
+            this.chunkSize = chunkSize;
+            this.checksummed = checksummed;
+            this.compressed = compressed;
+            this.manifestSize = manifestSize;
+            this.request = request;
+        }
+
+        /**
+         * @return The number of chunks the file is requested in
+         */
+        public int getTotalChunks() {
+            return (int) ((fileSize + chunkSize - 1) / chunkSize);
+        }
+
+        /**
+         * @param chunk The index of a chunk
+         * @return The number of bytes in the chunk, less than chunkSize for the last chunk
+         */
+        public long getChunkLength(int chunk) {
+            return Math.min(chunkSize, fileSize - (long) chunk * chunkSize);
+        }
+
+        /**
+         * @return The size in bytes of the largest chunk response, a full chunk and its header
+         */
+        public int getMaxPacketSize() {
+            if (isBinary()) {
+                return getDataHeaderSize() + chunkSize;
+            }
+            // Base64 turns every 3 bytes into 4, after a header with the longest possible offsets
+            // A compressed chunk is never longer than the chunk, but is marked by a longer keyword
+            String header = "FILE " + fileName + " OK START " + Long.MAX_VALUE + " END " + Long.MAX_VALUE +
+                    (isChecksummed() ? " CRC ffffffff" : "") + (compressed ? " DEFLATE " : " DATA ");
+            return header.getBytes().length + (chunkSize + 2) / 3 * 4;
+        }
+
+        /**
+         * @return The size of the header before the payload of a binary DATA packet
+         */
+        public int getDataHeaderSize() {
+            return isChecksummed() ? BINARY_HEADER_SIZE + CHECKSUM_SIZE : BINARY_HEADER_SIZE;
+        }
+
+        /**
+         * @return True if the server sends the CRC32C of every chunk and of the whole file
+         */
+        public boolean isChecksummed() {
+            return checksummed;
+        }
+
+        /**
+         * @return True if the server may send chunks compressed
+         */
+        public boolean isCompressed() {
+            return compressed;
+        }
+
+        /**
+         * @return True if the session serves the stream of a batch, which starts with its manifest
+         */
+        public boolean isBatch() {
+            return manifestSize >= 0;
+        }
+
+        /**
+         * @return True if binary framing was negotiated for the data path
+         */
+        public boolean isBinary() {
+            return sessionId >= 0;
+        }
+
+        /**
+         * @return The address of the server
+         */
+        public InetAddress getServerAddress() {
+            return serverAddress;
+        }
+
+        /**
+         * @return The port of the session's client handler
+         */
+        public int getClientHandlerPort() {
+            return clientHandlerPort;
+        }
+
+        /**
+         * @return The session id of the binary data path, -1 for the text protocol
+         */
+        public int getSessionId() {
+            return sessionId;
+        }
+    }
+
+    /**
+     * InFlightChunks class holding the chunks that have been requested but not received, with their retransmission state
+     * Kept in plain arrays with room for the largest window, so adding and removing never allocates
+     * and the state of a download takes the same memory whatever the size of the file.
+     * Removing moves the last chunk into the gap, so the order of the chunks is not kept.
+     */
+    static class InFlightChunks {
+        private final int[] chunks;
+        // The retransmission timer, the time of the first request and the number of requests sent of each chunk
+        private final long[] deadlines;
+        private final long[] sentTimes;
+        private final int[] attempts;
+        private int size;
+        // A chunk in flight whose response failed its checksum, -1 if there is none
+        private int corruptChunk = -1;
+        // The first request time and number of requests of the chunk remove last took out
+        private long removedSentTime;
+        private int removedAttempts;
+
+        public InFlightChunks(int capacity) {
+            this.chunks = new int[capacity];
+            this.deadlines = new long[capacity];
+            this.sentTimes = new long[capacity];
+            this.attempts = new int[capacity];
+        }
+
+        /**
+         * @param chunk The chunk that has just been requested for the first time, there must be room for it
+         * @param sentTime The System.nanoTime at which the request was sent
+         * @param deadline The System.currentTimeMillis at which the request is sent again if no response has arrived
+         */
+        public void add(int chunk, long sentTime, long deadline) {
+            chunks[size] = chunk;
+            sentTimes[size] = sentTime;
+            deadlines[size] = deadline;
+            attempts[size] = 1;
+            size++;
+        }
+
+        /**
+         * @param chunk The chunk to remove
+         * @return True if the chunk was in flight and has been removed
+         */
+        public boolean remove(int chunk) {
+            int i = indexOf(chunk);
+            if (i < 0) {
+                return false;
+            }
+            removedSentTime = sentTimes[i];
+            removedAttempts = attempts[i];
+            size--;
+            chunks[i] = chunks[size];
+            deadlines[i] = deadlines[size];
+            sentTimes[i] = sentTimes[size];
+            attempts[i] = attempts[size];
+            return true;
+        }
+
+        /**
+         * @return The position of a chunk, or -1 if it is not in flight
+         */
+        public int indexOf(int chunk) {
+            for (int i = 0; i < size; i++) {
+                if (chunks[i] == chunk) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Records that the chunk at a position has been requested again
+         *
+         * @param i The position of the chunk
+         * @param deadline The System.currentTimeMillis at which it is sent again if still no response has arrived
+         */
+        public void retransmitted(int i, long deadline) {
+            attempts[i]++;
+            deadlines[i] = deadline;
+        }
+
+        /**
+         * @param i The position of a chunk, from 0 to size() - 1
+         * @return The System.currentTimeMillis at which the chunk is requested again
+         */
+        public long getDeadline(int i) {
+            return deadlines[i];
+        }
+
+        /**
+         * @param i The position of a chunk, from 0 to size() - 1
+         * @return The number of times the chunk has been requested
+         */
+        public int getAttempts(int i) {
+            return attempts[i];
+        }
+
+        /**
+         * @return The System.nanoTime of the first request for the chunk remove last took out
+         */
+        public long getRemovedSentTime() {
+            return removedSentTime;
+        }
+
+        /**
+         * @return The number of times the chunk remove last took out was requested
+         */
+        public int getRemovedAttempts() {
+            return removedAttempts;
+        }
+
+        /**
+         * Marks a chunk whose response failed its checksum, unless it is not in flight
+         *
+         * @param chunk The chunk of the response
+         */
+        public void markCorrupt(int chunk) {
+            if (indexOf(chunk) >= 0) {
+                corruptChunk = chunk;
+            }
+        }
+
+        /**
+         * @return The chunk marked by markCorrupt since the last call, still in flight, or -1 if there is none
+         */
+        public int pollCorrupt() {
+            int chunk = corruptChunk;
+            corruptChunk = -1;
+            return chunk;
+        }
+
+        /**
+         * @param i The position of a chunk, from 0 to size() - 1
+         * @return The chunk at that position
+         */
+        public int get(int i) {
+            return chunks[i];
+        }
+
+        /**
+         * @return The number of chunks in flight
+         */
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * DownloadOptions class holding the settings parsed from the command line
+     */
+    static class DownloadOptions {
+        private int windowSize = DEFAULT_WINDOW_SIZE;
+        private int simulatedDelay = 0;
+        private int simulatedJitter = 0;
+        private double simulatedLoss = 0;
+        private boolean textOnly = false;
+        private int parallelDownloads = DEFAULT_PARALLEL_DOWNLOADS;
+        private int stripes = 1;
+        // The chunk size to negotiate, 0 to use the protocol's default
+        private int chunkSize = 0;
+        private boolean verbose = false;
+        private boolean copyReceive = false;
+        private boolean checksum = true;
+        private boolean compress = false;
+        // The simulated link's bandwidth in kilobits per second, 0 for unlimited
+        private int simulatedBandwidth = 0;
+        private boolean batch = false;
+    }
+
+    /**
+     * DownloadException class thrown when a download cannot be started, carrying the result to report
+     */
+    static class DownloadException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final DownloadStatus status;
+
+        public DownloadException(DownloadStatus status) {
+            super("Download " + status);
+            this.status = status;
+        }
+
+        /**
+         * @return The result of the download
+         */
+        public DownloadStatus getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Result of downloading a single file
+     */
+    enum DownloadStatus {
+        DOWNLOADED,
+        NOT_FOUND,
+        FAILED
+    }
 }
@@ -0,0 +1,57 @@
+/**
+ * CongestionWindow class limiting how many chunk requests a session keeps in flight
+ * Grows like TCP: by one request per response in slow start until the threshold is reached,
+ * then by about one request per round trip. On loss the window is halved, at most once per round trip,
+ * so a burst of losses from one congestion event only backs off once.
+ */
+public class CongestionWindow {
+    private static final double INITIAL_WINDOW = 2;
+
+    private final int maxWindow;
+    private double window;
+    private double slowStartThreshold;
+    private long lastDecrease;
+
+    /**
+     * @param maxWindow The largest number of requests allowed in flight
+     */
+    public CongestionWindow(int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.window = Math.min(INITIAL_WINDOW, maxWindow);
+        this.slowStartThreshold = maxWindow;
+    }
+
+    /**
+     * Grows the window after a response arrived
+     */
+    public void onSuccess() {
+        if (window < slowStartThreshold) {
+            window += 1;
+        } else {
+            window += 1 / window;
+        }
+        window = Math.min(window, maxWindow);
+    }
+
+    /**
+     * Halves the window after a request was lost, unless it was already halved within the last round trip
+     *
+     * @param now The current time in milliseconds
+     * @param srtt The smoothed round trip time in milliseconds
+     */
+    public void onLoss(long now, double srtt) {
+        if (now - lastDecrease < srtt) {
+            return;
+        }
+        lastDecrease = now;
+        window = Math.max(1, window / 2);
+        slowStartThreshold = Math.max(2, window);
+    }
+
+    /**
+     * @return The number of requests currently allowed in flight
+     */
+    public int getWindow() {
+        return Math.max(1, (int) window);
+    }
+}
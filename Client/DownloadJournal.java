@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * DownloadJournal class recording which parts of a file have been downloaded, so a failed download can resume
+ * The journal is a small text file next to the partial file, named after it with a .journal suffix.
+ * Its first line holds the size and last-modified time the server reported for the file,
+ * every following line one received byte range as a start offset and an exclusive end offset.
+ * A journal is only resumed when the server still reports the same size and last-modified time,
+ * so chunks of a file that changed on the server are never spliced together.
+ * Ranges are stored in bytes rather than chunks, so a download can resume with a different chunk size.
+ */
+public class DownloadJournal {
+    private static final String SUFFIX = ".journal";
+    // How often in milliseconds the journal is rewritten while chunks arrive
+    private static final long CHECKPOINT_INTERVAL = 1000;
+
+    private final Path journalPath;
+    private final long fileSize;
+    private final long lastModified;
+    private final int chunkSize;
+    private final BitSet receivedChunks = new BitSet();
+    private long lastCheckpoint = System.currentTimeMillis();
+
+    /**
+     * @param fileName The name of the file being downloaded
+     * @param fileSize The size of the file reported by the server
+     * @param lastModified The last-modified time of the file reported by the server, negative if unknown
+     * @param chunkSize The number of bytes in each chunk of the download
+     */
+    private DownloadJournal(String fileName, long fileSize, long lastModified, int chunkSize) {
+        this.journalPath = Paths.get(fileName + SUFFIX);
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Opens the journal for a download, loading the chunks already received by an earlier run
+     * The earlier progress is ignored if the journal is missing, unreadable or describes a different
+     * version of the file, or if the partial file is missing or shorter than the journal claims.
+     * Without a last-modified time from the server a download can never be resumed safely, so nothing is loaded.
+     *
+     * @param fileName The name of the file being downloaded
+     * @param fileSize The size of the file reported by the server
+     * @param lastModified The last-modified time of the file reported by the server, negative if unknown
+     * @param chunkSize The number of bytes in each chunk of the download
+     * @return The journal for the download
+     */
+    public static DownloadJournal open(String fileName, long fileSize, long lastModified, int chunkSize) {
+        DownloadJournal journal = new DownloadJournal(fileName, fileSize, lastModified, chunkSize);
+        Path partialFile = Paths.get(fileName);
+        if (lastModified < 0 || !Files.isRegularFile(journal.journalPath) || !Files.isRegularFile(partialFile)) {
+            return journal;
+        }
+        try {
+            List<String> lines = Files.readAllLines(journal.journalPath);
+            String[] header = lines.isEmpty() ? new String[0] : lines.get(0).split(" ");
+            if (header.length != 4 || !header[0].equals("SIZE") || !header[2].equals("MTIME") ||
+                    Long.parseLong(header[1]) != fileSize || Long.parseLong(header[3]) != lastModified) {
+                System.out.println("Journal for " + fileName + " describes a different version of the file, starting again");
+                return journal;
+            }
+
+            long partialSize = Files.size(partialFile);
+            for (String line : lines.subList(1, lines.size())) {
+                String[] range = line.split(" ");
+                long start = Long.parseLong(range[0]);
+                long end = Long.parseLong(range[1]);
+                if (start < 0 || end > fileSize || end > partialSize) {
+                    System.out.println("Journal for " + fileName + " does not match the partial file, starting again");
+                    journal.receivedChunks.clear();
+                    return journal;
+                }
+                journal.markRange(start, end);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error reading journal for " + fileName + ": " + e.getMessage());
+            journal.receivedChunks.clear();
+        }
+        return journal;
+    }
+
+    /**
+     * @param fromChunk The first chunk to look at
+     * @param endChunk The chunk after the last one to look at
+     * @return The first chunk from fromChunk that has not been received, or endChunk if there is none
+     */
+    public synchronized int nextMissingChunk(int fromChunk, int endChunk) {
+        return Math.min(receivedChunks.nextClearBit(fromChunk), endChunk);
+    }
+
+    /**
+     * @param fromChunk The first chunk to look at
+     * @param endChunk The chunk after the last one to look at
+     * @return The first chunk from fromChunk that has been received, or endChunk if there is none
+     */
+    public synchronized int nextReceivedChunk(int fromChunk, int endChunk) {
+        int chunk = receivedChunks.nextSetBit(fromChunk);
+        return chunk < 0 ? endChunk : Math.min(chunk, endChunk);
+    }
+
+    /**
+     * @param firstChunk The first chunk of the range
+     * @param endChunk The chunk after the last one of the range
+     * @return The number of chunks in the range that have not been received
+     */
+    public synchronized int countMissingChunks(int firstChunk, int endChunk) {
+        return endChunk - firstChunk - receivedChunks.get(firstChunk, endChunk).cardinality();
+    }
+
+    /**
+     * Records that a chunk has been written to the file
+     * The journal on disk is only updated by the next checkpoint.
+     *
+     * @param chunk The index of the chunk
+     */
+    public synchronized void markReceived(int chunk) {
+        receivedChunks.set(chunk);
+    }
+
+    /**
+     * Records that a chunk has to be downloaded again, as it does not match the server's file
+     * The journal on disk is only updated by the next checkpoint.
+     *
+     * @param chunk The index of the chunk
+     */
+    public synchronized void markMissing(int chunk) {
+        receivedChunks.clear(chunk);
+    }
+
+    /**
+     * @return The number of bytes of the file that have been received
+     */
+    public synchronized long getBytesReceived() {
+        long bytes = 0;
+        for (int chunk = receivedChunks.nextSetBit(0); chunk >= 0; chunk = receivedChunks.nextSetBit(chunk + 1)) {
+            bytes += Math.min(chunkSize, fileSize - (long) chunk * chunkSize);
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the received ranges to the journal if the checkpoint interval has passed
+     * The file is flushed to disk first, so the journal never records data that could still be lost.
+     * The journal is written to a temporary file and moved into place, so a crash leaves either the old or the new journal.
+     *
+     * @param fileWriter Where the chunks of the file are written
+     * @param force True to write the journal even if the interval has not passed
+     */
+    public synchronized void checkpoint(ChunkSink fileWriter, boolean force) throws IOException {
+        long now = System.currentTimeMillis();
+        if (lastModified < 0 || (!force && now - lastCheckpoint < CHECKPOINT_INTERVAL)) {
+            return;
+        }
+        lastCheckpoint = now;
+        fileWriter.force();
+
+        // Coalesce runs of received chunks into byte ranges
+        List<String> lines = new ArrayList<>();
+        lines.add("SIZE " + fileSize + " MTIME " + lastModified);
+        int start = receivedChunks.nextSetBit(0);
+        while (start >= 0) {
+            int end = receivedChunks.nextClearBit(start);
+            lines.add((long) start * chunkSize + " " + Math.min((long) end * chunkSize, fileSize));
+            start = receivedChunks.nextSetBit(end);
+        }
+
+        Path temporaryPath = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+        Files.write(temporaryPath, lines);
+        Files.move(temporaryPath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the journal once the file is complete
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(journalPath);
+    }
+
+    /**
+     * Marks every chunk that lies entirely within a byte range as received
+     *
+     * @param start The first byte of the range
+     * @param end The byte after the last one of the range
+     */
+    private void markRange(long start, long end) {
+        int firstChunk = (int) ((start + chunkSize - 1) / chunkSize);
+        // The last chunk of the file is shorter, so a range ending at the file size covers it
+        int endChunk = (int) (end == fileSize ? (end + chunkSize - 1) / chunkSize : end / chunkSize);
+        if (firstChunk < endChunk) {
+            receivedChunks.set(firstChunk, endChunk);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * FileChecksum class building the CRC32C of a whole file from the CRC32C of each of its chunks
+ * Chunks arrive in any order and on several stripes, so the CRC32C of each verified chunk is kept,
+ * and once every chunk is in they are combined in file order without reading the file again.
+ * Combining relies on the CRC being linear: the CRC of A followed by B is the CRC of A advanced
+ * over the length of B, xored with the CRC of B. Advancing a CRC over n bytes is a 32 by 32 matrix
+ * over GF(2), built once for a full chunk and once for the shorter last chunk.
+ */
+public class FileChecksum {
+    // The CRC32C (Castagnoli) polynomial, bit-reversed as the CRC is computed least significant bit first
+    private static final int POLYNOMIAL = 0x82F63B78;
+    // Every stripe verifies its chunks on its own thread
+    private static final ThreadLocal<CRC32C> CRCS = ThreadLocal.withInitial(CRC32C::new);
+
+    private final int[] chunkCrcs;
+    private final int[] advanceFullChunk;
+    private final int[] advanceLastChunk;
+
+    /**
+     * @param fileSize The size of the file
+     * @param chunkSize The number of bytes in each chunk of the download
+     */
+    public FileChecksum(long fileSize, int chunkSize) {
+        int totalChunks = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        this.chunkCrcs = new int[totalChunks];
+        this.advanceFullChunk = advanceOperator(chunkSize);
+        this.advanceLastChunk = totalChunks == 0 ? advanceFullChunk : advanceOperator(fileSize - (long) (totalChunks - 1) * chunkSize);
+    }
+
+    /**
+     * Computes the CRC32C of a chunk's data without moving the buffer's position
+     *
+     * @param data The data, from its position to its limit
+     * @return The CRC32C of the data
+     */
+    public int compute(ByteBuffer data) {
+        CRC32C crc = CRCS.get();
+        crc.reset();
+        int position = data.position();
+        crc.update(data);
+        data.position(position);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Continues the CRC32C this thread last computed over more bytes, without moving the buffer's position
+     * A chunk's CRC32C covers its data followed by its header fields, so the data's own CRC32C comes on the way.
+     *
+     * @param data The bytes that follow the data of the last compute, from its position to its limit
+     * @return The CRC32C of the data of the last compute followed by these bytes
+     */
+    public int extend(ByteBuffer data) {
+        CRC32C crc = CRCS.get();
+        int position = data.position();
+        crc.update(data);
+        data.position(position);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Keeps the CRC32C of a chunk that has been verified and written, for the whole-file CRC32C
+     *
+     * @param chunk The index of the chunk
+     * @param crc The CRC32C of the chunk
+     */
+    public void record(int chunk, int crc) {
+        chunkCrcs[chunk] = crc;
+    }
+
+    /**
+     * Combines the recorded chunk CRCs, every chunk must have been recorded
+     *
+     * @return The CRC32C of the whole file
+     */
+    public int getValue() {
+        return getValue(0, chunkCrcs.length);
+    }
+
+    /**
+     * Combines the recorded CRCs of a range of chunks, every chunk of which must have been recorded
+     *
+     * @param firstChunk The first chunk of the range
+     * @param endChunk The chunk after the last one of the range
+     * @return The CRC32C of the bytes of the range
+     */
+    public int getValue(int firstChunk, int endChunk) {
+        int crc = 0;
+        for (int chunk = firstChunk; chunk < endChunk; chunk++) {
+            int[] advance = chunk == chunkCrcs.length - 1 ? advanceLastChunk : advanceFullChunk;
+            crc = multiply(advance, crc) ^ chunkCrcs[chunk];
+        }
+        return crc;
+    }
+
+    /**
+     * Builds the matrix that advances a CRC over a number of bytes, by squaring the one-bit operator
+     *
+     * @param length The number of bytes
+     * @return The operator, as the 32 columns of the matrix
+     */
+    private static int[] advanceOperator(long length) {
+        // Advancing over one bit: shift right, folding the polynomial back in when the low bit falls off
+        int[] operator = new int[32];
+        operator[0] = POLYNOMIAL;
+        for (int i = 1; i < 32; i++) {
+            operator[i] = 1 << (i - 1);
+        }
+        // Two, four and then eight bits
+        for (int i = 0; i < 3; i++) {
+            operator = multiply(operator, operator);
+        }
+
+        int[] result = new int[32];
+        for (int i = 0; i < 32; i++) {
+            result[i] = 1 << i;
+        }
+        // One factor for every set bit of the length, advancing over 1, 2, 4 ... bytes
+        for (long remaining = length; remaining != 0; remaining >>>= 1) {
+            if ((remaining & 1) != 0) {
+                result = multiply(operator, result);
+            }
+            operator = multiply(operator, operator);
+        }
+        return result;
+    }
+
+    /**
+     * @return The product of two matrices, applying second and then first
+     */
+    private static int[] multiply(int[] first, int[] second) {
+        int[] product = new int[32];
+        for (int i = 0; i < 32; i++) {
+            product[i] = multiply(first, second[i]);
+        }
+        return product;
+    }
+
+    /**
+     * @return The product of a matrix and a vector
+     */
+    private static int multiply(int[] matrix, int vector) {
+        int product = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                product ^= matrix[i];
+            }
+        }
+        return product;
+    }
+}
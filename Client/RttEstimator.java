@@ -0,0 +1,71 @@
+/**
+ * RttEstimator class computing the retransmission timeout of a session from measured round trip times
+ * Follows RFC 6298: a smoothed round trip time (SRTT) and its variation (RTTVAR) are updated from each sample,
+ * the timeout is SRTT + 4 * RTTVAR, and the timeout doubles after every expiry until a new sample arrives.
+ * Samples must only be taken from requests that were never retransmitted (Karn's algorithm).
+ */
+public class RttEstimator {
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    // RFC 6298 recommends a one second floor for the internet, a lower floor keeps loss recovery fast on a LAN
+    private static final double MIN_RTO = 10;
+    private static final double MAX_RTO = 60_000;
+    private static final double CLOCK_GRANULARITY = 1;
+
+    private double srtt;
+    private double rttvar;
+    private double rto;
+    private boolean hasSample;
+
+    /**
+     * @param initialRto The timeout in milliseconds to use until the first sample arrives
+     */
+    public RttEstimator(double initialRto) {
+        this.rto = initialRto;
+    }
+
+    /**
+     * Updates the estimate with a round trip time measured for a request that was sent only once
+     *
+     * @param rtt The measured round trip time in milliseconds
+     */
+    public void sample(double rtt) {
+        if (!hasSample) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+            hasSample = true;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+        rto = clamp(srtt + Math.max(CLOCK_GRANULARITY, 4 * rttvar));
+    }
+
+    /**
+     * Doubles the timeout after the retransmission timer expired
+     */
+    public void backoff() {
+        rto = clamp(rto * 2);
+    }
+
+    /**
+     * @return The current retransmission timeout in milliseconds
+     */
+    public int getRto() {
+        return (int) Math.ceil(rto);
+    }
+
+    /**
+     * @return The smoothed round trip time in milliseconds, or the timeout if no sample has been taken
+     */
+    public double getSrtt() {
+        return hasSample ? srtt : rto;
+    }
+
+    /**
+     * @return The timeout limited to the allowed range
+     */
+    private static double clamp(double timeout) {
+        return Math.min(MAX_RTO, Math.max(MIN_RTO, timeout));
+    }
+}
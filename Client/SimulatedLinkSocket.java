@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DatagramSocket that simulates a slow, lossy link for testing on localhost
+ * Every outgoing packet is held back for a fixed delay plus a random jitter before it is sent,
+ * so a request and its response take at least that long to complete and may be reordered.
+ * Packets are dropped at random in both directions with the given loss rate.
+ * With a bandwidth, received packets are handed over no faster than the link could carry them,
+ * so the time a transfer takes depends on the bytes it puts on the wire. Packets that arrive faster
+ * wait in the socket's receive buffer, and are dropped when it fills, like at a slow link's queue.
+ */
+public class SimulatedLinkSocket extends DatagramSocket {
+    private final int delay;
+    private final int jitter;
+    private final double lossRate;
+    // Nanoseconds to carry one byte, 0 for an unlimited link
+    private final double nanosPerByte;
+    // The System.nanoTime at which the link has finished carrying the packets already received
+    private long linkFreeAt;
+    private final ScheduledExecutorService sender;
+
+    /**
+     * Creates a socket bound to any free local port
+     *
+     * @param delay The delay in milliseconds added to every outgoing packet
+     * @param jitter The largest random extra delay in milliseconds added to every outgoing packet
+     * @param lossRate The probability from 0 to 1 that a packet is dropped, applied to sent and received packets
+     * @param bandwidth The bandwidth of the link for received packets in kilobits per second, 0 for unlimited
+     */
+    public SimulatedLinkSocket(int delay, int jitter, double lossRate, int bandwidth) throws SocketException {
+        super();
+        this.delay = delay;
+        this.jitter = jitter;
+        this.lossRate = lossRate;
+        this.nanosPerByte = bandwidth > 0 ? 8e6 / bandwidth : 0;
+        this.sender = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "simulated-link");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a copy of the packet to be sent once the delay and jitter have passed, unless it is dropped
+     *
+     * @param packet The packet to send
+     */
+    @Override
+    public void send(DatagramPacket packet) throws IOException {
+        if (ThreadLocalRandom.current().nextDouble() < lossRate) {
+            return;
+        }
+        int packetDelay = delay + (jitter > 0 ? ThreadLocalRandom.current().nextInt(jitter + 1) : 0);
+        byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+        DatagramPacket delayedPacket = new DatagramPacket(data, data.length, packet.getSocketAddress());
+        sender.schedule(() -> {
+            try {
+                super.send(delayedPacket);
+            } catch (IOException e) {
+                System.out.println("Error sending delayed packet: " + e.getMessage());
+            }
+        }, packetDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Receives the next packet that is not dropped, once the link has had time to carry it
+     *
+     * @param packet The packet to receive into
+     */
+    @Override
+    public void receive(DatagramPacket packet) throws IOException {
+        int length = packet.getLength();
+        while (true) {
+            super.receive(packet);
+            if (ThreadLocalRandom.current().nextDouble() >= lossRate) {
+                break;
+            }
+            packet.setLength(length);
+        }
+        if (nanosPerByte > 0) {
+            waitForLink(packet.getLength());
+        }
+    }
+
+    /**
+     * Waits until the link has carried a packet after the packets before it
+     *
+     * @param length The length of the packet
+     */
+    private synchronized void waitForLink(int length) throws IOException {
+        long now = System.nanoTime();
+        linkFreeAt = Math.max(linkFreeAt, now) + (long) (length * nanosPerByte);
+        try {
+            TimeUnit.NANOSECONDS.sleep(linkFreeAt - now);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the simulated link");
+        }
+    }
+
+    /**
+     * Stops the delayed sender and closes the socket
+     */
+    @Override
+    public void close() {
+        sender.shutdownNow();
+        super.close();
+    }
+}
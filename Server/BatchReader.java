@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * BatchReader class serving the files of a BATCH request to one session as a single stream
+ * The stream starts with a manifest of one line per file, its size, last-modified time and name,
+ * followed by the contents of every file in manifest order, so chunks, checksums, compression,
+ * the chunk cache and stripes work on a batch exactly as they do on a single file.
+ * A requested directory is expanded to every regular file under it in name order, and a name that is not
+ * a regular file is listed with a size of -1 and takes no bytes of the stream.
+ * The batch is named after the CRC32C of its manifest, so cached chunks and digests are only shared
+ * between sessions while every file in the batch keeps its size and last-modified time.
+ * Files are opened when they are first read and only a few are kept open at once, so a batch of thousands
+ * of files does not hold thousands of file descriptors. Reads are serialized, unlike reads of a single file.
+ */
+public class BatchReader extends ChunkReader {
+    static final String NAME_PREFIX = "batch-";
+    // Bounds the manifest and the work of expanding a directory, a larger batch is refused
+    private static final int MAX_FILES = 100_000;
+    private static final int MAX_OPEN_FILES = 16;
+
+    private final byte[] manifest;
+    private final String[] names;
+    // The size of every file, -1 for a name that was not found, and the offset of its contents in the stream
+    private final long[] sizes;
+    private final long[] offsets;
+    // The most recently read files, the least recently read one is closed when another is opened
+    private final Map<Integer, FileChannel> openChannels = new LinkedHashMap<>(MAX_OPEN_FILES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, FileChannel> eldest) {
+            if (size() <= MAX_OPEN_FILES) {
+                return false;
+            }
+            closeQuietly(eldest.getValue());
+            return true;
+        }
+    };
+
+    private BatchReader(String batchName, long streamSize, long lastModified, byte[] manifest, String[] names, long[] sizes, long[] offsets) {
+        super(batchName, streamSize, lastModified);
+        this.manifest = manifest;
+        this.names = names;
+        this.sizes = sizes;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Lists the requested files and builds the manifest of the batch, without opening any of them
+     *
+     * @param requestedNames The file and directory names of the BATCH request, in the order they were listed
+     * @return The reader for the batch
+     * @throws IOException If a directory cannot be listed or the batch has too many files
+     */
+    public static BatchReader open(List<String> requestedNames) throws IOException {
+        List<String> names = new ArrayList<>();
+        for (String requestedName : requestedNames) {
+            Path path = Paths.get(requestedName);
+            if (!Files.isDirectory(path)) {
+                names.add(requestedName);
+                continue;
+            }
+            // The walk stops at one file past the limit, so a huge tree is refused without being listed or sorted whole
+            try (Stream<Path> files = Files.walk(path)) {
+                files.filter(Files::isRegularFile)
+                        .map(file -> file.toString().replace(file.getFileSystem().getSeparator(), "/"))
+                        .filter(name -> name.indexOf('\n') < 0)
+                        .limit(MAX_FILES + 1 - names.size())
+                        .sorted()
+                        .forEach(names::add);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (names.size() > MAX_FILES) {
+                break;
+            }
+        }
+        if (names.size() > MAX_FILES) {
+            throw new IOException("Batch of more than " + MAX_FILES + " files");
+        }
+
+        // Stat every file once, the manifest fixes the sizes the stream is served with
+        long[] sizes = new long[names.size()];
+        long[] lastModifiedTimes = new long[names.size()];
+        StringBuilder manifestText = new StringBuilder();
+        long lastModified = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            Path path = Paths.get(names.get(i));
+            sizes[i] = -1;
+            if (Files.isRegularFile(path)) {
+                try {
+                    sizes[i] = Files.size(path);
+                    lastModifiedTimes[i] = Files.getLastModifiedTime(path).toMillis();
+                } catch (IOException e) {
+                    sizes[i] = -1;
+                }
+            }
+            lastModified = Math.max(lastModified, lastModifiedTimes[i]);
+            manifestText.append(sizes[i]).append(' ').append(lastModifiedTimes[i]).append(' ').append(names.get(i)).append('\n');
+        }
+        byte[] manifest = manifestText.toString().getBytes(StandardCharsets.UTF_8);
+
+        long[] offsets = new long[sizes.length];
+        long streamSize = manifest.length;
+        for (int i = 0; i < sizes.length; i++) {
+            offsets[i] = streamSize;
+            streamSize += Math.max(0, sizes[i]);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(manifest);
+        String batchName = NAME_PREFIX + Server.formatChecksum((int) crc.getValue());
+        return new BatchReader(batchName, streamSize, lastModified, manifest, names.toArray(new String[0]), sizes, offsets);
+    }
+
+    /**
+     * Reads a chunk of the stream, the part of the manifest and the parts of the files it covers.
+     * A file that has become shorter since the manifest was built is read as zeros past its end.
+     *
+     * @param position The offset in the stream to read from
+     * @param target The buffer to read into, its position is advanced past the bytes read
+     * @return The number of bytes read
+     */
+    @Override
+    public synchronized int read(long position, ByteBuffer target) throws IOException {
+        int bytesToRead = (int) Math.min(target.remaining(), Math.max(0, getFileSize() - position));
+        long streamPosition = position;
+        long end = position + bytesToRead;
+        if (streamPosition < manifest.length) {
+            int length = (int) Math.min(end, manifest.length) - (int) streamPosition;
+            target.put(manifest, (int) streamPosition, length);
+            streamPosition += length;
+        }
+        for (int file = streamPosition < end ? fileAt(streamPosition) : sizes.length; streamPosition < end; file++) {
+            long fileEnd = offsets[file] + Math.max(0, sizes[file]);
+            if (fileEnd <= streamPosition) {
+                continue;
+            }
+            int length = (int) (Math.min(end, fileEnd) - streamPosition);
+            readFile(file, streamPosition - offsets[file], target, length);
+            streamPosition += length;
+        }
+        return bytesToRead;
+    }
+
+    /**
+     * @return The index of the file whose contents hold a stream offset past the manifest
+     */
+    private int fileAt(long position) {
+        // The last file that starts at or before the offset, any file of no bytes before it starts at the same offset
+        int low = 0;
+        int high = offsets.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (offsets[middle] <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Reads part of one file into the target buffer, filling any part past the file's current end with zeros
+     *
+     * @param file The index of the file
+     * @param position The offset in the file to read from
+     * @param target The buffer to read into, its position is advanced by the length
+     * @param length The number of bytes to read
+     */
+    private void readFile(int file, long position, ByteBuffer target, int length) throws IOException {
+        int limit = target.limit();
+        int end = target.position() + length;
+        target.limit(end);
+        try {
+            FileChannel channel = channel(file);
+            while (target.hasRemaining()) {
+                int read = channel.read(target, position + length - target.remaining());
+                if (read < 0) {
+                    break;
+                }
+            }
+            while (target.hasRemaining()) {
+                target.put((byte) 0);
+            }
+        } finally {
+            target.limit(limit);
+        }
+    }
+
+    /**
+     * @return The open channel of a file, opening it if it is not among the recently read files
+     */
+    private FileChannel channel(int file) throws IOException {
+        FileChannel channel = openChannels.get(file);
+        if (channel == null) {
+            channel = FileChannel.open(Paths.get(names[file]), StandardOpenOption.READ);
+            openChannels.put(file, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * @return A reader of the same stream that opens files of its own, so it can be read and closed apart from this one
+     */
+    public BatchReader copy() {
+        return new BatchReader(getFileName(), getFileSize(), getLastModified(), manifest, names, sizes, offsets);
+    }
+
+    /**
+     * @return The number of bytes of the manifest at the start of the stream
+     */
+    public int getManifestSize() {
+        return manifest.length;
+    }
+
+    /**
+     * @return The number of files listed in the manifest, including the names that were not found
+     */
+    public int getFileCount() {
+        return names.length;
+    }
+
+    /**
+     * Closes every file the batch still has open
+     */
+    @Override
+    public synchronized void close() {
+        for (FileChannel channel : openChannels.values()) {
+            closeQuietly(channel);
+        }
+        openChannels.clear();
+    }
+
+    /**
+     * Closes a file channel, logging rather than throwing if it fails
+     */
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Error closing file: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,324 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ChunkCache class holding recently served chunks for every session on the server
+ * Chunks are keyed by file, last-modified time, offset, length and encoding, so sessions downloading
+ * the same file share entries and a file that changes on disk never serves stale data.
+ * Base64 chunks for the text protocol are cached already encoded, so a hit skips the encoding too.
+ * Chunks for sessions that negotiated compression are cached already compressed, or raw if they did not compress,
+ * so a hit skips both the compression and the attempt to compress data that does not compress. Only the outcome
+ * of an attempt is cached: a chunk a session sends raw without trying is not, as other sessions would try.
+ * A chunk is only cached once it has been asked for again, so a download reading a cold file from start to end
+ * reads straight into its responses instead of filling the cache with chunks no one asks for twice.
+ * The keys of recent misses are remembered, without their data, to tell which chunks are asked for again.
+ * The cache is split into segments, each with its own lock and least recently used eviction,
+ * so concurrent sessions rarely wait on each other.
+ */
+public class ChunkCache {
+    private static final int SEGMENTS = 16;
+    // How a cached chunk is encoded, part of its key
+    private static final int RAW = 0;
+    private static final int BASE64 = 1;
+    private static final int DEFLATE = 2;
+    // The number of recent misses each segment remembers, a chunk missed again among them is cached
+    private static final int MISSES_REMEMBERED = 1024;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long budget;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param budget The memory budget in bytes for cached chunk data, 0 disables the cache
+     */
+    public ChunkCache(long budget) {
+        this.budget = budget;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(budget / SEGMENTS);
+        }
+    }
+
+    /**
+     * Returns the raw bytes of a chunk, reading them from the file on a miss
+     *
+     * @param reader The open file to read from on a miss
+     * @param offset The offset of the chunk
+     * @param length The maximum length of the chunk, it is shorter at the end of the file
+     * @return The bytes of the chunk
+     */
+    public byte[] getRaw(ChunkReader reader, long offset, int length) throws IOException {
+        ChunkKey key = new ChunkKey(reader, offset, length, RAW);
+        byte[] chunk = get(key);
+        if (chunk == null) {
+            chunk = read(reader, offset, length);
+            putIfAskedBefore(key, chunk);
+        }
+        return chunk;
+    }
+
+    /**
+     * Reads the raw bytes of a chunk into the target buffer, from the cache on a hit.
+     * A chunk missed for the first time is read from the file straight into the buffer without allocating.
+     *
+     * @param reader The open file to read from on a miss
+     * @param offset The offset of the chunk
+     * @param target The buffer to read into, as many bytes as it has remaining are read
+     * @return The number of bytes read, fewer than requested at the end of the file
+     */
+    public int readRaw(ChunkReader reader, long offset, ByteBuffer target) throws IOException {
+        ChunkKey key = new ChunkKey(reader, offset, target.remaining(), RAW);
+        byte[] chunk = get(key);
+        if (chunk == null) {
+            if (!askedBefore(key)) {
+                return reader.read(offset, target);
+            }
+            chunk = read(reader, offset, target.remaining());
+            put(key, chunk);
+        }
+        target.put(chunk);
+        return chunk.length;
+    }
+
+    /**
+     * Returns the Base64 encoding of a chunk, reading and encoding it on a miss
+     *
+     * @param reader The open file to read from on a miss
+     * @param offset The offset of the chunk
+     * @param length The maximum length of the chunk, it is shorter at the end of the file
+     * @return The Base64 encoded bytes of the chunk
+     */
+    public byte[] getBase64(ChunkReader reader, long offset, int length) throws IOException {
+        ChunkKey key = new ChunkKey(reader, offset, length, BASE64);
+        byte[] chunk = get(key);
+        if (chunk == null) {
+            chunk = Base64.getEncoder().encode(read(reader, offset, length));
+            putIfAskedBefore(key, chunk);
+        }
+        return chunk;
+    }
+
+    /**
+     * Returns a chunk compressed for a session that negotiated compression, reading and compressing it on a miss
+     *
+     * @param reader The open file to read from on a miss
+     * @param offset The offset of the chunk
+     * @param length The maximum length of the chunk, it is shorter at the end of the file
+     * @param compressor The session's compressor, which decides on a miss whether the chunk is worth compressing
+     * @return The compressed chunk, or the raw chunk if it is as long as the chunk, as it did not compress
+     */
+    public byte[] getDeflated(ChunkReader reader, long offset, int length, ChunkCompressor compressor) throws IOException {
+        ChunkKey key = new ChunkKey(reader, offset, length, DEFLATE);
+        byte[] chunk = get(key);
+        if (chunk == null) {
+            // A compressor skipping data that did not compress sends the chunk raw without trying, which is not worth sharing
+            boolean tried = !compressor.isSkipping();
+            chunk = compressor.compress(read(reader, offset, length));
+            if (tried) {
+                putIfAskedBefore(key, chunk);
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * @return True if the cache has a memory budget to hold chunks in
+     */
+    public boolean isEnabled() {
+        return budget > 0;
+    }
+
+    /**
+     * @return The number of lookups served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of lookups that had to read the file
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of chunks evicted to stay within the memory budget
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The number of bytes of chunk data currently cached
+     */
+    public long getCachedBytes() {
+        long cachedBytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                cachedBytes += segment.bytes;
+            }
+        }
+        return cachedBytes;
+    }
+
+    /**
+     * @return The cache counters as a single line, for the STATS request
+     */
+    public String stats() {
+        return "CACHE HITS " + getHits() + " MISSES " + getMisses() + " EVICTIONS " + getEvictions() +
+                " BYTES " + getCachedBytes() + " BUDGET " + budget;
+    }
+
+    /**
+     * Looks up a chunk and counts the hit or miss
+     *
+     * @param key The chunk to look up
+     * @return The cached chunk or null if it is not cached
+     */
+    private byte[] get(ChunkKey key) {
+        Segment segment = segmentFor(key);
+        byte[] chunk;
+        synchronized (segment) {
+            chunk = segment.entries.get(key);
+        }
+        (chunk != null ? hits : misses).incrementAndGet();
+        return chunk;
+    }
+
+    /**
+     * Remembers a missed chunk, or forgets it if it was already remembered
+     *
+     * @param key The chunk that was missed
+     * @return True if the chunk was missed before among the misses remembered, so it is worth caching
+     */
+    private boolean askedBefore(ChunkKey key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.misses.remove(key) != null || segment.misses.put(key, Boolean.TRUE) != null;
+        }
+    }
+
+    /**
+     * Caches a missed chunk if it was missed before
+     *
+     * @param key The chunk that was missed
+     * @param chunk The chunk data
+     */
+    private void putIfAskedBefore(ChunkKey key, byte[] chunk) {
+        if (askedBefore(key)) {
+            put(key, chunk);
+        }
+    }
+
+    /**
+     * Caches a chunk, evicting the least recently used chunks of its segment to stay within budget
+     * Chunks larger than a whole segment's budget are not cached
+     *
+     * @param key The chunk to cache
+     * @param chunk The chunk data
+     */
+    private void put(ChunkKey key, byte[] chunk) {
+        Segment segment = segmentFor(key);
+        if (chunk.length > segment.budget) {
+            return;
+        }
+        synchronized (segment) {
+            byte[] previous = segment.entries.put(key, chunk);
+            segment.bytes += chunk.length - (previous != null ? previous.length : 0);
+
+            // Evict the least recently used chunks until the segment is back within its budget
+            Iterator<byte[]> eldest = segment.entries.values().iterator();
+            while (segment.bytes > segment.budget && eldest.hasNext()) {
+                segment.bytes -= eldest.next().length;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return The segment responsible for a chunk
+     */
+    private Segment segmentFor(ChunkKey key) {
+        return segments[(key.hashCode() & Integer.MAX_VALUE) % SEGMENTS];
+    }
+
+    /**
+     * Reads a chunk from the file into a new array sized to the bytes available
+     *
+     * @param reader The open file to read from
+     * @param offset The offset of the chunk
+     * @param length The maximum length of the chunk
+     * @return The chunk data
+     */
+    private static byte[] read(ChunkReader reader, long offset, int length) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(length, Math.max(0, reader.getFileSize() - offset)));
+        reader.read(offset, chunk);
+        return chunk.array();
+    }
+
+    /**
+     * Segment class holding part of the cache in least recently used order
+     */
+    static class Segment {
+        private final Map<ChunkKey, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+        // The keys of the most recent misses that were not cached, the oldest is forgotten first
+        private final Map<ChunkKey, Boolean> misses = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ChunkKey, Boolean> eldest) {
+                return size() > MISSES_REMEMBERED;
+            }
+        };
+        private final long budget;
+        private long bytes;
+
+        public Segment(long budget) {
+            this.budget = budget;
+        }
+    }
+
+    /**
+     * ChunkKey class identifying a chunk of a particular version of a file
+     */
+    static class ChunkKey {
+        private final String fileName;
+        private final long lastModified;
+        private final long offset;
+        private final int length;
+        private final int encoding;
+
+        public ChunkKey(ChunkReader reader, long offset, int length, int encoding) {
+            this.fileName = reader.getFileName();
+            this.lastModified = reader.getLastModified();
+            this.offset = offset;
+            this.length = length;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ChunkKey)) {
+                return false;
+            }
+            ChunkKey key = (ChunkKey) other;
+            return offset == key.offset && length == key.length && lastModified == key.lastModified &&
+                    encoding == key.encoding && fileName.equals(key.fileName);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = fileName.hashCode();
+            hash = 31 * hash + Long.hashCode(lastModified);
+            hash = 31 * hash + Long.hashCode(offset);
+            hash = 31 * hash + length;
+            return 31 * hash + encoding;
+        }
+    }
+}
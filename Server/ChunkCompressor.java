@@ -0,0 +1,88 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * ChunkCompressor class compressing the chunks of one session with Deflate at its fastest level
+ * Every chunk is compressed on its own with raw Deflate, so a chunk can be inflated without any other
+ * and a retransmitted chunk needs nothing from the chunks around it.
+ * A chunk is only sent compressed if that saves at least an eighth of its size, as the client must inflate it.
+ * After a run of chunks that did not compress, such as a file that is already compressed, the session sends
+ * its chunks raw without trying for a while, then tries again, so the server spends almost no CPU on data
+ * that does not compress and still compresses the parts of a file that do.
+ */
+public class ChunkCompressor {
+    // After this many chunks in a row that do not compress, chunks are sent raw without trying
+    private static final int INCOMPRESSIBLE_RUN = 8;
+    // How many chunks are then sent raw before compression is tried again
+    private static final int SKIPPED_CHUNKS = 64;
+    // Sessions served by the event loop are compressed on whichever worker thread serves the request
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+
+    // Updated without locking by whichever thread serves the session, a lost update only moves the next attempt
+    private int incompressibleRun;
+    private int chunksToSkip;
+
+    /**
+     * Compresses a chunk into the target buffer if that saves enough
+     *
+     * @param chunk The chunk, from its position to its limit, whose position is left unchanged
+     * @param target The buffer to write the compressed chunk at its position, left untouched if the chunk is sent raw
+     * @return The length of the compressed chunk, or -1 if the chunk is to be sent raw
+     */
+    public int compress(ByteBuffer chunk, ByteBuffer target) {
+        if (chunksToSkip > 0) {
+            chunksToSkip--;
+            return -1;
+        }
+        int length = chunk.remaining();
+        int position = chunk.position();
+        int targetStart = target.position();
+        int targetLimit = target.limit();
+
+        // Stop deflating as soon as the output is no longer small enough to be worth sending
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(chunk);
+        deflater.finish();
+        target.limit(Math.min(targetLimit, targetStart + length - (length >> 3) - 1));
+        while (!deflater.finished()) {
+            if (deflater.deflate(target) == 0) {
+                break;
+            }
+        }
+        boolean compressed = deflater.finished() && length > 0;
+        target.limit(targetLimit);
+        chunk.position(position);
+
+        if (!compressed) {
+            target.position(targetStart);
+            if (++incompressibleRun >= INCOMPRESSIBLE_RUN) {
+                incompressibleRun = 0;
+                chunksToSkip = SKIPPED_CHUNKS;
+            }
+            return -1;
+        }
+        incompressibleRun = 0;
+        return target.position() - targetStart;
+    }
+
+    /**
+     * @return True if the next chunk will be sent raw without trying to compress it
+     */
+    public boolean isSkipping() {
+        return chunksToSkip > 0;
+    }
+
+    /**
+     * Compresses a chunk held in an array, for the shared chunk cache
+     *
+     * @param chunk The chunk
+     * @return The compressed chunk, shorter than the chunk, or the chunk itself if it is to be sent raw
+     */
+    public byte[] compress(byte[] chunk) {
+        ByteBuffer target = ByteBuffer.allocate(chunk.length);
+        int length = compress(ByteBuffer.wrap(chunk), target);
+        return length < 0 ? chunk : Arrays.copyOf(target.array(), length);
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * ChunkReader class that keeps a file open for a whole session and serves chunks from it
+ * Files at least as large as the mmap threshold are memory-mapped and copied straight from the mapping,
+ * smaller files are read with positional reads on the open FileChannel.
+ * Reads never move a shared position, so one reader can serve several threads at once.
+ */
+public class ChunkReader implements Closeable {
+    private final String fileName;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long lastModified;
+    private final MappedByteBuffer mapped;
+
+    /**
+     * Opens a file for reading chunks
+     *
+     * @param fileName The name of the file to open
+     * @param mmapThreshold The smallest file size in bytes that is memory-mapped instead of read with positional reads
+     */
+    public ChunkReader(String fileName, long mmapThreshold) throws IOException {
+        this.fileName = fileName;
+        Path path = Paths.get(fileName);
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        this.lastModified = Files.getLastModifiedTime(path).toMillis();
+        // A single mapping is limited to Integer.MAX_VALUE bytes, larger files fall back to positional reads
+        if (fileSize >= mmapThreshold && fileSize <= Integer.MAX_VALUE) {
+            this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        } else {
+            this.mapped = null;
+        }
+    }
+
+    /**
+     * Sets up a reader for a subclass that serves its bytes itself, with no channel or mapping of its own
+     *
+     * @param fileName The name the reader is served under
+     * @param fileSize The number of bytes the reader serves
+     * @param lastModified The last-modified time in milliseconds of what the reader serves
+     */
+    protected ChunkReader(String fileName, long fileSize, long lastModified) {
+        this.fileName = fileName;
+        this.channel = null;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.mapped = null;
+    }
+
+    /**
+     * Reads a chunk of the file into the target buffer, starting at the buffer's position.
+     * Reads as many bytes as the buffer has remaining, stopping early at the end of the file.
+     *
+     * @param position The offset in the file to read from
+     * @param target The buffer to read into, its position is advanced past the bytes read
+     * @return The number of bytes read
+     */
+    public int read(long position, ByteBuffer target) throws IOException {
+        int bytesToRead = (int) Math.min(target.remaining(), Math.max(0, fileSize - position));
+        if (bytesToRead == 0) {
+            return 0;
+        }
+        if (mapped != null) {
+            target.put(target.position(), mapped, (int) position, bytesToRead);
+            target.position(target.position() + bytesToRead);
+            return bytesToRead;
+        }
+
+        int limit = target.limit();
+        target.limit(target.position() + bytesToRead);
+        try {
+            int bytesRead = 0;
+            while (target.hasRemaining()) {
+                int read = channel.read(target, position + bytesRead);
+                if (read < 0) {
+                    break;
+                }
+                bytesRead += read;
+            }
+            return bytesRead;
+        } finally {
+            target.limit(limit);
+        }
+    }
+
+    /**
+     * @return The name of the file being read
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return The size of the file when it was opened
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @return The last-modified time of the file in milliseconds when it was opened
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return True if chunks are served from a memory mapping
+     */
+    public boolean isMapped() {
+        return mapped != null;
+    }
+
+    /**
+     * Closes the file, the mapping is released once it is no longer reachable
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
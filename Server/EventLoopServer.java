@@ -0,0 +1,474 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32C;
+
+/**
+ * Server mode that serves every download from the server port on a handful of threads
+ * A single non-blocking DatagramChannel receives all requests through a Selector and hands them
+ * to a fixed pool of worker threads. Sessions are found by the session id in binary packets,
+ * or by the client address and file name for text requests, so no port is bound per download.
+ * Each file is opened once by a ChunkReader shared by all of its sessions and closed when the last one ends,
+ * and each session reads it through a ReadAheadReader of its own.
+ */
+public class EventLoopServer {
+    private final int port;
+    private final int workerThreads;
+    private final Map<Integer, Session> sessionsById = new ConcurrentHashMap<>();
+    private final Map<String, Session> sessionsByTextKey = new ConcurrentHashMap<>();
+    private final Map<String, OpenFile> openFiles = new ConcurrentHashMap<>();
+    // Each worker thread reuses its own buffers for building responses, sized for the largest chunk a session can negotiate
+    private final ThreadLocal<ByteBuffer> binaryResponses =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Server.dataHeaderSize(true) + Server.maxChunkSize));
+    private final ThreadLocal<CRC32C> payloadChecksums = ThreadLocal.withInitial(CRC32C::new);
+    private final ThreadLocal<ByteBuffer> compressInputs = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Server.maxChunkSize));
+    private final ThreadLocal<ByteBuffer> textChunks = ThreadLocal.withInitial(() -> ByteBuffer.allocate(Server.maxChunkSize));
+
+    /**
+     * @param port The server port to receive every request on
+     * @param workerThreads The number of threads serving requests
+     */
+    public EventLoopServer(int port, int workerThreads) {
+        this.port = port;
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * Receives requests on the server port forever and dispatches each one to the worker pool
+     */
+    public void run() throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(workerThreads);
+        try (DatagramChannel channel = DatagramChannel.open();
+             Selector selector = Selector.open()) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, 4 * 1024 * 1024);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            Log.info("Server is listening on port " + port + " with " + workerThreads + " worker threads");
+
+            // Large enough for a BATCH request listing many files
+            ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(Server.MAX_DATAGRAM_SIZE);
+            while (true) {
+                selector.select();
+                selector.selectedKeys().clear();
+
+                // Drain every datagram that is waiting before selecting again
+                SocketAddress clientAddress;
+                while ((clientAddress = channel.receive(receiveBuffer)) != null) {
+                    long receivedTime = System.nanoTime();
+                    receiveBuffer.flip();
+                    byte[] request = new byte[receiveBuffer.remaining()];
+                    receiveBuffer.get(request);
+                    receiveBuffer.clear();
+
+                    SocketAddress replyAddress = clientAddress;
+                    workers.execute(() -> handleRequest(channel, request, replyAddress, receivedTime));
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Handles a single request on a worker thread
+     *
+     * @param channel The channel to send the response on
+     * @param request The request datagram
+     * @param clientAddress The address the request came from
+     * @param receivedTime The System.nanoTime at which the request was received
+     */
+    private void handleRequest(DatagramChannel channel, byte[] request, SocketAddress clientAddress, long receivedTime) {
+        try {
+            // Binary packets are demultiplexed by the session id that follows the opcode
+            if (request.length == Server.BINARY_HEADER_SIZE && request[0] == Server.OP_GET) {
+                ByteBuffer header = ByteBuffer.wrap(request);
+                Session session = sessionsById.get(Server.packetSessionId(header));
+                if (session != null) {
+                    session.lastActivity = receivedTime;
+                    sendBinaryChunk(channel, session, Server.packetOffset(header), Server.packetLength(header), clientAddress, receivedTime);
+                }
+                return;
+            }
+            if (request.length == Server.BINARY_CLOSE_SIZE && request[0] == Server.OP_CLOSE) {
+                int sessionId = Server.packetSessionId(ByteBuffer.wrap(request));
+                Session session = sessionsById.get(sessionId);
+                // Only the client that started the session may close it, as text sessions are only found by their client's address
+                if (session != null && session.clientAddress.equals(clientAddress)) {
+                    closeSession(session);
+                } else if (session != null) {
+                    Log.debug(() -> "Ignoring CLOSE of session " + sessionId + " from " + clientAddress);
+                }
+                // Confirm even an unknown session so a retransmitted CLOSE still gets its CLOSE_OK
+                channel.send(ByteBuffer.allocate(Server.BINARY_CLOSE_SIZE).put(Server.OP_CLOSE_OK).putInt(sessionId).flip(), clientAddress);
+                return;
+            }
+            if (request.length == Server.BINARY_CLOSE_SIZE && request[0] == Server.OP_DIGEST) {
+                Session session = sessionsById.get(Server.packetSessionId(ByteBuffer.wrap(request)));
+                if (session != null) {
+                    session.lastActivity = receivedTime;
+                    channel.send(ByteBuffer.wrap(Server.buildDigestReply(session.digest, true, session.id, session.fileName)), clientAddress);
+                }
+                return;
+            }
+            if (request.length == Server.BINARY_SEGMENTS_SIZE && request[0] == Server.OP_SEGMENTS) {
+                ByteBuffer header = ByteBuffer.wrap(request);
+                Session session = sessionsById.get(Server.packetSessionId(header));
+                if (session != null) {
+                    session.lastActivity = receivedTime;
+                    channel.send(ByteBuffer.wrap(Server.buildSegmentsReply(session.digest, true, session.id, session.fileName, Server.packetFirstSegment(header))),
+                            clientAddress);
+                }
+                return;
+            }
+
+            String requestData = new String(request);
+            Log.debug(() -> "Received request from " + clientAddress + ": " + requestData);
+            if (requestData.trim().equals("STATS")) {
+                channel.send(ByteBuffer.wrap(("STATS " + Server.chunkCache.stats()).getBytes()), clientAddress);
+            } else if (requestData.trim().equals("METRICS")) {
+                channel.send(ByteBuffer.wrap(Server.metrics.report().getBytes()), clientAddress);
+            } else if (requestData.startsWith("DOWNLOAD ")) {
+                handleDownload(channel, Server.DownloadRequest.parse(requestData.substring("DOWNLOAD ".length())), clientAddress);
+            } else if (Server.isBatchRequest(requestData)) {
+                handleBatch(channel, Server.DownloadRequest.parseBatch(requestData), clientAddress);
+            } else if (requestData.startsWith("FILE ")) {
+                handleTextFileRequest(channel, requestData, clientAddress, receivedTime);
+            }
+        } catch (IOException | RuntimeException e) {
+            // A request that fails, such as one naming a path the file system cannot represent, is answered with an error
+            Log.warn("Error handling request from " + clientAddress + ": " + e.getMessage());
+            byte[] errorData = Server.requestError(new String(request));
+            try {
+                if (errorData != null) {
+                    channel.send(ByteBuffer.wrap(errorData), clientAddress);
+                }
+            } catch (IOException sendError) {
+                Log.warn("Could not send the error to " + clientAddress + ": " + sendError.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Opens a session for a DOWNLOAD request and answers with this server's port as the handler port
+     *
+     * @param channel The channel to send the response on
+     * @param request The requested file name, possibly followed by CHUNK <bytes>, CHECKSUM CRC32C, COMPRESS DEFLATE and MODE BINARY
+     * @param clientAddress The address the request came from
+     */
+    private void handleDownload(DatagramChannel channel, Server.DownloadRequest request, SocketAddress clientAddress) throws IOException {
+        String fileName = request.getFileName();
+        File file = new File(fileName);
+        if (file.exists() && file.isFile()) {
+            startSession(channel, request, openFile(fileName), "", clientAddress);
+        } else {
+            channel.send(ByteBuffer.wrap(("ERR " + fileName + " NOT_FOUND").getBytes()), clientAddress);
+        }
+    }
+
+    /**
+     * Opens a session for a BATCH request, serving the listed files as the single stream of a BatchReader
+     *
+     * @param channel The channel to send the response on
+     * @param request The options and the file and directory names of the request
+     * @param clientAddress The address the request came from
+     */
+    private void handleBatch(DatagramChannel channel, Server.DownloadRequest request, SocketAddress clientAddress) throws IOException {
+        BatchReader batch;
+        try {
+            batch = BatchReader.open(request.getBatchNames());
+        } catch (IOException e) {
+            Log.warn("Could not list batch: " + e.getMessage());
+            channel.send(ByteBuffer.wrap(("ERR " + Server.BATCH_REQUEST + " READ_ERROR").getBytes()), clientAddress);
+            return;
+        }
+        ChunkReader reader = shareReader(batch);
+        startSession(channel, request.forBatch(reader.getFileName()), reader, Server.MANIFEST_FIELD + batch.getManifestSize(), clientAddress);
+    }
+
+    /**
+     * Opens a session on a reader the session already holds and sends the OK with this server's port as the handler port
+     *
+     * @param channel The channel to send the response on
+     * @param request The request, named after the file or batch the reader serves
+     * @param reader The shared reader the session serves
+     * @param manifestField The MANIFEST field of a batch, sent after any MTIME, or an empty string
+     * @param clientAddress The address the request came from
+     */
+    private void startSession(DatagramChannel channel, Server.DownloadRequest request, ChunkReader reader, String manifestField,
+                              SocketAddress clientAddress) throws IOException {
+        // The whole-file CRC32C is computed while the file downloads, the client asks for it at the end
+        int chunkSize = Server.negotiateChunkSize(request);
+        int segmentSize = Server.segmentSize(chunkSize);
+        CompletableFuture<FileDigestCache.Digest> digest = !request.isChecksum() ? null
+                : reader instanceof BatchReader ? Server.fileDigests.request((BatchReader) reader, segmentSize)
+                : Server.fileDigests.request(reader.getFileName(), segmentSize);
+        // Pick a session id that is not in use, then create the session once
+        // Should another worker take the same id first, this session's read-ahead is closed and another id is picked
+        Session session = null;
+        while (session == null) {
+            int id = ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE);
+            if (sessionsById.containsKey(id)) {
+                continue;
+            }
+            session = new Session(this, id, reader, clientAddress, chunkSize, digest, request.isCompress());
+            if (sessionsById.putIfAbsent(id, session) != null) {
+                session.reader.close();
+                session = null;
+            }
+        }
+        sessionsByTextKey.put(session.textKey, session);
+        session.startTime = Server.metrics.sessionStarted();
+        Server.reaper.register(session);
+        Log.info("Session " + session.id + " started for file: " + reader.getFileName() + " for Client: " + clientAddress);
+
+        String response = "OK " + reader.getFileName() + " SIZE " + reader.getFileSize() + " PORT " + port;
+        if (request.isMtime()) {
+            response += Server.MTIME_OPTION + " " + reader.getLastModified();
+        }
+        response += manifestField;
+        if (request.getChunkSize() > 0) {
+            response += Server.CHUNK_OPTION + session.chunkSize;
+        }
+        if (digest != null) {
+            response += Server.CHECKSUM_OPTION;
+        }
+        if (request.isCompress()) {
+            response += Server.COMPRESS_OPTION;
+        }
+        if (request.isBinary()) {
+            response += Server.BINARY_MODE_SUFFIX + " SESSION " + session.id;
+        }
+        channel.send(ByteBuffer.wrap(response.getBytes()), clientAddress);
+    }
+
+    /**
+     * Handles a text FILE GET, FILE DIGEST, FILE SEGMENTS or FILE CLOSE request, finding the session by client address and file name
+     *
+     * @param channel The channel to send the response on
+     * @param requestData The request message
+     * @param clientAddress The address the request came from
+     * @param receivedTime The System.nanoTime at which the request was received
+     */
+    private void handleTextFileRequest(DatagramChannel channel, String requestData, SocketAddress clientAddress,
+                                       long receivedTime) throws IOException {
+        Server.TextRequest textRequest = Server.TextRequest.parse(requestData);
+        if (textRequest == null) {
+            return;
+        }
+        Session session = sessionsByTextKey.get(textKey(clientAddress, textRequest.getFileName()));
+        if (textRequest.isClose()) {
+            if (session != null) {
+                closeSession(session);
+            }
+            channel.send(ByteBuffer.wrap(("FILE " + textRequest.getFileName() + " CLOSE_OK").getBytes()), clientAddress);
+        } else if (session != null && textRequest.isDigest()) {
+            session.lastActivity = receivedTime;
+            channel.send(ByteBuffer.wrap(Server.buildDigestReply(session.digest, false, session.id, session.fileName)), clientAddress);
+        } else if (session != null && textRequest.isSegments()) {
+            session.lastActivity = receivedTime;
+            channel.send(ByteBuffer.wrap(Server.buildSegmentsReply(session.digest, false, session.id, session.fileName,
+                    textRequest.getFirstSegment())), clientAddress);
+        } else if (session != null) {
+            session.lastActivity = receivedTime;
+            long startByte = textRequest.getStartByte();
+            long endByte = textRequest.getEndByte();
+            byte[] responseData = Server.buildTextChunkResponse(session.reader, startByte, endByte, session.chunkSize,
+                    session.checksum ? payloadChecksums.get() : null, session.compressor, textChunks.get());
+            channel.send(ByteBuffer.wrap(responseData), clientAddress);
+            Server.metrics.chunkServed((int) (endByte - startByte + 1), receivedTime);
+        }
+    }
+
+    /**
+     * Serves a binary GET request with the requested range as raw bytes in a binary DATA packet
+     *
+     * @param channel The channel to send the response on
+     * @param session The session the request belongs to
+     * @param startByte The offset of the requested range
+     * @param length The length of the requested range
+     * @param clientAddress The address to send the response to
+     * @param receivedTime The System.nanoTime at which the request was received
+     */
+    private void sendBinaryChunk(DatagramChannel channel, Session session, long startByte, int length,
+                                 SocketAddress clientAddress, long receivedTime) throws IOException {
+        if (startByte < 0 || length <= 0) {
+            return;
+        }
+        // Build the packet in this thread's direct response buffer, up to the session's chunk size
+        ByteBuffer response = Server.buildDataPacket(session.reader, startByte, Math.min(length, session.chunkSize), session.id,
+                session.checksum ? payloadChecksums.get() : null, session.compressor,
+                session.compressor != null ? compressInputs.get() : null, binaryResponses.get());
+        int bytesRead = Server.packetLength(response);
+        channel.send(response, clientAddress);
+        Server.metrics.chunkServed(bytesRead, receivedTime);
+    }
+
+    /**
+     * Returns the shared reader for a file, opening it if no session is using it yet
+     *
+     * @param fileName The name of the file
+     * @return The reader for the file
+     */
+    private ChunkReader openFile(String fileName) throws IOException {
+        try {
+            return openFiles.compute(fileName, (name, openFile) -> {
+                if (openFile == null) {
+                    try {
+                        openFile = new OpenFile(new ChunkReader(name, Server.mmapThreshold));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                openFile.sessions++;
+                return openFile;
+            }).reader;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Shares a reader opened for a session, such as a batch, with every other session using a reader of the same name
+     *
+     * @param reader The reader that has just been opened
+     * @return The shared reader, the given reader is closed if another is already open under its name
+     */
+    private ChunkReader shareReader(ChunkReader reader) throws IOException {
+        OpenFile openFile = openFiles.compute(reader.getFileName(), (name, open) -> {
+            if (open == null) {
+                open = new OpenFile(reader);
+            }
+            open.sessions++;
+            return open;
+        });
+        if (openFile.reader != reader) {
+            reader.close();
+        }
+        return openFile.reader;
+    }
+
+    /**
+     * Releases a session's use of its file, closing the file once no session is using it
+     *
+     * @param fileName The name of the file
+     */
+    private void releaseFile(String fileName) {
+        openFiles.computeIfPresent(fileName, (name, openFile) -> {
+            if (--openFile.sessions > 0) {
+                return openFile;
+            }
+            try {
+                openFile.reader.close();
+            } catch (IOException e) {
+                Log.warn("Error closing file: " + e.getMessage());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Removes a session so its id and text key no longer match any requests
+     *
+     * @param session The session to close
+     */
+    private void closeSession(Session session) {
+        if (sessionsById.remove(session.id, session)) {
+            sessionsByTextKey.remove(session.textKey, session);
+            session.reader.close();
+            releaseFile(session.fileName);
+            Server.reaper.unregister(session);
+            Server.metrics.sessionFinished(session.startTime);
+            Log.info("Session " + session.id + " for file: " + session.fileName + " finished");
+        }
+    }
+
+    /**
+     * @return The key used to find a text protocol session from the client address and file name
+     */
+    private static String textKey(SocketAddress clientAddress, String fileName) {
+        return clientAddress + " " + fileName;
+    }
+
+    /**
+     * Session class holding the state of a single download served by the event loop
+     * If the client stops sending requests, the SessionReaper closes the session as if it had sent a CLOSE
+     */
+    static class Session implements SessionReaper.IdleSession {
+        private final EventLoopServer server;
+        private final int id;
+        private final String fileName;
+        // Reads the shared file, loading the session's next chunks ahead of its requests
+        private final ReadAheadReader reader;
+        private final SocketAddress clientAddress;
+        private final String textKey;
+        private final int chunkSize;
+        private final boolean checksum;
+        // The CRC32C of the whole file and its segments being computed for the client to ask for, null if the session did not negotiate checksums
+        private final CompletableFuture<FileDigestCache.Digest> digest;
+        // Compresses the session's chunks, null if the session did not negotiate compression
+        private final ChunkCompressor compressor;
+        // Set once the session id is taken, for the session duration metric
+        private long startTime;
+        // Updated by whichever worker thread served the session's latest request
+        private volatile long lastActivity = System.nanoTime();
+
+        public Session(EventLoopServer server, int id, ChunkReader reader, SocketAddress clientAddress, int chunkSize,
+                       CompletableFuture<FileDigestCache.Digest> digest, boolean compress) {
+            this.server = server;
+            this.id = id;
+            this.fileName = reader.getFileName();
+            this.reader = Server.readAhead(reader);
+            this.clientAddress = clientAddress;
+            this.textKey = textKey(clientAddress, fileName);
+            this.chunkSize = chunkSize;
+            this.checksum = digest != null;
+            this.digest = digest;
+            this.compressor = compress ? new ChunkCompressor() : null;
+        }
+
+        @Override
+        public long getLastActivity() {
+            return lastActivity;
+        }
+
+        /**
+         * Removes the session and releases its file, so later requests for it are ignored
+         */
+        @Override
+        public void reap() {
+            server.closeSession(this);
+        }
+
+        @Override
+        public String describe() {
+            return "Session " + id + " for file: " + fileName;
+        }
+    }
+
+    /**
+     * OpenFile class counting the sessions that share one open file
+     */
+    static class OpenFile {
+        private final ChunkReader reader;
+        private int sessions;
+
+        public OpenFile(ChunkReader reader) {
+            this.reader = reader;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/**
+ * FileDigestCache class holding the CRC32C of every file the server has opened a session with checksums for
+ * A file's digest is computed once, streaming the file through a single reused buffer, and cached
+ * with the size and last-modified time it was computed for, so later downloads of an unchanged file
+ * cost only a stat and a file that changes on disk is digested again.
+ * Digests are computed on a few threads of their own while the session downloads, never on the thread that
+ * answers the request, as digesting a large file on a cold disk takes seconds.
+ * The same pass keeps the CRC32C of every segment of the file, so a client whose copy does not match can find the
+ * segments that differ and download only those again. A session's segments are a whole number of its chunks, so a
+ * digest is cached for one segment size and computed again for a session whose chunk size needs another.
+ * The cache holds the pending digest of a file as soon as a session asks for it and reads the file outside the cache's lock,
+ * so sessions starting together share one pass over the file and never wait on digests of other files.
+ * The stream of a batch is digested the same way through a copy of its BatchReader, cached under the batch's name.
+ * Only the most recently requested digests are kept, the least recently requested one is dropped first.
+ */
+public class FileDigestCache {
+    private static final int READ_SIZE = 1024 * 1024;
+    private static final int DIGEST_THREADS = 2;
+    // Bounds the digests held, as every file and batch ever downloaded with checksums would otherwise stay cached
+    private static final int MAX_DIGESTS = 1024;
+
+    // Guarded by its own lock, which is never held while a file is read
+    private final Map<String, Entry> digests = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_DIGESTS;
+        }
+    };
+    private final ExecutorService pool;
+
+    public FileDigestCache() {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(DIGEST_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "digest-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts computing the CRC32C of a whole file and of its segments, unless the digest of its current version is cached
+     *
+     * @param fileName The name of the file
+     * @param segmentSize The number of bytes in each segment
+     * @return The digest of the file's contents once computed, or a failure if the file could not be read
+     */
+    public CompletableFuture<Digest> request(String fileName, int segmentSize) {
+        return CompletableFuture.supplyAsync(() -> {
+            File file = new File(fileName);
+            return get(fileName, file.length(), file.lastModified(), segmentSize, null);
+        }, pool).thenCompose(digest -> digest);
+    }
+
+    /**
+     * Starts computing the CRC32C of the stream of a batch and of its segments, unless it is cached
+     * The stream is read through a copy of the reader, which the session may close before the digest is done.
+     *
+     * @param batch The batch of the session
+     * @param segmentSize The number of bytes in each segment
+     * @return The digest of the stream once computed, or a failure if a file could not be read
+     */
+    public CompletableFuture<Digest> request(BatchReader batch, int segmentSize) {
+        BatchReader copy = batch.copy();
+        return CompletableFuture.supplyAsync(() -> {
+            try (copy) {
+                return get(copy.getFileName(), copy.getFileSize(), copy.getLastModified(), segmentSize, copy);
+            }
+        }, pool).thenCompose(digest -> digest);
+    }
+
+    /**
+     * Returns the cached digest for a name if it is for the same size, last-modified time and segment size,
+     * computing it on the calling thread otherwise. A digest still being computed by another thread is returned as it is.
+     *
+     * @param fileName The name the digest is cached under
+     * @param fileSize The current size
+     * @param lastModified The current last-modified time
+     * @param segmentSize The number of bytes in each segment
+     * @param reader The open reader to stream, or null to open the file
+     * @return The digest once computed, or a failure with the IOException as its cause if the file could not be read
+     */
+    private CompletableFuture<Digest> get(String fileName, long fileSize, long lastModified, int segmentSize, ChunkReader reader) {
+        Entry entry;
+        synchronized (digests) {
+            Entry cached = digests.get(fileName);
+            if (cached != null && cached.matches(fileSize, lastModified, segmentSize)) {
+                return cached.digest;
+            }
+            entry = new Entry(fileSize, lastModified, segmentSize);
+            digests.put(fileName, entry);
+        }
+
+        // Read the file without holding the lock, sessions asking for it meanwhile are handed the pending digest
+        try {
+            if (reader != null) {
+                entry.digest.complete(compute(reader, segmentSize));
+            } else {
+                try (ChunkReader opened = new ChunkReader(fileName, Long.MAX_VALUE)) {
+                    entry.digest.complete(compute(opened, segmentSize));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Throwable cause = e instanceof UncheckedIOException ? e.getCause() : e;
+            Log.warn("Could not compute the CRC32C of " + fileName + ": " + cause.getMessage());
+            // Forget the failure, so the next session tries the file again
+            synchronized (digests) {
+                digests.remove(fileName, entry);
+            }
+            entry.digest.completeExceptionally(cause);
+        }
+        return entry.digest;
+    }
+
+    /**
+     * Streams a reader through a CRC32C of the whole reader and one of the current segment
+     * Reads never cross a segment boundary, so every read updates both.
+     *
+     * @param reader The open reader
+     * @param segmentSize The number of bytes in each segment
+     * @return The digest
+     */
+    private static Digest compute(ChunkReader reader, int segmentSize) {
+        long start = System.nanoTime();
+        long fileSize = reader.getFileSize();
+        CRC32C crc = new CRC32C();
+        CRC32C segmentCrc = new CRC32C();
+        int[] segmentCrcs = new int[(int) ((fileSize + segmentSize - 1) / segmentSize)];
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(READ_SIZE, Math.max(1, fileSize)));
+        long position = 0;
+        int bytesRead;
+        try {
+            while (position < fileSize) {
+                long segmentEnd = Math.min(fileSize, (position / segmentSize + 1) * segmentSize);
+                buffer.clear().limit((int) Math.min(buffer.capacity(), segmentEnd - position));
+                if ((bytesRead = reader.read(position, buffer)) <= 0) {
+                    throw new IOException("Unexpected end of file at " + position + " of " + fileSize + " bytes");
+                }
+                crc.update(buffer.flip());
+                segmentCrc.update(buffer.rewind());
+                position += bytesRead;
+                if (position == segmentEnd) {
+                    segmentCrcs[(int) ((position - 1) / segmentSize)] = (int) segmentCrc.getValue();
+                    segmentCrc.reset();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Log.info("Computed the CRC32C of " + reader.getFileName() + " (" + position + " bytes) in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return new Digest((int) crc.getValue(), segmentSize, segmentCrcs);
+    }
+
+    /**
+     * Entry class holding the digest of a file, pending until it has been computed, and the version of the file it is for
+     */
+    static class Entry {
+        private final long fileSize;
+        private final long lastModified;
+        private final int segmentSize;
+        private final CompletableFuture<Digest> digest = new CompletableFuture<>();
+
+        public Entry(long fileSize, long lastModified, int segmentSize) {
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+            this.segmentSize = segmentSize;
+        }
+
+        /**
+         * @return True if the digest is for a file of this size and last-modified time, in segments of this size
+         */
+        public boolean matches(long fileSize, long lastModified, int segmentSize) {
+            return this.fileSize == fileSize && this.lastModified == lastModified && this.segmentSize == segmentSize;
+        }
+    }
+
+    /**
+     * Digest class holding a file's CRC32C and the CRC32C of each of its segments
+     */
+    static class Digest {
+        private final int crc;
+        private final int segmentSize;
+        private final int[] segmentCrcs;
+
+        public Digest(int crc, int segmentSize, int[] segmentCrcs) {
+            this.crc = crc;
+            this.segmentSize = segmentSize;
+            this.segmentCrcs = segmentCrcs;
+        }
+
+        /**
+         * @return The CRC32C of the whole file
+         */
+        public int getCrc() {
+            return crc;
+        }
+
+        /**
+         * @return The number of bytes in each segment, the last segment may be shorter
+         */
+        public int getSegmentSize() {
+            return segmentSize;
+        }
+
+        /**
+         * @return The number of segments the file is split into
+         */
+        public int getSegmentCount() {
+            return segmentCrcs.length;
+        }
+
+        /**
+         * @return The CRC32C of a segment
+         */
+        public int getSegmentCrc(int segment) {
+            return segmentCrcs[segment];
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram class counting durations in buckets that double in size
+ * Bucket 0 holds durations of 0 and 1, and bucket i holds durations from 2^(i-1) + 1 to 2^i, in the caller's unit.
+ * Recording is a few atomic additions with no locking, so every thread serving requests can record into one histogram.
+ * Percentiles are reported as the upper bound of their bucket, so they are at most twice the true value.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 48;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records one duration
+     *
+     * @param value The duration, negative values are counted as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        int bucket = value <= 1 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value - 1));
+        counts.incrementAndGet(bucket);
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @return The number of durations recorded
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return The mean of the durations recorded, 0 if there are none
+     */
+    public double getMean() {
+        long recorded = count.sum();
+        return recorded == 0 ? 0 : (double) sum.sum() / recorded;
+    }
+
+    /**
+     * @return The longest duration recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile The percentile to find, from 0 to 100
+     * @return The upper bound of the bucket holding that percentile, 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        long recorded = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            recorded += snapshot[i];
+        }
+        long rank = (long) Math.ceil(recorded * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(1L << i, getMax());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param unit The unit of the durations, for the summary
+     * @return The count, mean, median, 90th and 99th percentile and maximum as a single line
+     */
+    public String summary(String unit) {
+        return String.format("COUNT %d MEAN %.1f%s P50 %d%s P90 %d%s P99 %d%s MAX %d%s", getCount(), getMean(), unit,
+                getPercentile(50), unit, getPercentile(90), unit, getPercentile(99), unit, getMax(), unit);
+    }
+}
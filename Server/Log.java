@@ -0,0 +1,89 @@
+import java.util.Locale;
+import java.util.function.Supplier;
+
+/**
+ * Log class writing the server's messages to standard output when their level is enabled
+ * Session and error messages are logged at INFO and WARN, which are on by default.
+ * Messages for every packet are logged at DEBUG, which is off by default because printing
+ * a line per packet costs more than serving it. DEBUG messages are built by a Supplier,
+ * so nothing is formatted while the level is off.
+ */
+public final class Log {
+    /**
+     * Levels in order of increasing detail, a level shows its own messages and every level before it
+     */
+    enum Level {
+        OFF,
+        ERROR,
+        WARN,
+        INFO,
+        DEBUG
+    }
+
+    private static volatile Level level = Level.INFO;
+
+    private Log() {
+    }
+
+    /**
+     * Sets the most detailed level that is shown
+     *
+     * @param name The name of the level, in any case
+     * @throws IllegalArgumentException If there is no level with that name
+     */
+    public static void setLevel(String name) {
+        level = Level.valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @param messageLevel The level of a message
+     * @return True if messages of that level are shown
+     */
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel != Level.OFF && messageLevel.ordinal() <= level.ordinal();
+    }
+
+    /**
+     * Logs a message for a single packet, building it only if DEBUG is enabled
+     *
+     * @param message Builds the message
+     */
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            System.out.println(message.get());
+        }
+    }
+
+    /**
+     * Logs a message about the server or a session
+     *
+     * @param message The message
+     */
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            System.out.println(message);
+        }
+    }
+
+    /**
+     * Logs a problem the server recovers from, such as a bad request
+     *
+     * @param message The message
+     */
+    public static void warn(String message) {
+        if (isEnabled(Level.WARN)) {
+            System.out.println(message);
+        }
+    }
+
+    /**
+     * Logs a problem that stops the server or a session
+     *
+     * @param message The message
+     */
+    public static void error(String message) {
+        if (isEnabled(Level.ERROR)) {
+            System.out.println(message);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MemoryBudget class bounding the bytes held by buffers that many sessions allocate independently
+ * A session reserves a buffer's bytes before allocating it and releases them once it lets the buffer go,
+ * and a reservation that would take the total over the budget is refused, so the session does without the buffer.
+ * Reservations are lock-free, as sessions served by different threads reserve and release at once.
+ */
+public class MemoryBudget {
+    private final long budget;
+    private final AtomicLong reserved = new AtomicLong();
+
+    /**
+     * @param budget The largest number of bytes that may be reserved at once
+     */
+    public MemoryBudget(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Reserves bytes if they fit within the budget
+     *
+     * @param bytes The number of bytes to reserve
+     * @return True if the bytes were reserved, false if they would take the total over the budget
+     */
+    public boolean tryReserve(long bytes) {
+        long current;
+        do {
+            current = reserved.get();
+            if (current + bytes > budget) {
+                return false;
+            }
+        } while (!reserved.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    /**
+     * Releases bytes reserved earlier
+     *
+     * @param bytes The number of bytes to release
+     */
+    public void release(long bytes) {
+        reserved.addAndGet(-bytes);
+    }
+
+    /**
+     * @return The number of bytes currently reserved
+     */
+    public long getReserved() {
+        return reserved.get();
+    }
+
+    /**
+     * @return The largest number of bytes that may be reserved at once
+     */
+    public long getBudget() {
+        return budget;
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * PortAllocator class handing out the client handler ports without locking
+ * Free ports wait in a lock-free queue, so acquiring and releasing a port are both O(1)
+ * and may run on any number of threads at once.
+ * Each port also has a state that is switched with compare-and-set, so a port is only ever
+ * held by one session, and releasing a port that is not held does nothing.
+ * The ports start in a random order and released ports go to the back of the queue,
+ * so a port is reused only after every other free port, and late packets from an ended
+ * session are unlikely to reach the next session on its port.
+ */
+public class PortAllocator {
+    private static final int FREE = 0;
+    private static final int HELD = 1;
+    private static final int EXCLUDED = 2;
+
+    private final int minPort;
+    private final int maxPort;
+    // Boxed once, so queueing a port never allocates a new Integer
+    private final Integer[] ports;
+    private final AtomicIntegerArray states;
+    private final ConcurrentLinkedQueue<Integer> freePorts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger available = new AtomicInteger();
+    private final int size;
+
+    /**
+     * @param minPort The lowest port to hand out
+     * @param maxPort The highest port to hand out
+     * @param excludedPorts Ports in the range that are never handed out, such as the server port
+     * @param random Shuffles the order in which the ports are first handed out
+     */
+    public PortAllocator(int minPort, int maxPort, Set<Integer> excludedPorts, Random random) {
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+        this.ports = new Integer[maxPort - minPort + 1];
+        this.states = new AtomicIntegerArray(ports.length);
+
+        List<Integer> order = new ArrayList<>();
+        for (int port = minPort; port <= maxPort; port++) {
+            ports[port - minPort] = port;
+            if (excludedPorts.contains(port)) {
+                states.set(port - minPort, EXCLUDED);
+            } else {
+                order.add(ports[port - minPort]);
+            }
+        }
+        Collections.shuffle(order, random);
+        freePorts.addAll(order);
+        available.set(order.size());
+        size = order.size();
+    }
+
+    /**
+     * Takes a free port
+     *
+     * @return The port, now held by the caller, or -1 if every port is held
+     */
+    public int acquire() {
+        Integer port = freePorts.poll();
+        if (port == null) {
+            return -1;
+        }
+        // Only free ports are ever queued, so this always succeeds
+        if (!states.compareAndSet(port - minPort, FREE, HELD)) {
+            throw new IllegalStateException("Port " + port + " was queued while held");
+        }
+        available.decrementAndGet();
+        return port;
+    }
+
+    /**
+     * Returns a held port so it can be handed out again
+     *
+     * @param port The port to release
+     * @return True if the port was held and is now free, false if it was not held or is not in the range
+     */
+    public boolean release(int port) {
+        if (port < minPort || port > maxPort || !states.compareAndSet(port - minPort, HELD, FREE)) {
+            return false;
+        }
+        available.incrementAndGet();
+        freePorts.offer(ports[port - minPort]);
+        return true;
+    }
+
+    /**
+     * @return The number of ports that are free, which may already be stale when other threads are acquiring
+     */
+    public int available() {
+        return available.get();
+    }
+
+    /**
+     * @return The number of ports the allocator hands out
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,281 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * ReadAheadReader class serving one session's reads and loading the chunks it is about to ask for before it asks
+ * Clients ask for chunks in order, so once a session's reads follow one another the next chunks are read on the
+ * shared read-ahead pool into buffers of the session's own, and a request finds its chunk there instead of waiting
+ * for the disk. A request for a chunk that is still being loaded waits for that load rather than reading it again.
+ * The chunk length is taken from the first full read, and only reads of whole chunks at chunk offsets are read ahead,
+ * anything else is read straight from the wrapped reader.
+ * The read-ahead depth starts at two chunks, doubles whenever the session asks for the next chunk before the
+ * read-ahead has it ready, up to the byte budget, and halves when loaded chunks are never asked for.
+ * A request far ahead of the read-ahead, such as the start of a stripe, starts over from the shallowest depth.
+ * Requests for chunks the chunk cache already holds never reach the reader, so a partly cached file reads ahead less.
+ * Each session loads its chunks one at a time and in order, so a session takes at most one thread of the pool.
+ * A session allocates its buffers as it first loads into them, from a budget shared by every session; once that is
+ * spent the session reads ahead only into the buffers it already has, or reads its chunks straight from the file.
+ * A chunk a request is waiting for is never replaced by a further chunk before the request has taken it.
+ * Closing the reader stops the read-ahead but leaves the wrapped reader open, as other sessions may share it.
+ */
+public class ReadAheadReader extends ChunkReader {
+    // The depth a read-ahead starts at and never drops below, in chunks
+    private static final int MIN_DEPTH = 2;
+    // Bounds the buffers of a session with small chunks, whatever the byte budget
+    static final int MAX_DEPTH = 64;
+
+    private final ChunkReader reader;
+    private final ExecutorService pool;
+    private final long budget;
+    // Shared by every session, the buffers' bytes are reserved before they are allocated and released on close
+    private final MemoryBudget sharedBudget;
+    // Set from the first full read: the chunk length, and the buffers chunks are loaded into, chunk c in slot c % slots.length
+    private int chunkLength;
+    private Slot[] slots;
+    private int maxDepth;
+    private int depth;
+    // One past the furthest chunk asked for, and the next chunk the read-ahead will load
+    private long nextChunk;
+    private long loadFrom;
+    // True while a load of this session is queued or running on the pool
+    private boolean loading;
+    private boolean closed;
+
+    /**
+     * @param reader The reader to read through, which stays open when this one is closed
+     * @param pool The shared pool chunks are loaded on, null to read everything straight from the reader
+     * @param budget The largest number of bytes the session may hold in loaded chunks
+     * @param sharedBudget The bytes every session together may hold in loaded chunks
+     */
+    public ReadAheadReader(ChunkReader reader, ExecutorService pool, long budget, MemoryBudget sharedBudget) {
+        super(reader.getFileName(), reader.getFileSize(), reader.getLastModified());
+        this.reader = reader;
+        this.pool = budget > 0 ? pool : null;
+        this.budget = budget;
+        this.sharedBudget = sharedBudget;
+    }
+
+    /**
+     * Reads a chunk of the file into the target buffer, from the chunks loaded ahead if it is one of them.
+     * Reads as many bytes as the buffer has remaining, stopping early at the end of the file.
+     *
+     * @param position The offset in the file to read from
+     * @param target The buffer to read into, its position is advanced past the bytes read
+     * @return The number of bytes read
+     */
+    @Override
+    public int read(long position, ByteBuffer target) throws IOException {
+        if (pool == null) {
+            return reader.read(position, target);
+        }
+        int length = (int) Math.min(target.remaining(), Math.max(0, getFileSize() - position));
+        synchronized (this) {
+            if (chunkLength == 0 && length > 0 && length < getFileSize() - position && position % length == 0) {
+                start(length);
+            }
+            if (chunkLength > 0 && position % chunkLength == 0 && length > 0 && length == expectedLength(position / chunkLength)) {
+                Slot slot = request(position / chunkLength);
+                if (slot != null) {
+                    target.put(slot.data);
+                    slot.chunk = -1;
+                    return length;
+                }
+            }
+        }
+        Server.metrics.readAheadMissed();
+        return reader.read(position, target);
+    }
+
+    /**
+     * Sets the chunk length from the first full read and sizes the session's read-ahead to the byte budget
+     */
+    private void start(int length) {
+        chunkLength = length;
+        maxDepth = (int) Math.max(1, Math.min(MAX_DEPTH, budget / length));
+        depth = Math.min(MIN_DEPTH, maxDepth);
+        slots = new Slot[maxDepth];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * Moves the read-ahead on for a request and takes the requested chunk from it if it has been loaded,
+     * waiting for it if it is being loaded. Called holding the lock.
+     *
+     * @param chunk The index of the requested chunk
+     * @return The slot holding the chunk, flipped ready to copy, or null if it has to be read from the reader
+     */
+    private Slot request(long chunk) throws IOException {
+        boolean first = nextChunk == 0 && loadFrom == 0;
+        boolean sequential = !first && chunk >= nextChunk && chunk <= nextChunk + depth;
+        if (chunk >= nextChunk) {
+            if (!first && !sequential) {
+                // A jump past the read-ahead, start reading ahead again from here
+                depth = Math.min(MIN_DEPTH, maxDepth);
+            }
+            nextChunk = chunk + 1;
+            loadFrom = Math.max(loadFrom, nextChunk);
+        }
+
+        Slot slot = slots[(int) (chunk % slots.length)];
+        boolean waited = false;
+        slot.waiters++;
+        try {
+            while (slot.chunk == chunk && slot.loading) {
+                waited = true;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for a chunk being read ahead");
+                }
+            }
+        } finally {
+            slot.waiters--;
+        }
+        boolean hit = slot.chunk == chunk;
+        if (sequential && (waited || !hit)) {
+            // The session caught up with the read-ahead, so read further ahead
+            depth = Math.min(maxDepth, depth * 2);
+        }
+        if (hit) {
+            Server.metrics.readAheadHit(waited);
+        }
+        scheduleLoads();
+        return hit ? slot : null;
+    }
+
+    /**
+     * @return The number of bytes in a chunk, fewer than the chunk length for the last chunk of the file
+     */
+    private int expectedLength(long chunk) {
+        return (int) Math.min(chunkLength, getFileSize() - chunk * chunkLength);
+    }
+
+    /**
+     * @return The index one past the last chunk the read-ahead should hold, never past the end of the file
+     */
+    private long windowEnd() {
+        long chunks = (getFileSize() + chunkLength - 1) / chunkLength;
+        return Math.min(chunks, nextChunk + depth);
+    }
+
+    /**
+     * Starts this session's loads on the pool if there are chunks to load and none are being loaded. Called holding the lock.
+     */
+    private void scheduleLoads() {
+        if (loading || closed || loadFrom >= windowEnd()) {
+            return;
+        }
+        loading = true;
+        try {
+            pool.execute(this::loadChunks);
+        } catch (RejectedExecutionException e) {
+            loading = false;
+        }
+    }
+
+    /**
+     * Loads chunks on a pool thread in order until the read-ahead holds every chunk up to its depth
+     */
+    private void loadChunks() {
+        while (true) {
+            Slot slot;
+            long chunk;
+            synchronized (this) {
+                if (closed || loadFrom >= windowEnd()) {
+                    loading = false;
+                    notifyAll();
+                    return;
+                }
+                chunk = loadFrom;
+                slot = slots[(int) (chunk % slots.length)];
+                // Stop at a slot whose chunk a request is waiting to take, or whose buffer the shared budget cannot afford,
+                // the next request starts the loads again
+                if (slot.waiters > 0 || (slot.data == null && !sharedBudget.tryReserve(chunkLength))) {
+                    loading = false;
+                    notifyAll();
+                    return;
+                }
+                loadFrom++;
+                if (slot.chunk >= 0) {
+                    // The slot still holds a chunk behind the session that was never asked for
+                    Server.metrics.readAheadWasted();
+                    depth = Math.max(Math.min(MIN_DEPTH, maxDepth), depth / 2);
+                }
+                slot.chunk = chunk;
+                slot.loading = true;
+            }
+
+            // Read outside the lock, the slot is the load's alone until it is marked loaded, its bytes already reserved
+            if (slot.data == null) {
+                slot.data = ByteBuffer.allocateDirect(chunkLength);
+            }
+            slot.data.clear().limit(expectedLength(chunk));
+            boolean loaded;
+            try {
+                reader.read(chunk * chunkLength, slot.data);
+                slot.data.flip();
+                loaded = true;
+            } catch (IOException e) {
+                Log.debug(() -> "Could not read ahead in " + getFileName() + ": " + e.getMessage());
+                loaded = false;
+            }
+            synchronized (this) {
+                slot.loading = false;
+                if (loaded) {
+                    Server.metrics.readAheadLoaded();
+                } else {
+                    slot.chunk = -1;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stops the read-ahead and waits for a chunk still being loaded, so the wrapped reader can be closed after it
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        boolean interrupted = false;
+        while (loading) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (slots != null) {
+            for (Slot slot : slots) {
+                if (slot.chunk >= 0) {
+                    Server.metrics.readAheadWasted();
+                    slot.chunk = -1;
+                }
+                if (slot.data != null) {
+                    sharedBudget.release(slot.data.capacity());
+                    slot.data = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Slot class holding one chunk loaded ahead of the session's requests
+     */
+    static class Slot {
+        // The index of the chunk the slot holds or is loading, -1 if it is free
+        private long chunk = -1;
+        private boolean loading;
+        // The number of requests waiting for the slot's chunk to finish loading
+        private int waiters;
+        private ByteBuffer data;
+    }
+}
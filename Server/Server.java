@@ -1,39 +1,139 @@
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
 
 /**
  * Server class for handling file download requests from clients
  */
 public class Server {
-    private static final Set<Integer> usedPorts = new HashSet<>();
-    private static final ArrayList<Integer> availablePorts = new ArrayList<>();
     private static final Random rand = new Random();
     private static final int CLIENT_MIN_PORT = 50000;
     private static final int CLIENT_MAX_PORT = 51000;
+    // Ports in the pool may already be bound by other programs, such as outgoing sockets given ephemeral ports
+    private static final int MAX_BIND_ATTEMPTS = 10;
+    // The client handler ports, set up once the server port is known
+    private static PortAllocator portAllocator;
+
+    // Binary data path: opcode (1 byte), session id (4 bytes), offset (8 bytes), length (4 bytes), then raw file bytes
+    // CLOSE and CLOSE_OK packets carry only the opcode and session id
+    static final byte OP_GET = 1;
+    static final byte OP_DATA = 2;
+    static final byte OP_CLOSE = 3;
+    static final byte OP_CLOSE_OK = 4;
+    // A DATA packet whose payload is the chunk compressed with raw Deflate, the length field still holds the chunk's length
+    static final byte OP_DATA_DEFLATE = 5;
+    // A DIGEST packet carries only the opcode and session id, and asks for the CRC32C of the whole file
+    // The DIGEST_OK reply adds a status byte and the CRC32C, which is only meaningful once the status is DIGEST_READY
+    static final byte OP_DIGEST = 6;
+    static final byte OP_DIGEST_OK = 7;
+    static final byte DIGEST_READY = 0;
+    static final byte DIGEST_PENDING = 1;
+    static final byte DIGEST_FAILED = 2;
+    // A SEGMENTS packet adds the index of the first segment to a DIGEST, and asks for the CRC32C of the segments from it
+    // The SEGMENTS_OK reply adds a status byte, the segment size and the first segment, then the CRC32C of each segment
+    static final byte OP_SEGMENTS = 8;
+    static final byte OP_SEGMENTS_OK = 9;
+    static final int BINARY_HEADER_SIZE = 17;
+    static final int BINARY_CLOSE_SIZE = 5;
+    static final int BINARY_DIGEST_OK_SIZE = 10;
+    static final int BINARY_SEGMENTS_SIZE = 9;
+    static final int BINARY_SEGMENTS_OK_HEADER_SIZE = 14;
+    // Sessions that negotiate checksums get a CRC32C after the length field of every DATA packet,
+    // of the payload followed by the header fields before it, so a damaged offset or length is caught as well
+    static final int CHECKSUM_SIZE = 4;
+    // The whole-file digest also keeps the CRC32C of every segment of about this many bytes, a whole number of the session's chunks
+    static final int SEGMENT_SIZE = 1024 * 1024;
+    // The most segment CRC32C values in one SEGMENTS_OK reply, which keeps a text reply well within the client's receive buffer
+    static final int SEGMENTS_PER_REPLY = 128;
+    // Keeps a binary chunk and its header within a 1472 byte UDP payload, the largest that fits a 1500 byte Ethernet MTU
+    // Used by binary sessions that do not negotiate a chunk size
+    static final int DEFAULT_BINARY_CHUNK_SIZE = 1400;
+    static final String BINARY_MODE_SUFFIX = " MODE BINARY";
+    static final String CHUNK_OPTION = " CHUNK ";
+    static final String CHECKSUM_OPTION = " CHECKSUM CRC32C";
+    static final String COMPRESS_OPTION = " COMPRESS DEFLATE";
+    // Asks for the file's last-modified time in the OK, which the client needs to resume a download
+    static final String MTIME_OPTION = " MTIME";
+    // A BATCH request lists one file or directory name per line after its options
+    static final String BATCH_REQUEST = "BATCH";
+    // Sent after any MTIME in the OK of a batch, the number of bytes of the manifest at the start of its stream
+    static final String MANIFEST_FIELD = " MANIFEST ";
+    // The largest UDP payload over IPv4, every response must fit in one datagram
+    static final int MAX_DATAGRAM_SIZE = 65507;
+
+    // Files at least this large are memory-mapped by their ChunkReader instead of read with positional reads
+    private static final long DEFAULT_MMAP_THRESHOLD = 16 * 1024 * 1024;
+    private static final long DEFAULT_CACHE_SIZE = 64 * 1024 * 1024;
+    // Well above the client's own give-up time, so only sessions whose client has gone are reaped
+    private static final long DEFAULT_IDLE_TIMEOUT = 60;
+    // Off unless asked for, as ReadAheadBenchmark has not shown a cold download to get faster with it
+    private static final long DEFAULT_READ_AHEAD = 0;
+    // Bounds the read-ahead buffers of every session together, however many sessions there are
+    private static final long DEFAULT_READ_AHEAD_BUDGET = 64 * 1024 * 1024;
+    private static final int DEFAULT_READ_AHEAD_THREADS = 4;
+    private static final String USAGE = "Usage: java Server <port> [--nio <threads>] [--mmap-threshold <bytes>] [--cache-size <bytes>] [--max-chunk-size <bytes>] [--log-level <level>] [--idle-timeout <seconds>] [--read-ahead <bytes>] [--read-ahead-budget <bytes>] [--read-ahead-threads <threads>]";
+    static long mmapThreshold = DEFAULT_MMAP_THRESHOLD;
+    // The largest chunk size a client may negotiate, by default the largest binary chunk that fits in one datagram
+    static int maxChunkSize = MAX_DATAGRAM_SIZE - BINARY_HEADER_SIZE;
+    // Chunks shared by every session on the server, replaced once the options have been parsed
+    static ChunkCache chunkCache = new ChunkCache(0);
+    static final ServerMetrics metrics = new ServerMetrics();
+    // Whole-file CRC32C values sent to sessions that negotiate checksums once they ask for them
+    static final FileDigestCache fileDigests = new FileDigestCache();
+    // Ends sessions whose client stopped sending requests, replaced once the options have been parsed
+    static SessionReaper reaper = new SessionReaper(0);
+    // The bytes each session may load ahead of its requests, and the threads they are loaded on, null if read-ahead is off
+    static long readAhead = DEFAULT_READ_AHEAD;
+    static ExecutorService readAheadPool;
+    // The bytes the read-ahead of every session together may hold, replaced once the options have been parsed
+    static MemoryBudget readAheadBudget = new MemoryBudget(0);
+    // Lists BATCH requests for the thread-per-session server, off the thread receiving requests
+    private static final int BATCH_LISTING_THREADS = 2;
+    private static final ExecutorService batchPool = newBatchPool();
 
     /**
      * Starts the server on the specified port and listens for incoming requests.
-     * Creates a new thread to handle client requests for file downloads.
+     * Creates a new thread to handle client requests for file downloads,
+     * or with --nio serves every session from a single socket using an EventLoopServer.
      *
-     * @param args Command line arguments: port
+     * @param args Command line arguments: port, optionally followed by --nio (number of worker threads)
+     *             --mmap-threshold (smallest file size in bytes to memory-map)
+     *             --cache-size (memory budget in bytes of the shared chunk cache, 0 to disable it)
+     *             --max-chunk-size (largest chunk size in bytes a client may negotiate)
+     *             --log-level (off, error, warn, info or debug, debug logs every packet)
+     *             --idle-timeout (seconds a session may go without a request before it is reaped, 0 to never reap)
+     *             --read-ahead (bytes of chunks each session may load ahead of its requests, 0, the default, to disable read-ahead)
+     *             --read-ahead-budget (bytes of chunks every session together may hold loaded ahead)
+     *             and --read-ahead-threads (number of threads loading chunks ahead for every session)
      */
     public static void main(String[] args) {
         // Check if the correct number of arguments is provided
-        if (args.length != 1) {
-            System.out.println("Usage: java Server <port>");
+        if (args.length < 1) {
+            System.out.println(USAGE);
             return;
         }
 
         int port;
+        int eventLoopThreads = 0;
+        long cacheSize = DEFAULT_CACHE_SIZE;
+        long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        int readAheadThreads = DEFAULT_READ_AHEAD_THREADS;
+        long readAheadBudgetSize = DEFAULT_READ_AHEAD_BUDGET;
 
         // Parse the port number
         try {
@@ -43,23 +143,109 @@ public class Server {
                 System.out.println("Error: Port number must be between 50000 and 51000.");
                 System.exit(1);
             }
-            usedPorts.add(port);
-            // Set up the available ports
-            for (int i = CLIENT_MIN_PORT; i <= CLIENT_MAX_PORT; i++) {
-                if (!usedPorts.contains(i)) {
-                    availablePorts.add(i);
-                }
-            }
         } catch (NumberFormatException e) {
             System.out.println("Invalid port number. Please provide a valid integer.");
             return;
         }
 
+        // Parse the optional settings that follow the port
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--nio":
+                        eventLoopThreads = Integer.parseInt(args[++i]);
+                        if (eventLoopThreads < 1) {
+                            System.out.println("Error: The number of threads must be at least 1.");
+                            return;
+                        }
+                        break;
+                    case "--mmap-threshold":
+                        mmapThreshold = Long.parseLong(args[++i]);
+                        break;
+                    case "--cache-size":
+                        cacheSize = Long.parseLong(args[++i]);
+                        break;
+                    case "--max-chunk-size":
+                        maxChunkSize = Integer.parseInt(args[++i]);
+                        if (maxChunkSize < 1) {
+                            System.out.println("Error: The maximum chunk size must be at least 1.");
+                            return;
+                        }
+                        break;
+                    case "--log-level":
+                        Log.setLevel(args[++i]);
+                        break;
+                    case "--idle-timeout":
+                        idleTimeout = Long.parseLong(args[++i]);
+                        if (idleTimeout < 0) {
+                            System.out.println("Error: The idle timeout cannot be negative.");
+                            return;
+                        }
+                        break;
+                    case "--read-ahead":
+                        readAhead = Long.parseLong(args[++i]);
+                        if (readAhead < 0) {
+                            System.out.println("Error: The read-ahead cannot be negative.");
+                            return;
+                        }
+                        break;
+                    case "--read-ahead-budget":
+                        readAheadBudgetSize = Long.parseLong(args[++i]);
+                        if (readAheadBudgetSize < 0) {
+                            System.out.println("Error: The read-ahead budget cannot be negative.");
+                            return;
+                        }
+                        break;
+                    case "--read-ahead-threads":
+                        readAheadThreads = Integer.parseInt(args[++i]);
+                        if (readAheadThreads < 1) {
+                            System.out.println("Error: The number of read-ahead threads must be at least 1.");
+                            return;
+                        }
+                        break;
+                    default:
+                        System.out.println("Unknown option: " + args[i]);
+                        System.out.println(USAGE);
+                        return;
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid option value. " + USAGE);
+            return;
+        }
+
+        chunkCache = new ChunkCache(cacheSize);
+        reaper = new SessionReaper(idleTimeout * 1000);
+        reaper.start();
+        readAheadBudget = new MemoryBudget(readAheadBudgetSize);
+        if (readAhead > 0) {
+            AtomicInteger threadCount = new AtomicInteger();
+            readAheadPool = Executors.newFixedThreadPool(readAheadThreads, runnable -> {
+                Thread thread = new Thread(runnable, "read-ahead-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        // Set up the available ports, every port in the range except the server port
+        portAllocator = new PortAllocator(CLIENT_MIN_PORT, CLIENT_MAX_PORT, Set.of(port), rand);
+        metrics.start(eventLoopThreads > 0 ? 0 : portAllocator.size());
+
+        // Serve every session from the server port on a few threads instead of one thread and port per download
+        if (eventLoopThreads > 0) {
+            try {
+                new EventLoopServer(port, eventLoopThreads).run();
+            } catch (IOException e) {
+                Log.error("IO Exception in server: " + e.getMessage());
+            }
+            return;
+        }
+
         // Start the server on a new datagram socket with the specified port
         try (DatagramSocket serverSocket = new DatagramSocket(port)) {
-            System.out.println("Server is listening on port " + port);
-            
-            byte[] buffer = new byte[2048];
+            Log.info("Server is listening on port " + port);
+
+            // Large enough for a BATCH request listing many files
+            byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
 
             // Continuously listen for incoming requests
             while (true) {
@@ -67,186 +253,1025 @@ public class Server {
                 DatagramPacket requestPacket = new DatagramPacket(buffer, buffer.length);
                 serverSocket.receive(requestPacket);
 
-                // Process the received request
-                String receivedData = new String(requestPacket.getData(), 0, requestPacket.getLength());
-                System.out.println("Received request: " + receivedData);
-
-                // Get the client address and port from the request packet
-                InetAddress clientAddress = requestPacket.getAddress();
-                int clientPort = requestPacket.getPort();
-                System.out.println("Client address: " + clientAddress + ", Client port: " + clientPort);
-
-                // Split the received data and check if it is a DOWNLOAD request
-                String[] requestParts = receivedData.split(" ", 2);
-                if (requestParts[0].equals("DOWNLOAD")) {
-                    // Get the file name
-                    String fileName = requestParts[1].trim();
-                    File file = new File(fileName);
-                    String response;
-                    
-                    // Check if the file exists
-                    if (file.exists() && file.isFile()) {
-                        // Get the file size and generate a randonm port for the client handler
-                        long fileSize = file.length();
-                        int clientHandlerPort = selectRandomPort();
-
-                        // If no ports are available, send an error response
-                        if (clientHandlerPort == -1) {
-                            response = "ERR " + fileName + " NO_PORTS_AVAILABLE";
-                            byte[] responseData = response.getBytes();
-                            DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddress, clientPort);
-                            serverSocket.send(responsePacket);
-                            continue;
-                        }
-
-                        // Send a response back to the client
-                        response = "OK " + fileName + " SIZE " + fileSize + " PORT " + clientHandlerPort;
-                        byte[] responseData = response.getBytes();
-                        DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddress, clientPort);
-                        serverSocket.send(responsePacket);
-
-                        // Start a new thread to handle the client request
-                        ClientHandler clientHandler = new ClientHandler(fileName, clientHandlerPort, clientAddress, clientPort);
-                        clientHandler.start();
-
-                    } else {
-                        // If the file does not exist, send an error response
-                        response = "ERR " + fileName + " NOT_FOUND";
-                        byte[] responseData = response.getBytes();
-                        DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddress, clientPort);
-                        serverSocket.send(responsePacket);
+                // A request that fails, such as one naming a path the file system cannot represent, is answered with an
+                // error and the server carries on with the next one
+                try {
+                    handleRequest(serverSocket, requestPacket);
+                } catch (IOException | RuntimeException e) {
+                    Log.warn("Error handling request from " + requestPacket.getAddress() + ":" + requestPacket.getPort() + ": " + e.getMessage());
+                    byte[] errorData = requestError(new String(requestPacket.getData(), 0, requestPacket.getLength()));
+                    if (errorData != null) {
+                        serverSocket.send(new DatagramPacket(errorData, errorData.length, requestPacket.getAddress(), requestPacket.getPort()));
                     }
                 }
             }
         }
         catch (IOException e) {
-            System.out.println("IO Exception in server: " + e.getMessage());
+            Log.error("IO Exception in server: " + e.getMessage());
         }
         catch (Exception e) {
-            System.out.println("Unexpected server error: " + e.getMessage());
+            Log.error("Unexpected server error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handles a single request received on the server port
+     * Answers STATS and METRICS, and a DOWNLOAD or BATCH request with an OK after starting a ClientHandler for the session,
+     * or with an ERR if the file is not found or no port is free. A BATCH request is listed and answered on the batch pool.
+     *
+     * @param serverSocket The server socket to send the response on
+     * @param requestPacket The received request
+     */
+    private static void handleRequest(DatagramSocket serverSocket, DatagramPacket requestPacket) throws IOException {
+        // Process the received request
+        String receivedData = new String(requestPacket.getData(), 0, requestPacket.getLength());
+        Log.debug(() -> "Received request: " + receivedData);
+
+        // Get the client address and port from the request packet
+        InetAddress clientAddress = requestPacket.getAddress();
+        int clientPort = requestPacket.getPort();
+        Log.debug(() -> "Client address: " + clientAddress + ", Client port: " + clientPort);
+
+        // Answer a STATS request with the shared chunk cache counters, and METRICS with every server metric
+        if (receivedData.trim().equals("STATS")) {
+            byte[] statsData = ("STATS " + chunkCache.stats()).getBytes();
+            serverSocket.send(new DatagramPacket(statsData, statsData.length, clientAddress, clientPort));
+            return;
+        }
+        if (receivedData.trim().equals("METRICS")) {
+            byte[] metricsData = metrics.report().getBytes();
+            serverSocket.send(new DatagramPacket(metricsData, metricsData.length, clientAddress, clientPort));
+            return;
+        }
+
+        // Split the received data and check if it is a DOWNLOAD or a BATCH request
+        String[] requestParts = receivedData.split(" ", 2);
+        if (isBatchRequest(receivedData)) {
+            // A batch is listed on the batch pool, as walking its directories could hold up every other request,
+            // and served under the name built from its manifest
+            DownloadRequest request = DownloadRequest.parseBatch(receivedData);
+            batchPool.execute(() -> {
+                try {
+                    BatchReader batch;
+                    try {
+                        batch = BatchReader.open(request.getBatchNames());
+                    } catch (IOException e) {
+                        Log.warn("Could not list batch: " + e.getMessage());
+                        byte[] responseData = ("ERR " + BATCH_REQUEST + " READ_ERROR").getBytes();
+                        serverSocket.send(new DatagramPacket(responseData, responseData.length, clientAddress, clientPort));
+                        return;
+                    }
+                    startSession(serverSocket, request.forBatch(batch.getFileName()), batch, clientAddress, clientPort);
+                } catch (IOException | RuntimeException e) {
+                    Log.warn("Error handling request from " + clientAddress + ":" + clientPort + ": " + e.getMessage());
+                    byte[] errorData = requestError(receivedData);
+                    try {
+                        serverSocket.send(new DatagramPacket(errorData, errorData.length, clientAddress, clientPort));
+                    } catch (IOException sendError) {
+                        Log.warn("Could not send the error to " + clientAddress + ":" + clientPort + ": " + sendError.getMessage());
+                    }
+                }
+            });
+        } else if (requestParts[0].equals("DOWNLOAD") && requestParts.length == 2) {
+            // Get the file name, whether the client asked for binary framing of the data path and its chunk size
+            DownloadRequest request = DownloadRequest.parse(requestParts[1]);
+            File file = new File(request.fileName);
+
+            // Check if the file exists
+            if (file.exists() && file.isFile()) {
+                startSession(serverSocket, request, null, clientAddress, clientPort);
+            } else {
+                // If the file does not exist, send an error response
+                byte[] responseData = ("ERR " + request.fileName + " NOT_FOUND").getBytes();
+                DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddress, clientPort);
+                serverSocket.send(responsePacket);
+            }
+        }
+    }
+
+    /**
+     * Binds a client handler's socket for a file or batch that was found, answers the request with an OK and starts
+     * the ClientHandler for the session, or answers with an ERR if no port is free
+     *
+     * @param serverSocket The server socket to send the response on
+     * @param request The request, named after the batch for a batch
+     * @param batch The listed batch to serve, or null to serve the requested file
+     * @param clientAddress The address the request came from
+     * @param clientPort The port the request came from
+     */
+    private static void startSession(DatagramSocket serverSocket, DownloadRequest request, BatchReader batch,
+                                     InetAddress clientAddress, int clientPort) throws IOException {
+        String fileName = request.fileName;
+        boolean binary = request.binary;
+        String response;
+
+        // Get the file size and bind the client handler's socket to a free port before telling the client about it
+        File file = new File(fileName);
+        long fileSize = batch != null ? batch.getFileSize() : file.length();
+        long lastModified = batch != null ? batch.getLastModified() : file.lastModified();
+        DatagramSocket handlerSocket = openHandlerSocket();
+
+        // If no ports are available, send an error response
+        if (handlerSocket == null) {
+            if (batch != null) {
+                batch.close();
+            }
+            response = "ERR " + fileName + " NO_PORTS_AVAILABLE";
+            byte[] responseData = response.getBytes();
+            DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddress, clientPort);
+            serverSocket.send(responsePacket);
+            return;
+        }
+
+        // Send a response back to the client, with the last-modified time if asked for, so a resumed download can detect a changed file,
+        // and a session id for the binary data path if it was requested
+        int sessionId = rand.nextInt(Integer.MAX_VALUE);
+        int chunkSize = negotiateChunkSize(request);
+        response = "OK " + fileName + " SIZE " + fileSize + " PORT " + handlerSocket.getLocalPort();
+        if (request.mtime) {
+            response += MTIME_OPTION + " " + lastModified;
+        }
+        if (batch != null) {
+            response += MANIFEST_FIELD + batch.getManifestSize();
+        }
+        if (request.chunkSize > 0) {
+            response += CHUNK_OPTION + chunkSize;
+        }
+        // The whole-file CRC32C is computed while the file downloads, the client asks for it at the end
+        CompletableFuture<FileDigestCache.Digest> digest = !request.checksum ? null
+                : batch != null ? fileDigests.request(batch, segmentSize(chunkSize)) : fileDigests.request(fileName, segmentSize(chunkSize));
+        if (digest != null) {
+            response += CHECKSUM_OPTION;
+        }
+        if (request.compress) {
+            response += COMPRESS_OPTION;
+        }
+        if (binary) {
+            response += BINARY_MODE_SUFFIX + " SESSION " + sessionId;
+        }
+        byte[] responseData = response.getBytes();
+        DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddress, clientPort);
+        serverSocket.send(responsePacket);
+
+        // Start a new thread to handle the client request
+        ClientHandler clientHandler = new ClientHandler(fileName, batch, handlerSocket, clientAddress, clientPort, sessionId, chunkSize,
+                digest, request.compress ? new ChunkCompressor() : null);
+        clientHandler.start();
+    }
+
+    /**
+     * @return The pool listing BATCH requests, on daemon threads so it never keeps the server running
+     */
+    private static ExecutorService newBatchPool() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(BATCH_LISTING_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "batch-lister-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Takes a free port between CLIENT_MIN_PORT and CLIENT_MAX_PORT and binds a socket to it for a client handler
+     * A port another program has bound is put back at the end of the pool and the next free port is tried.
+     * @return The bound socket, or null if no port is free or none of the ports tried could be bound
+     */
+    private static DatagramSocket openHandlerSocket() {
+        for (int attempt = 0; attempt < MAX_BIND_ATTEMPTS; attempt++) {
+            int port = portAllocator.acquire();
+            if (port == -1) {
+                Log.warn("No available ports left");
+                return null;
+            }
+            metrics.portAcquired();
+            try {
+                return new DatagramSocket(port);
+            } catch (SocketException e) {
+                Log.warn("Could not bind port " + port + ": " + e.getMessage());
+                releasePort(port);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Agrees the chunk size of a session: the size the client asked for, limited to the server's maximum
+     * and to what fits in a single datagram once framed for the session's data protocol.
+     * Sessions that did not ask keep the original sizes, a 1400 byte binary chunk or any text chunk that fits.
+     * A session with checksums gives up the room its checksum takes in every response.
+     * Compression never makes a chunk longer, but a compressed text chunk is marked by a longer keyword than DATA.
+     *
+     * @param request The DOWNLOAD request of the session
+     * @return The largest number of file bytes served in one response of the session
+     */
+    static int negotiateChunkSize(DownloadRequest request) {
+        // Base64 turns every 3 bytes into 4, after a header with the longest possible offsets
+        String textChecksum = request.checksum ? " CRC " + formatChecksum(-1) : "";
+        String textKeyword = request.compress ? " DEFLATE " : " DATA ";
+        int textHeaderSize = ("FILE " + request.fileName + " OK START " + Long.MAX_VALUE + " END " + Long.MAX_VALUE + textChecksum + textKeyword).getBytes().length;
+        int datagramLimit = request.binary ? MAX_DATAGRAM_SIZE - dataHeaderSize(request.checksum) : (MAX_DATAGRAM_SIZE - textHeaderSize) / 4 * 3;
+        int limit = Math.max(1, Math.min(maxChunkSize, datagramLimit));
+        if (request.chunkSize > 0) {
+            return Math.min(request.chunkSize, limit);
+        }
+        return request.binary ? Math.min(DEFAULT_BINARY_CHUNK_SIZE, limit) : limit;
+    }
+
+    /**
+     * Wraps the reader of a new session so the chunks it is about to ask for are loaded ahead of its requests
+     *
+     * @param reader The open file or batch the session serves
+     * @return The session's reader, which reads straight from the given one if read-ahead is off
+     */
+    static ReadAheadReader readAhead(ChunkReader reader) {
+        return new ReadAheadReader(reader, readAheadPool, readAhead, readAheadBudget);
+    }
+
+    /**
+     * Reads a chunk into the target buffer from the shared chunk cache,
+     * or straight from the file if the cache is disabled or the chunk has not been asked for before
+     *
+     * @param reader The open file to read from
+     * @param startByte The offset of the chunk
+     * @param target The buffer to read into, as many bytes as it has remaining are read
+     * @return The number of bytes read, fewer than requested at the end of the file
+     */
+    static int readChunk(ChunkReader reader, long startByte, ByteBuffer target) throws IOException {
+        if (!chunkCache.isEnabled()) {
+            return reader.read(startByte, target);
+        }
+        return chunkCache.readRaw(reader, startByte, target);
+    }
+
+    /**
+     * @return The size of the header before the payload of a binary DATA packet, with or without the checksum
+     */
+    static int dataHeaderSize(boolean checksum) {
+        return checksum ? BINARY_HEADER_SIZE + CHECKSUM_SIZE : BINARY_HEADER_SIZE;
+    }
+
+    /**
+     * @return The session id field of a binary packet, read from the buffer's start
+     */
+    static int packetSessionId(ByteBuffer packet) {
+        return packet.getInt(1);
+    }
+
+    /**
+     * @return The offset field of a binary GET or DATA packet, read from the buffer's start
+     */
+    static long packetOffset(ByteBuffer packet) {
+        return packet.getLong(5);
+    }
+
+    /**
+     * @return The length field of a binary GET or DATA packet, read from the buffer's start
+     */
+    static int packetLength(ByteBuffer packet) {
+        return packet.getInt(13);
+    }
+
+    /**
+     * @return The first segment field of a binary SEGMENTS packet, read from the buffer's start
+     */
+    static int packetFirstSegment(ByteBuffer packet) {
+        return packet.getInt(5);
+    }
+
+    /**
+     * @return The number of bytes of the file in a chunk, fewer than its length at the end of the file
+     */
+    static int chunkLength(ChunkReader reader, long startByte, int length) {
+        return (int) Math.min(length, Math.max(0, reader.getFileSize() - startByte));
+    }
+
+    /**
+     * Builds the binary DATA packet for a chunk in the response buffer
+     * The chunk is read straight into the packet after the header. For a session with compression it is
+     * compressed into the packet instead and sent as DATA_DEFLATE, unless it is not worth compressing.
+     *
+     * @param reader The open file to read from
+     * @param startByte The offset of the chunk
+     * @param length The length of the chunk, already limited to the session's chunk size
+     * @param sessionId The id of the session
+     * @param checksum A reused CRC32C if the session negotiated checksums, null otherwise
+     * @param compressor The session's compressor if it negotiated compression, null otherwise
+     * @param scratch A reused buffer at least as large as the chunk, to read it into before compressing it
+     * @param response The reused buffer to build the packet in, with room for the header and the chunk
+     * @return The packet, flipped ready to send
+     */
+    static ByteBuffer buildDataPacket(ChunkReader reader, long startByte, int length, int sessionId, CRC32C checksum,
+                                      ChunkCompressor compressor, ByteBuffer scratch, ByteBuffer response) throws IOException {
+        int headerSize = dataHeaderSize(checksum != null);
+        response.clear().position(headerSize).limit(headerSize + length);
+        byte opcode = OP_DATA;
+        int bytesRead;
+        if (compressor == null) {
+            bytesRead = readChunk(reader, startByte, response);
+        } else if (chunkCache.isEnabled()) {
+            bytesRead = chunkLength(reader, startByte, length);
+            byte[] chunk = chunkCache.getDeflated(reader, startByte, length, compressor);
+            opcode = chunk.length < bytesRead ? OP_DATA_DEFLATE : OP_DATA;
+            response.put(chunk);
+        } else {
+            scratch.clear().limit(length);
+            bytesRead = reader.read(startByte, scratch);
+            scratch.flip();
+            if (compressor.compress(scratch, response) >= 0) {
+                opcode = OP_DATA_DEFLATE;
+            } else {
+                response.put(scratch);
+            }
+        }
+        if (opcode == OP_DATA_DEFLATE) {
+            metrics.chunkCompressed(bytesRead, response.position() - headerSize);
+        }
+        return finishDataPacket(response, opcode, sessionId, startByte, bytesRead, checksum);
+    }
+
+    /**
+     * Fills in the header of a binary DATA packet whose payload has been put in after the header
+     * With checksums, the CRC32C of the payload as sent followed by the 17 bytes of the header before it
+     * goes between the length field and the payload.
+     *
+     * @param response The packet, positioned after the payload, left flipped ready to send
+     * @param opcode DATA, or DATA_DEFLATE if the payload is compressed
+     * @param sessionId The id of the session
+     * @param startByte The offset of the chunk in the file
+     * @param chunkLength The length of the chunk in the file, which is also the payload's length unless it is compressed
+     * @param checksum A reused CRC32C if the session negotiated checksums, null otherwise
+     * @return The packet
+     */
+    static ByteBuffer finishDataPacket(ByteBuffer response, byte opcode, int sessionId, long startByte, int chunkLength, CRC32C checksum) {
+        response.put(0, opcode)
+                .putInt(1, sessionId)
+                .putLong(5, startByte)
+                .putInt(13, chunkLength);
+        if (checksum != null) {
+            int end = response.position();
+            checksum.reset();
+            checksum.update(response.limit(end).position(BINARY_HEADER_SIZE + CHECKSUM_SIZE));
+            checksum.update(response.limit(BINARY_HEADER_SIZE).position(0));
+            response.limit(end).position(end);
+            response.putInt(BINARY_HEADER_SIZE, (int) checksum.getValue());
+        }
+        return response.flip();
+    }
+
+    /**
+     * Builds the reply to a DIGEST request, with the whole-file CRC32C if it has been computed
+     * A binary reply is a DIGEST_OK packet, a text one is FILE <name> DIGEST_OK READY <hex>, or PENDING or FAILED without a CRC32C.
+     *
+     * @param digest The session's digest, null if the session did not negotiate checksums
+     * @param binary True for a binary DIGEST_OK packet, false for a text response
+     * @param sessionId The id of the session
+     * @param fileName The name the session is served under
+     * @return The reply message bytes
+     */
+    static byte[] buildDigestReply(CompletableFuture<FileDigestCache.Digest> digest, boolean binary, int sessionId, String fileName) {
+        byte status = digestStatus(digest);
+        int crc = status == DIGEST_READY ? digest.join().getCrc() : 0;
+        if (binary) {
+            return ByteBuffer.allocate(BINARY_DIGEST_OK_SIZE).put(OP_DIGEST_OK).putInt(sessionId).put(status).putInt(crc).array();
+        }
+        String result = status == DIGEST_READY ? "READY " + formatChecksum(crc) : status == DIGEST_PENDING ? "PENDING" : "FAILED";
+        return ("FILE " + fileName + " DIGEST_OK " + result).getBytes();
+    }
+
+    /**
+     * Builds the reply to a SEGMENTS request, with the CRC32C of up to SEGMENTS_PER_REPLY segments from the first one asked for
+     * A binary reply is a SEGMENTS_OK packet, a text one is FILE <name> SEGMENTS_OK READY <segment size> <first> followed by
+     * a <hex> CRC32C for each segment, or PENDING or FAILED alone. A first segment past the last one gets no CRC32C values.
+     *
+     * @param digest The session's digest, null if the session did not negotiate checksums
+     * @param binary True for a binary SEGMENTS_OK packet, false for a text response
+     * @param sessionId The id of the session
+     * @param fileName The name the session is served under
+     * @param firstSegment The index of the first segment asked for
+     * @return The reply message bytes
+     */
+    static byte[] buildSegmentsReply(CompletableFuture<FileDigestCache.Digest> digest, boolean binary, int sessionId, String fileName,
+                                     int firstSegment) {
+        byte status = firstSegment < 0 ? DIGEST_FAILED : digestStatus(digest);
+        FileDigestCache.Digest segments = status == DIGEST_READY ? digest.join() : null;
+        int segmentSize = segments != null ? segments.getSegmentSize() : 0;
+        int endSegment = segments != null ? Math.max(firstSegment, Math.min(segments.getSegmentCount(), firstSegment + SEGMENTS_PER_REPLY)) : firstSegment;
+        if (binary) {
+            ByteBuffer reply = ByteBuffer.allocate(BINARY_SEGMENTS_OK_HEADER_SIZE + (endSegment - firstSegment) * CHECKSUM_SIZE)
+                    .put(OP_SEGMENTS_OK).putInt(sessionId).put(status).putInt(segmentSize).putInt(firstSegment);
+            for (int segment = firstSegment; segment < endSegment; segment++) {
+                reply.putInt(segments.getSegmentCrc(segment));
+            }
+            return reply.array();
+        }
+        if (status != DIGEST_READY) {
+            return ("FILE " + fileName + " SEGMENTS_OK " + (status == DIGEST_PENDING ? "PENDING" : "FAILED")).getBytes();
+        }
+        StringBuilder reply = new StringBuilder("FILE " + fileName + " SEGMENTS_OK READY " + segmentSize + " " + firstSegment);
+        for (int segment = firstSegment; segment < endSegment; segment++) {
+            reply.append(' ').append(formatChecksum(segments.getSegmentCrc(segment)));
+        }
+        return reply.toString().getBytes();
+    }
+
+    /**
+     * @return Whether a session's digest is ready, still being computed, or failed or was never asked for
+     */
+    private static byte digestStatus(CompletableFuture<FileDigestCache.Digest> digest) {
+        return digest == null || digest.isCompletedExceptionally() ? DIGEST_FAILED : digest.isDone() ? DIGEST_READY : DIGEST_PENDING;
+    }
+
+    /**
+     * @return The segment size of the whole-file digest of a session, the largest whole number of its chunks within SEGMENT_SIZE, at least one chunk
+     */
+    static int segmentSize(int chunkSize) {
+        return chunkSize * Math.max(1, SEGMENT_SIZE / chunkSize);
+    }
+
+    /**
+     * Builds the error response to a request that failed while it was being served
+     * A DOWNLOAD request is answered ERR <name> READ_ERROR and a BATCH request ERR BATCH READ_ERROR, like a batch that cannot be listed.
+     * Other requests are for a session or the server's counters, and get no response.
+     *
+     * @param request The request message
+     * @return The response message bytes, or null if the request gets no response
+     */
+    static byte[] requestError(String request) {
+        if (isBatchRequest(request)) {
+            return ("ERR " + BATCH_REQUEST + " READ_ERROR").getBytes();
+        }
+        if (request.startsWith("DOWNLOAD ")) {
+            return ("ERR " + DownloadRequest.parse(request.substring("DOWNLOAD ".length())).fileName + " READ_ERROR").getBytes();
         }
+        return null;
     }
 
     /**
-     * Selects a random port between CLIENT_MIN_PORT and CLIENT_MAX_PORT that is not in use
-     * If all ports have been used, returns -1.
-     * @return A random unused port number or -1 if all ports have been used
+     * @return True if a request is a BATCH request, its first line naming no file
      */
-    private static int selectRandomPort() {
-        if (availablePorts.isEmpty()) {
-            System.out.println("No available ports left");
-            return -1;
+    static boolean isBatchRequest(String request) {
+        return request.startsWith(BATCH_REQUEST + " ") || request.startsWith(BATCH_REQUEST + "\n");
+    }
+
+    /**
+     * @return A CRC32C as the 8 hex digits sent in text messages
+     */
+    static String formatChecksum(int crc) {
+        // Built for every text chunk, so padded by hand rather than with String.format
+        String hex = Integer.toHexString(crc);
+        return "00000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * Builds a text FILE OK response carrying a chunk encoded in Base64
+     * The encoded chunk is taken from the shared chunk cache when it is enabled, so a hit skips the encoding
+     * With checksums, a CRC32C is sent before the data, of the chunk as sent before Base64 followed by the response without the
+     * CRC field and the data, FILE <name> OK START <s> END <e> DATA with its trailing space, so damaged offsets are caught as well.
+     * With compression, a chunk worth compressing is compressed before Base64 and marked DEFLATE instead of DATA.
+     *
+     * @param reader The open file to read from
+     * @param startByte The offset of the first byte of the chunk
+     * @param endByte The offset of the last byte of the chunk
+     * @param chunkSize The chunk size of the session, larger ranges are refused
+     * @param crc The reused CRC32C of the chunk if the session negotiated checksums, null otherwise
+     * @param compressor The session's compressor if it negotiated compression, null otherwise
+     * @param readBuffer A reused buffer to read the chunk into when the cache is disabled
+     * @return The response message bytes
+     * @throws IOException If the range is empty or larger than the chunk size, or the file cannot be read
+     */
+    static byte[] buildTextChunkResponse(ChunkReader reader, long startByte, long endByte, int chunkSize, CRC32C crc,
+                                         ChunkCompressor compressor, ByteBuffer readBuffer) throws IOException {
+        if (startByte < 0 || endByte < startByte || endByte - startByte + 1 > chunkSize) {
+            throw new IOException("Requested range " + startByte + " to " + endByte + " does not fit the chunk size " + chunkSize);
+        }
+        int length = (int) (endByte - startByte + 1);
+        byte[] base64Data;
+        if (crc != null) {
+            crc.reset();
         }
-        int port = availablePorts.remove(rand.nextInt(availablePorts.size()));
-        usedPorts.add(port);
-        return port;
+        boolean compressed = false;
+        if (compressor != null) {
+            // Only the compression is cached, the compressed chunk is encoded for every response
+            int bytesRead = chunkLength(reader, startByte, length);
+            byte[] chunk;
+            if (chunkCache.isEnabled()) {
+                chunk = chunkCache.getDeflated(reader, startByte, length, compressor);
+            } else {
+                chunk = new byte[bytesRead];
+                reader.read(startByte, ByteBuffer.wrap(chunk));
+                chunk = compressor.compress(chunk);
+            }
+            compressed = chunk.length < bytesRead;
+            if (compressed) {
+                metrics.chunkCompressed(bytesRead, chunk.length);
+            }
+            if (crc != null) {
+                crc.update(chunk);
+            }
+            base64Data = Base64.getEncoder().encode(chunk);
+        } else if (chunkCache.isEnabled()) {
+            base64Data = chunkCache.getBase64(reader, startByte, length);
+            if (crc != null) {
+                crc.update(chunkCache.getRaw(reader, startByte, length));
+            }
+        } else {
+            ByteBuffer chunk = length > readBuffer.capacity() ? ByteBuffer.allocate(length) : readBuffer;
+            chunk.clear().limit(length);
+            reader.read(startByte, chunk);
+            chunk.flip();
+            if (crc != null) {
+                crc.update(chunk);
+                chunk.rewind();
+            }
+            base64Data = Base64.getEncoder().encode(chunk).array();
+        }
+
+        String range = "FILE " + reader.getFileName() + " OK START " + startByte + " END " + endByte;
+        String keyword = compressed ? " DEFLATE " : " DATA ";
+        if (crc != null) {
+            crc.update((range + keyword).getBytes());
+        }
+        String crcField = crc != null ? " CRC " + formatChecksum((int) crc.getValue()) : "";
+        byte[] header = (range + crcField + keyword).getBytes();
+        byte[] response = Arrays.copyOf(header, header.length + base64Data.length);
+        System.arraycopy(base64Data, 0, response, header.length, base64Data.length);
+        return response;
     }
 
     /**
-     * Releases a port that was previously used by selectRandomPort
+     * Releases a port that was previously taken by openHandlerSocket
      * @param port The port number to release
      */
-    private static synchronized void releasePort(int port) {
-        if (usedPorts.remove(port)) {
-            availablePorts.add(port);
+    private static void releasePort(int port) {
+        if (portAllocator.release(port)) {
+            metrics.portReleased();
         }
     }
 
     /**
      * ClientHandler class to handle a single file download request from a client
      * Runs in a new thread and listens for requests on a specific port
+     * If the client stops sending requests, the SessionReaper closes the socket to end the thread and free the port
      */
-    static class ClientHandler extends Thread {
+    static class ClientHandler extends Thread implements SessionReaper.IdleSession {
         private final String fileName;
+        // The batch the session serves, opened before the OK was sent, null to open the file on the handler's thread
+        private final ChunkReader batch;
         private final InetAddress clientAddress;
         private final int clientHandlerPort;
         private final int clientPort;
+        private final int sessionId;
+        private final int chunkSize;
+        private final boolean checksum;
+        // The CRC32C of the whole file and its segments being computed for the client to ask for, null if the session did not negotiate checksums
+        private final CompletableFuture<FileDigestCache.Digest> digest;
+        // Compresses the session's chunks, null if the session did not negotiate compression
+        private final ChunkCompressor compressor;
+        private final DatagramSocket socket;
+        private volatile long lastActivity;
+        private volatile boolean reaped;
 
-        public ClientHandler(String fileName, int clientHandlerPort, InetAddress clientAddress, int clientPort) {
+        public ClientHandler(String fileName, ChunkReader batch, DatagramSocket socket, InetAddress clientAddress, int clientPort,
+                             int sessionId, int chunkSize, CompletableFuture<FileDigestCache.Digest> digest, ChunkCompressor compressor) {
             this.fileName = fileName;
-            this.clientHandlerPort = clientHandlerPort;
+            this.batch = batch;
+            this.socket = socket;
+            this.clientHandlerPort = socket.getLocalPort();
             this.clientAddress = clientAddress;
             this.clientPort = clientPort;
+            this.sessionId = sessionId;
+            this.chunkSize = chunkSize;
+            this.checksum = digest != null;
+            this.digest = digest;
+            this.compressor = compressor;
         }
         
         /**
          * Handles a single file download request from a client
          * Listens for requests on a specific port and sends the requested file data
          * If the client requests a file chunk, reads the chunk from the file and sends it back encoded in Base64
+         * If the client sends a binary GET packet, sends the chunk back as raw bytes in a binary DATA packet
+         * If the client asks for the digest of the file, sends the whole-file CRC32C once it has been computed,
+         * and the CRC32C of its segments if the client asks for those
          * If the client requests to close the connection, sends a confirmation response and releases the port
+         * A binary CLOSE packet is confirmed with a binary CLOSE_OK packet
          */
         @Override
         public void run() {
-            // Start a new DatagramSocket on the client handler port
-            try (DatagramSocket socket = new DatagramSocket(clientHandlerPort)) {
-                System.out.println("ClientHandler started for file: " + fileName + " on port: " + clientHandlerPort + "\nFor Client: " + clientAddress + ":" + clientPort);
+            // Listen on the socket bound to the client handler port and keep the file open for the whole session
+            long sessionStart = metrics.sessionStarted();
+            // The read-ahead is closed first, so no chunk is still being loaded when the file closes
+            try (DatagramSocket socket = this.socket;
+                 ChunkReader file = batch != null ? batch : new ChunkReader(fileName, mmapThreshold);
+                 ChunkReader reader = readAhead(file)) {
+                Log.info("ClientHandler started for file: " + fileName + " on port: " + clientHandlerPort + "\nFor Client: " + clientAddress + ":" + clientPort);
+                lastActivity = System.nanoTime();
+                reaper.register(this);
                 byte[] buffer = new byte[2048];
+                boolean binaryClose = false;
+                // Response buffers are reused for every chunk, the binary one is sized to the session's chunk size
+                ByteBuffer binaryResponse = ByteBuffer.allocate(dataHeaderSize(checksum) + chunkSize);
+                CRC32C payloadChecksum = checksum ? new CRC32C() : null;
+                // Chunks are read here before they are compressed into the response
+                ByteBuffer compressInput = compressor != null && !chunkCache.isEnabled() ? ByteBuffer.allocate(chunkSize) : null;
+                ByteBuffer textChunk = ByteBuffer.allocate(2048);
                 
                 // Continuously listen for requests from the client
                 while (true) {
                     // Create a DatagramPacket and receive a request
                     DatagramPacket requestPacket = new DatagramPacket(buffer, buffer.length);
                     socket.receive(requestPacket);
+                    long receivedTime = System.nanoTime();
+                    lastActivity = receivedTime;
+
+                    // Binary GET packets are served without building any strings
+                    if (requestPacket.getLength() == BINARY_HEADER_SIZE && buffer[0] == OP_GET) {
+                        sendBinaryChunk(socket, reader, ByteBuffer.wrap(buffer, 0, BINARY_HEADER_SIZE), binaryResponse, payloadChecksum,
+                                compressInput, receivedTime);
+                        continue;
+                    }
+                    if (requestPacket.getLength() == BINARY_CLOSE_SIZE && buffer[0] == OP_CLOSE &&
+                            packetSessionId(ByteBuffer.wrap(buffer)) == sessionId) {
+                        binaryClose = true;
+                        break;
+                    }
+                    if (requestPacket.getLength() == BINARY_CLOSE_SIZE && buffer[0] == OP_DIGEST &&
+                            packetSessionId(ByteBuffer.wrap(buffer)) == sessionId) {
+                        byte[] digestReply = buildDigestReply(digest, true, sessionId, fileName);
+                        socket.send(new DatagramPacket(digestReply, digestReply.length, clientAddress, clientPort));
+                        continue;
+                    }
+                    if (requestPacket.getLength() == BINARY_SEGMENTS_SIZE && buffer[0] == OP_SEGMENTS &&
+                            packetSessionId(ByteBuffer.wrap(buffer)) == sessionId) {
+                        byte[] segmentsReply = buildSegmentsReply(digest, true, sessionId, fileName, packetFirstSegment(ByteBuffer.wrap(buffer)));
+                        socket.send(new DatagramPacket(segmentsReply, segmentsReply.length, clientAddress, clientPort));
+                        continue;
+                    }
                     
-                    // Process the received request
+                    // Process the received request, a text request for this session's file
                     String requestData = new String(requestPacket.getData(), 0, requestPacket.getLength());
-                    String[] requestParts = requestData.split(" ");
-                    System.out.println("ClientHandler (" + this.fileName + ") received from " + this.clientAddress.getHostAddress() + ":" + this.clientPort + " -> \"" + requestData + "\"");
-
-                    // Check if the request fits the expected format for file chunk requests
-                    if (requestParts.length == 7 && requestParts[0].equals("FILE") && 
-                        requestParts[1].equals(fileName) && requestParts[2].equals("GET") && 
-                        requestParts[3].equals("START") && requestParts[5].equals("END")) {
-                        
-                        long startByte;
-                        long endByte;
-
-                        // Parse the start and end byte positions from the request
-                        try {
-                            startByte = Long.parseLong(requestParts[4]);
-                            endByte = Long.parseLong(requestParts[6]);
-
-                            // Read the requested chunk from the file
-                            try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
-                                file.seek(startByte);
-                                int bytesToRead = (int)(endByte - startByte + 1);
-                                byte[] fileChunk = new byte[bytesToRead];
-                                int bytesRead = file.read(fileChunk);
-                                System.out.println("Read " + bytesRead + " bytes from file: " + fileName);
-
-                                // Encode the chunk of data in Base64
-                                String base64String = Base64.getEncoder().encodeToString(fileChunk);
-
-                                // Send the chunk of data back to the client
-                                String responseData = "FILE " + fileName + " OK START " + startByte + " END " + endByte + " DATA " + base64String;
-                                byte[] responseBytes = responseData.getBytes();
-                                DatagramPacket responsePacket = new DatagramPacket(responseBytes, responseBytes.length, clientAddress, clientPort);
-                                socket.send(responsePacket);
-                            } catch (Exception e) {
-                                System.out.println("Error reading file: " + e.getMessage());
-                            }
-                        } catch (NumberFormatException e) {
-                            System.out.println("Error parsing start and end bytes: " + e.getMessage());
-                        }                        
+                    Log.debug(() -> "ClientHandler (" + this.fileName + ") received from " + this.clientAddress.getHostAddress() + ":" + this.clientPort + " -> \"" + requestData + "\"");
+                    TextRequest textRequest = TextRequest.parse(requestData);
+                    if (textRequest == null || !textRequest.fileName.equals(fileName)) {
+                        continue;
                     }
                     // Check if the request is to close the file connection
-                    else if (requestParts.length == 3 && requestParts[0].equals("FILE") && 
-                        requestParts[1].equals(fileName) && requestParts[2].equals("CLOSE")){
+                    if (textRequest.isClose()) {
                         break;
                     }
+                    if (textRequest.isDigest()) {
+                        byte[] digestReply = buildDigestReply(digest, false, sessionId, fileName);
+                        socket.send(new DatagramPacket(digestReply, digestReply.length, clientAddress, clientPort));
+                        continue;
+                    }
+                    if (textRequest.isSegments()) {
+                        byte[] segmentsReply = buildSegmentsReply(digest, false, sessionId, fileName, textRequest.getFirstSegment());
+                        socket.send(new DatagramPacket(segmentsReply, segmentsReply.length, clientAddress, clientPort));
+                        continue;
+                    }
+
+                    // The text buffer grows to the largest range requested, which the chunk size bounds
+                    long startByte = textRequest.startByte;
+                    long endByte = textRequest.endByte;
+                    long length = endByte - startByte + 1;
+                    if (length > textChunk.capacity() && length <= chunkSize) {
+                        textChunk = ByteBuffer.allocate((int) length);
+                    }
+
+                    // Read the requested chunk from the open file and encode it in Base64
+                    try {
+                        byte[] responseBytes = buildTextChunkResponse(reader, startByte, endByte, chunkSize, payloadChecksum, compressor, textChunk);
+                        Log.debug(() -> "Read " + length + " bytes from file: " + fileName);
+
+                        // Send the chunk of data back to the client
+                        DatagramPacket responsePacket = new DatagramPacket(responseBytes, responseBytes.length, clientAddress, clientPort);
+                        socket.send(responsePacket);
+                        metrics.chunkServed((int) length, receivedTime);
+                    } catch (Exception e) {
+                        Log.warn("Error reading file: " + e.getMessage());
+                    }
                 }
                 // If the request is to close the file connection send a confirmation response
-                String closeResponse = "FILE " + fileName + " CLOSE_OK";
-                byte[] closeResponseBytes = closeResponse.getBytes();
+                byte[] closeResponseBytes = binaryClose
+                        ? ByteBuffer.allocate(BINARY_CLOSE_SIZE).put(OP_CLOSE_OK).putInt(sessionId).array()
+                        : ("FILE " + fileName + " CLOSE_OK").getBytes();
                 DatagramPacket closeResponsePacket = new DatagramPacket(closeResponseBytes, closeResponseBytes.length, clientAddress, clientPort);
                 socket.send(closeResponsePacket);
             } catch (Exception e) {
-                System.out.println("Error sending file data: " + e.getMessage());
+                // Reaping closes the socket under the blocked receive, which is how a reaped session ends
+                if (!reaped) {
+                    Log.error("Error sending file data: " + e.getMessage());
+                }
             } finally {
-                System.out.println("ClientHandler for file: " + fileName + " on port: " + clientHandlerPort + " finished");
+                reaper.unregister(this);
+                Log.info("ClientHandler for file: " + fileName + " on port: " + clientHandlerPort + " finished");
                 // Release the port after finishing the client handler
                 releasePort(clientHandlerPort);
+                metrics.sessionFinished(sessionStart);
             }
         }
+
+        @Override
+        public long getLastActivity() {
+            return lastActivity;
+        }
+
+        /**
+         * Closes the session's socket, so the blocked receive throws and the thread ends and releases the port
+         */
+        @Override
+        public void reap() {
+            reaped = true;
+            socket.close();
+        }
+
+        @Override
+        public String describe() {
+            return "ClientHandler for file: " + fileName + " on port: " + clientHandlerPort;
+        }
+
+        /**
+         * Serves a binary GET request by reading the requested range straight into the
+         * response packet after the DATA header and sending it back as raw bytes
+         *
+         * @param socket The socket to send the response on
+         * @param reader The open file of this session
+         * @param request The GET packet, starting at its opcode
+         * @param response The reused buffer to build the DATA packet in
+         * @param payloadChecksum The reused CRC32C of the payload if the session negotiated checksums, null otherwise
+         * @param compressInput The reused buffer to read a chunk into before compressing it, null if it is not needed
+         * @param receivedTime The System.nanoTime at which the request was received
+         */
+        private void sendBinaryChunk(DatagramSocket socket, ChunkReader reader, ByteBuffer request, ByteBuffer response,
+                                     CRC32C payloadChecksum, ByteBuffer compressInput, long receivedTime) {
+            int requestSessionId = packetSessionId(request);
+            long startByte = packetOffset(request);
+            int length = packetLength(request);
+            if (requestSessionId != sessionId || startByte < 0 || length <= 0) {
+                Log.warn("ClientHandler (" + this.fileName + ") ignored invalid binary request");
+                return;
+            }
+
+            try {
+                // Never read past the end of the file or beyond the session's chunk size
+                buildDataPacket(reader, startByte, Math.min(length, chunkSize), sessionId, payloadChecksum, compressor, compressInput, response);
+                int bytesRead = packetLength(response);
+                Log.debug(() -> "Read " + bytesRead + " bytes from file: " + fileName);
+
+                DatagramPacket responsePacket = new DatagramPacket(response.array(), response.limit(), clientAddress, clientPort);
+                socket.send(responsePacket);
+                metrics.chunkServed(bytesRead, receivedTime);
+            } catch (Exception e) {
+                Log.warn("Error reading file: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * TextRequest class holding a text FILE GET, FILE DIGEST, FILE SEGMENTS or FILE CLOSE request, sent to a session of the text protocol
+     */
+    static class TextRequest {
+        private final String fileName;
+        // GET, DIGEST, SEGMENTS or CLOSE
+        private final String command;
+        // The first byte of a GET, or the first segment of a SEGMENTS request
+        private final long startByte;
+        private final long endByte;
+
+        public TextRequest(String fileName, String command, long startByte, long endByte) {
+            this.fileName = fileName;
+            this.command = command;
+            this.startByte = startByte;
+            this.endByte = endByte;
+        }
+
+        /**
+         * Parses a FILE <name> GET START <s> END <e>, FILE <name> DIGEST, FILE <name> SEGMENTS <first> or FILE <name> CLOSE request
+         *
+         * @param requestData The request message
+         * @return The parsed request, or null if it is none of them or its offsets are not numbers
+         */
+        public static TextRequest parse(String requestData) {
+            String[] requestParts = requestData.split(" ");
+            if (requestParts.length == 7 && requestParts[0].equals("FILE") && requestParts[2].equals("GET") &&
+                    requestParts[3].equals("START") && requestParts[5].equals("END")) {
+                // Parse the start and end byte positions from the request
+                try {
+                    return new TextRequest(requestParts[1], "GET", Long.parseLong(requestParts[4]), Long.parseLong(requestParts[6]));
+                } catch (NumberFormatException e) {
+                    Log.warn("Error parsing start and end bytes: " + e.getMessage());
+                    return null;
+                }
+            }
+            if (requestParts.length == 3 && requestParts[0].equals("FILE") && (requestParts[2].equals("CLOSE") || requestParts[2].equals("DIGEST"))) {
+                return new TextRequest(requestParts[1], requestParts[2], -1, -1);
+            }
+            if (requestParts.length == 4 && requestParts[0].equals("FILE") && requestParts[2].equals("SEGMENTS")) {
+                try {
+                    return new TextRequest(requestParts[1], "SEGMENTS", Integer.parseInt(requestParts[3]), -1);
+                } catch (NumberFormatException e) {
+                    Log.warn("Error parsing first segment: " + e.getMessage());
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return The name of the file the request is for
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * @return True for a FILE CLOSE request
+         */
+        public boolean isClose() {
+            return command.equals("CLOSE");
+        }
+
+        /**
+         * @return True for a FILE DIGEST request
+         */
+        public boolean isDigest() {
+            return command.equals("DIGEST");
+        }
+
+        /**
+         * @return True for a FILE SEGMENTS request
+         */
+        public boolean isSegments() {
+            return command.equals("SEGMENTS");
+        }
+
+        /**
+         * @return The index of the first segment asked for by a SEGMENTS request
+         */
+        public int getFirstSegment() {
+            return (int) startByte;
+        }
+
+        /**
+         * @return The offset of the first byte requested by a GET request
+         */
+        public long getStartByte() {
+            return startByte;
+        }
+
+        /**
+         * @return The offset of the last byte requested by a GET request
+         */
+        public long getEndByte() {
+            return endByte;
+        }
+    }
+
+    /**
+     * DownloadRequest class holding the parts of a DOWNLOAD or BATCH request
+     * The file name may be followed by MTIME to ask for the last-modified time, by CHUNK <bytes> to negotiate the chunk size, then by CHECKSUM CRC32C
+     * to ask for checksums, by COMPRESS DEFLATE to ask for compression and then by MODE BINARY
+     * A BATCH request takes the same options on its first line, followed by one file or directory name per line
+     */
+    static class DownloadRequest {
+        private final String fileName;
+        private final boolean binary;
+        // The chunk size the client asked for, -1 if it did not ask
+        private final int chunkSize;
+        private final boolean checksum;
+        private final boolean compress;
+        private final boolean mtime;
+        // The names listed in a BATCH request, null for a DOWNLOAD request
+        private final List<String> batchNames;
+
+        public DownloadRequest(String fileName, boolean binary, int chunkSize, boolean checksum, boolean compress, boolean mtime) {
+            this(fileName, binary, chunkSize, checksum, compress, mtime, null);
+        }
+
+        public DownloadRequest(String fileName, boolean binary, int chunkSize, boolean checksum, boolean compress, boolean mtime,
+                               List<String> batchNames) {
+            this.fileName = fileName;
+            this.binary = binary;
+            this.chunkSize = chunkSize;
+            this.checksum = checksum;
+            this.compress = compress;
+            this.mtime = mtime;
+            this.batchNames = batchNames;
+        }
+
+        /**
+         * Parses the text that follows DOWNLOAD in a request
+         * An unparseable chunk size is left as part of the file name, so the request fails as NOT_FOUND
+         *
+         * @param request The file name and options of the request
+         * @return The parsed request
+         */
+        public static DownloadRequest parse(String request) {
+            String fileName = request.trim();
+            boolean binary = fileName.endsWith(BINARY_MODE_SUFFIX);
+            if (binary) {
+                fileName = fileName.substring(0, fileName.length() - BINARY_MODE_SUFFIX.length()).trim();
+            }
+            boolean compress = fileName.endsWith(COMPRESS_OPTION);
+            if (compress) {
+                fileName = fileName.substring(0, fileName.length() - COMPRESS_OPTION.length()).trim();
+            }
+            boolean checksum = fileName.endsWith(CHECKSUM_OPTION);
+            if (checksum) {
+                fileName = fileName.substring(0, fileName.length() - CHECKSUM_OPTION.length()).trim();
+            }
+            int chunkSize = -1;
+            int chunkOption = fileName.lastIndexOf(CHUNK_OPTION);
+            if (chunkOption > 0) {
+                try {
+                    chunkSize = Integer.parseInt(fileName.substring(chunkOption + CHUNK_OPTION.length()));
+                    fileName = fileName.substring(0, chunkOption);
+                } catch (NumberFormatException e) {
+                    chunkSize = -1;
+                }
+            }
+            boolean mtime = fileName.endsWith(MTIME_OPTION);
+            if (mtime) {
+                fileName = fileName.substring(0, fileName.length() - MTIME_OPTION.length()).trim();
+            }
+            return new DownloadRequest(fileName, binary, chunkSize, checksum, compress, mtime);
+        }
+
+        /**
+         * Parses a whole BATCH request, the options on its first line and the names on the lines after it
+         * The batch has no file name until its BatchReader has been opened and named, see forBatch.
+         *
+         * @param request The request message, starting with BATCH
+         * @return The request
+         */
+        public static DownloadRequest parseBatch(String request) {
+            String[] lines = request.split("\n");
+            // The options are parsed as if they followed a file name, which is then left as BATCH
+            DownloadRequest options = parse(lines[0]);
+            List<String> names = new ArrayList<>();
+            for (int i = 1; i < lines.length; i++) {
+                if (!lines[i].isEmpty()) {
+                    names.add(lines[i]);
+                }
+            }
+            return new DownloadRequest(null, options.binary, options.chunkSize, options.checksum, options.compress, options.mtime, names);
+        }
+
+        /**
+         * @param batchName The name the batch's stream is served under
+         * @return This batch request with the name of its stream as the file name, as the rest of the session uses it
+         */
+        public DownloadRequest forBatch(String batchName) {
+            return new DownloadRequest(batchName, binary, chunkSize, checksum, compress, mtime, batchNames);
+        }
+
+        /**
+         * @return The name of the requested file
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * @return True if the client asked for binary framing of the data path
+         */
+        public boolean isBinary() {
+            return binary;
+        }
+
+        /**
+         * @return The file and directory names listed in a BATCH request, null for a DOWNLOAD request
+         */
+        public List<String> getBatchNames() {
+            return batchNames;
+        }
+
+        /**
+         * @return The chunk size the client asked for, -1 if it did not ask
+         */
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        /**
+         * @return True if the client asked for a whole-file CRC32C and the CRC32C of every chunk
+         */
+        public boolean isChecksum() {
+            return checksum;
+        }
+
+        /**
+         * @return True if the client asked for chunks worth compressing to be sent compressed
+         */
+        public boolean isCompress() {
+            return compress;
+        }
+
+        /**
+         * @return True if the client asked for the file's last-modified time
+         */
+        public boolean isMtime() {
+            return mtime;
+        }
     }
 }
\ No newline at end of file
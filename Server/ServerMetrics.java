@@ -0,0 +1,325 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * ServerMetrics class counting the work done by every session on the server
+ * Tracks active sessions, sessions reaped after going idle, ports taken from the client handler pool, bytes and chunks served,
+ * chunks sent compressed, chunks found in and loaded by the read-ahead, how long each request took to serve and how long each session lasted.
+ * The counters are shared by every thread serving requests and only use atomic additions.
+ * Bytes and chunks per second are sampled once a second by a daemon thread.
+ * The metrics are published as a JMX MBean and as text for the METRICS request on the server port.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    static final String OBJECT_NAME = "udp.server:type=ServerMetrics";
+
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final LongAdder sessionsStarted = new LongAdder();
+    private final LongAdder sessionsReaped = new LongAdder();
+    private final AtomicInteger portsInUse = new AtomicInteger();
+    private final LongAdder bytesServed = new LongAdder();
+    private final LongAdder chunksServed = new LongAdder();
+    private final LongAdder compressedChunks = new LongAdder();
+    private final LongAdder compressionBytesIn = new LongAdder();
+    private final LongAdder compressionBytesOut = new LongAdder();
+    private final LongAdder readAheadHits = new LongAdder();
+    private final LongAdder readAheadWaits = new LongAdder();
+    private final LongAdder readAheadMisses = new LongAdder();
+    private final LongAdder readAheadLoaded = new LongAdder();
+    private final LongAdder readAheadWasted = new LongAdder();
+    // Request latencies in microseconds and session durations in milliseconds
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LatencyHistogram sessionDuration = new LatencyHistogram();
+    private volatile int portPoolSize;
+    private volatile double bytesPerSecond;
+    private volatile double chunksPerSecond;
+
+    // The totals at the previous sample, only touched by the sampling thread
+    private long sampledBytes;
+    private long sampledChunks;
+    private long sampledAt = System.nanoTime();
+
+    /**
+     * Starts sampling the per second rates and registers the metrics with the platform MBean server
+     *
+     * @param portPoolSize The number of ports client handlers can be given, 0 if sessions share the server port
+     */
+    public void start(int portPoolSize) {
+        this.portPoolSize = portPoolSize;
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sampleRates, 1, 1, TimeUnit.SECONDS);
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            Log.warn("Could not register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records the start of a session
+     *
+     * @return The start time to pass to sessionFinished
+     */
+    public long sessionStarted() {
+        sessionsStarted.increment();
+        activeSessions.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the end of a session
+     *
+     * @param startTime The time returned by sessionStarted
+     */
+    public void sessionFinished(long startTime) {
+        activeSessions.decrementAndGet();
+        sessionDuration.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+    }
+
+    /**
+     * Records a session ended by the idle timeout, which still calls sessionFinished as it ends
+     */
+    public void sessionReaped() {
+        sessionsReaped.increment();
+    }
+
+    /**
+     * Records a port taken from the client handler pool
+     */
+    public void portAcquired() {
+        portsInUse.incrementAndGet();
+    }
+
+    /**
+     * Records a port returned to the client handler pool
+     */
+    public void portReleased() {
+        portsInUse.decrementAndGet();
+    }
+
+    /**
+     * Records a chunk that has been sent
+     *
+     * @param bytes The number of file bytes in the chunk
+     * @param receivedTime The System.nanoTime at which its request was received
+     */
+    public void chunkServed(int bytes, long receivedTime) {
+        bytesServed.add(bytes);
+        chunksServed.increment();
+        requestLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - receivedTime));
+    }
+
+    /**
+     * Records a chunk that is sent compressed, before chunkServed records it as sent
+     *
+     * @param bytes The number of file bytes in the chunk
+     * @param compressedBytes The number of bytes they were compressed to
+     */
+    public void chunkCompressed(int bytes, int compressedBytes) {
+        compressedChunks.increment();
+        compressionBytesIn.add(bytes);
+        compressionBytesOut.add(compressedBytes);
+    }
+
+    /**
+     * Records a read served from the chunks a session's read-ahead had loaded
+     *
+     * @param waited True if the read had to wait for its chunk to finish loading
+     */
+    public void readAheadHit(boolean waited) {
+        readAheadHits.increment();
+        if (waited) {
+            readAheadWaits.increment();
+        }
+    }
+
+    /**
+     * Records a read of a session with read-ahead that had to read its chunk from the file
+     */
+    public void readAheadMissed() {
+        readAheadMisses.increment();
+    }
+
+    /**
+     * Records a chunk loaded by a session's read-ahead
+     */
+    public void readAheadLoaded() {
+        readAheadLoaded.increment();
+    }
+
+    /**
+     * Records a chunk loaded by a session's read-ahead that was never read
+     */
+    public void readAheadWasted() {
+        readAheadWasted.increment();
+    }
+
+    /**
+     * Updates the per second rates from the change in totals since the previous sample
+     */
+    private void sampleRates() {
+        long now = System.nanoTime();
+        long bytes = bytesServed.sum();
+        long chunks = chunksServed.sum();
+        double seconds = (now - sampledAt) / 1e9;
+        bytesPerSecond = (bytes - sampledBytes) / seconds;
+        chunksPerSecond = (chunks - sampledChunks) / seconds;
+        sampledBytes = bytes;
+        sampledChunks = chunks;
+        sampledAt = now;
+    }
+
+    /**
+     * @return The metrics as lines of text, for the METRICS request
+     */
+    public String report() {
+        return "METRICS\n" +
+                "SESSIONS ACTIVE " + getActiveSessions() + " STARTED " + getSessionsStarted() + " REAPED " + getSessionsReaped() + "\n" +
+                "PORTS IN_USE " + getPortsInUse() + " POOL " + getPortPoolSize() + "\n" +
+                "SERVED BYTES " + getBytesServed() + " CHUNKS " + getChunksServed() + "\n" +
+                "COMPRESSION CHUNKS " + getCompressedChunks() + " BYTES_IN " + getCompressionBytesIn()
+                + " BYTES_OUT " + getCompressionBytesOut() + "\n" +
+                "READ_AHEAD HITS " + getReadAheadHits() + " WAITS " + getReadAheadWaits() + " MISSES " + getReadAheadMisses()
+                + " LOADED " + getReadAheadLoaded() + " WASTED " + getReadAheadWasted()
+                + " BYTES " + Server.readAheadBudget.getReserved() + " BUDGET " + Server.readAheadBudget.getBudget() + "\n" +
+                String.format("RATE BYTES_PER_SECOND %.0f CHUNKS_PER_SECOND %.0f%n", getBytesPerSecond(), getChunksPerSecond()) +
+                "REQUEST_LATENCY " + requestLatency.summary("us") + "\n" +
+                "SESSION_DURATION " + sessionDuration.summary("ms") + "\n" +
+                Server.chunkCache.stats();
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    @Override
+    public long getSessionsStarted() {
+        return sessionsStarted.sum();
+    }
+
+    @Override
+    public long getSessionsReaped() {
+        return sessionsReaped.sum();
+    }
+
+    @Override
+    public int getPortsInUse() {
+        return portsInUse.get();
+    }
+
+    @Override
+    public int getPortPoolSize() {
+        return portPoolSize;
+    }
+
+    @Override
+    public long getBytesServed() {
+        return bytesServed.sum();
+    }
+
+    @Override
+    public long getChunksServed() {
+        return chunksServed.sum();
+    }
+
+    @Override
+    public long getCompressedChunks() {
+        return compressedChunks.sum();
+    }
+
+    @Override
+    public long getCompressionBytesIn() {
+        return compressionBytesIn.sum();
+    }
+
+    @Override
+    public long getCompressionBytesOut() {
+        return compressionBytesOut.sum();
+    }
+
+    @Override
+    public long getReadAheadHits() {
+        return readAheadHits.sum();
+    }
+
+    @Override
+    public long getReadAheadWaits() {
+        return readAheadWaits.sum();
+    }
+
+    @Override
+    public long getReadAheadMisses() {
+        return readAheadMisses.sum();
+    }
+
+    @Override
+    public long getReadAheadLoaded() {
+        return readAheadLoaded.sum();
+    }
+
+    @Override
+    public long getReadAheadWasted() {
+        return readAheadWasted.sum();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public double getChunksPerSecond() {
+        return chunksPerSecond;
+    }
+
+    @Override
+    public double getRequestLatencyMeanMicros() {
+        return requestLatency.getMean();
+    }
+
+    @Override
+    public long getRequestLatencyP50Micros() {
+        return requestLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getRequestLatencyP99Micros() {
+        return requestLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getRequestLatencyMaxMicros() {
+        return requestLatency.getMax();
+    }
+
+    @Override
+    public double getSessionDurationMeanMillis() {
+        return sessionDuration.getMean();
+    }
+
+    @Override
+    public long getSessionDurationP50Millis() {
+        return sessionDuration.getPercentile(50);
+    }
+
+    @Override
+    public long getSessionDurationP99Millis() {
+        return sessionDuration.getPercentile(99);
+    }
+
+    @Override
+    public long getSessionDurationMaxMillis() {
+        return sessionDuration.getMax();
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Management interface of ServerMetrics, the attributes shown by JMX clients such as JConsole
+ */
+public interface ServerMetricsMBean {
+
+    /**
+     * @return The number of sessions that have started and not yet finished
+     */
+    int getActiveSessions();
+
+    /**
+     * @return The number of sessions started since the server started
+     */
+    long getSessionsStarted();
+
+    /**
+     * @return The number of sessions ended by the idle timeout instead of a CLOSE
+     */
+    long getSessionsReaped();
+
+    /**
+     * @return The number of ports taken from the client handler pool
+     */
+    int getPortsInUse();
+
+    /**
+     * @return The number of ports in the client handler pool, 0 if sessions share the server port
+     */
+    int getPortPoolSize();
+
+    /**
+     * @return The number of file bytes sent in chunks
+     */
+    long getBytesServed();
+
+    /**
+     * @return The number of chunks sent
+     */
+    long getChunksServed();
+
+    /**
+     * @return The number of chunks sent compressed
+     */
+    long getCompressedChunks();
+
+    /**
+     * @return The number of file bytes in the chunks sent compressed
+     */
+    long getCompressionBytesIn();
+
+    /**
+     * @return The number of bytes those chunks were compressed to
+     */
+    long getCompressionBytesOut();
+
+    /**
+     * @return The number of reads served from chunks loaded by the read-ahead
+     */
+    long getReadAheadHits();
+
+    /**
+     * @return The number of those reads that waited for their chunk to finish loading
+     */
+    long getReadAheadWaits();
+
+    /**
+     * @return The number of reads of sessions with read-ahead that read their chunk from the file
+     */
+    long getReadAheadMisses();
+
+    /**
+     * @return The number of chunks loaded by the read-ahead
+     */
+    long getReadAheadLoaded();
+
+    /**
+     * @return The number of chunks loaded by the read-ahead that were never read
+     */
+    long getReadAheadWasted();
+
+    /**
+     * @return The file bytes sent in chunks during the last second
+     */
+    double getBytesPerSecond();
+
+    /**
+     * @return The chunks sent during the last second
+     */
+    double getChunksPerSecond();
+
+    /**
+     * @return The mean time in microseconds from receiving a chunk request to sending its chunk
+     */
+    double getRequestLatencyMeanMicros();
+
+    /**
+     * @return The median time in microseconds to serve a chunk request
+     */
+    long getRequestLatencyP50Micros();
+
+    /**
+     * @return The 99th percentile time in microseconds to serve a chunk request
+     */
+    long getRequestLatencyP99Micros();
+
+    /**
+     * @return The longest time in microseconds taken to serve a chunk request
+     */
+    long getRequestLatencyMaxMicros();
+
+    /**
+     * @return The mean duration in milliseconds of finished sessions
+     */
+    double getSessionDurationMeanMillis();
+
+    /**
+     * @return The median duration in milliseconds of finished sessions
+     */
+    long getSessionDurationP50Millis();
+
+    /**
+     * @return The 99th percentile duration in milliseconds of finished sessions
+     */
+    long getSessionDurationP99Millis();
+
+    /**
+     * @return The longest duration in milliseconds of a finished session
+     */
+    long getSessionDurationMaxMillis();
+}
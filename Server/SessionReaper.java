@@ -0,0 +1,111 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SessionReaper class ending sessions whose client has stopped sending requests
+ * A session that never receives its CLOSE, because the client crashed or every CLOSE was lost,
+ * would otherwise keep its thread, socket, open file and port forever.
+ * Sessions register while they are open, and a daemon thread checks them a few times per idle timeout.
+ * Any session that has received nothing for longer than the idle timeout is reaped.
+ */
+public class SessionReaper {
+    // Sessions are checked at least this often and at most this rarely, whatever the idle timeout
+    private static final long MIN_CHECK_INTERVAL = 100;
+    private static final long MAX_CHECK_INTERVAL = 10_000;
+
+    /**
+     * A session the reaper can end once it has been idle for too long
+     */
+    interface IdleSession {
+        /**
+         * @return The System.nanoTime at which the session last received a request
+         */
+        long getLastActivity();
+
+        /**
+         * Ends the session and frees everything it holds, called at most once
+         */
+        void reap();
+
+        /**
+         * @return A description of the session for the log
+         */
+        String describe();
+    }
+
+    private final long idleTimeoutMillis;
+    private final Set<IdleSession> sessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param idleTimeoutMillis How long a session may go without receiving a request, 0 to never reap sessions
+     */
+    public SessionReaper(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Starts checking the registered sessions, unless reaping is disabled
+     */
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        long checkInterval = Math.min(MAX_CHECK_INTERVAL, Math.max(MIN_CHECK_INTERVAL, idleTimeoutMillis / 4));
+        ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(this::reapIdleSessions, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return True if idle sessions are reaped
+     */
+    public boolean isEnabled() {
+        return idleTimeoutMillis > 0;
+    }
+
+    /**
+     * Starts watching a session, which should have just received its first request or been opened
+     *
+     * @param session The session to watch
+     */
+    public void register(IdleSession session) {
+        if (isEnabled()) {
+            sessions.add(session);
+        }
+    }
+
+    /**
+     * Stops watching a session that has ended by itself
+     *
+     * @param session The session to stop watching
+     */
+    public void unregister(IdleSession session) {
+        sessions.remove(session);
+    }
+
+    /**
+     * Reaps every registered session that has been idle for longer than the idle timeout
+     * A session is removed before it is reaped, so a session ending at the same time is never reaped twice.
+     */
+    private void reapIdleSessions() {
+        long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        long now = System.nanoTime();
+        for (IdleSession session : sessions) {
+            if (now - session.getLastActivity() > idleTimeoutNanos && sessions.remove(session)) {
+                try {
+                    session.reap();
+                    Server.metrics.sessionReaped();
+                    Log.info("Reaped " + session.describe() + " after " + idleTimeoutMillis + " ms without a request");
+                } catch (RuntimeException e) {
+                    Log.error("Error reaping " + session.describe() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+}
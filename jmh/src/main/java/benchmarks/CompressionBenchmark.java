@@ -0,0 +1,142 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the CPU cost of compressing and inflating one chunk, on text that compresses and random bytes that do not
+ * Compressing a chunk is measured with a new ChunkCompressor, which always tries, and with one kept across calls
+ * as a session keeps it, which stops trying after a run of chunks that do not compress.
+ * Divide the time per chunk by chunkSize for the CPU cost per byte.
+ * Each call moves on to the next chunk of a 4 MB buffer, so the chunks are not all the same.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final int CONTENT_SIZE = 4 * 1024 * 1024;
+
+    private static final MethodHandle NEW_CHUNK_COMPRESSOR = DefaultPackage.constructor("ChunkCompressor");
+    private static final MethodHandle COMPRESS = DefaultPackage.method("ChunkCompressor", "compress", ByteBuffer.class, ByteBuffer.class);
+    private static final MethodHandle NEW_CHUNK_INFLATER = DefaultPackage.constructor("ChunkInflater", int.class);
+    private static final MethodHandle INFLATE = DefaultPackage.method("ChunkInflater", "inflate", ByteBuffer.class, int.class);
+
+    @Param({"1400", "8192", "65490"})
+    public int chunkSize;
+
+    @Param({"text", "random"})
+    public String content;
+
+    private ByteBuffer chunks;
+    private ByteBuffer target;
+    private Object sessionCompressor;
+    private Object inflater;
+    // Every chunk of the content deflated on its own, as inflate receives them
+    private ByteBuffer[] deflatedChunks;
+    private int chunk;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        byte[] bytes = new byte[CONTENT_SIZE];
+        if (content.equals("text")) {
+            fillWithText(bytes, new Random(42));
+        } else {
+            new Random(42).nextBytes(bytes);
+        }
+        chunks = ByteBuffer.allocateDirect(CONTENT_SIZE).put(bytes).flip();
+        target = ByteBuffer.allocateDirect(chunkSize);
+        sessionCompressor = NEW_CHUNK_COMPRESSOR.invoke();
+        inflater = NEW_CHUNK_INFLATER.invoke(chunkSize);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflatedChunks = new ByteBuffer[CONTENT_SIZE / chunkSize];
+        byte[] output = new byte[chunkSize * 2];
+        for (int i = 0; i < deflatedChunks.length; i++) {
+            deflater.reset();
+            deflater.setInput(bytes, i * chunkSize, chunkSize);
+            deflater.finish();
+            int length = deflater.deflate(output);
+            deflatedChunks[i] = ByteBuffer.allocateDirect(length).put(output, 0, length).flip();
+        }
+        deflater.end();
+    }
+
+    /**
+     * Fills the content with lines of words drawn from a small vocabulary, compressing about as well as source code or logs
+     */
+    private static void fillWithText(byte[] bytes, Random random) {
+        String[] words = {"the", "server", "session", "chunk", "request", "response", "file", "client", "offset", "length",
+                "DOWNLOAD", "OK", "SIZE", "PORT", "return", "private", "static", "final", "int", "long", "ByteBuffer"};
+        StringBuilder text = new StringBuilder(bytes.length + 64);
+        while (text.length() < bytes.length) {
+            text.append(words[random.nextInt(words.length)]);
+            text.append(random.nextInt(12) == 0 ? '\n' : ' ');
+            if (random.nextInt(20) == 0) {
+                text.append(random.nextInt(1_000_000));
+            }
+        }
+        System.arraycopy(text.toString().getBytes(StandardCharsets.US_ASCII), 0, bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return The index of the next chunk, wrapping around before the end of the content
+     */
+    private int nextChunk() {
+        chunk = chunk + 1 < deflatedChunks.length ? chunk + 1 : 0;
+        return chunk;
+    }
+
+    /**
+     * ChunkCompressor.compress on a new compressor, the cost of a chunk the server tries to compress
+     */
+    @Benchmark
+    public int compressChunk() throws Throwable {
+        return compress(NEW_CHUNK_COMPRESSOR.invoke());
+    }
+
+    /**
+     * ChunkCompressor.compress on a compressor kept across chunks, the steady cost per chunk of a session
+     */
+    @Benchmark
+    public int compressSessionChunk() throws Throwable {
+        return compress(sessionCompressor);
+    }
+
+    /**
+     * Compresses the next chunk into the reused target buffer
+     */
+    private int compress(Object compressor) throws Throwable {
+        int start = nextChunk() * chunkSize;
+        chunks.limit(start + chunkSize).position(start);
+        return (int) COMPRESS.invoke(compressor, chunks, target.clear());
+    }
+
+    /**
+     * ChunkInflater.inflate of a deflated chunk, the client's cost for every compressed chunk it receives
+     */
+    @Benchmark
+    public ByteBuffer inflateChunk() throws Throwable {
+        ByteBuffer deflated = deflatedChunks[nextChunk()];
+        return (ByteBuffer) INFLATE.invoke(inflater, deflated.clear(), chunkSize);
+    }
+}
@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Reaches the Client and Server classes from the benchmarks
+ * They live in the default package, which cannot be imported from a named package and which JMH does not accept
+ * benchmarks in, so their methods are looked up once by name and called through MethodHandles.
+ * Held in static final fields, the handles are inlined by the JIT like direct calls.
+ */
+final class DefaultPackage {
+
+    private DefaultPackage() {
+    }
+
+    /**
+     * @param className The name of a class in the default package, nested classes as Outer$Inner
+     * @return The class
+     */
+    static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Class " + className + " is not on the classpath", e);
+        }
+    }
+
+    /**
+     * Looks up a method, including package-private and private ones
+     * The handle takes the instance as its first argument for instance methods
+     *
+     * @param className The name of the class declaring the method
+     * @param name The name of the method
+     * @param parameterTypes The parameter types of the method
+     * @return A handle to the method
+     */
+    static MethodHandle method(String className, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = type(className).getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Method " + className + "." + name + " not found", e);
+        }
+    }
+
+    /**
+     * Looks up a constructor, including package-private and private ones
+     *
+     * @param className The name of the class
+     * @param parameterTypes The parameter types of the constructor
+     * @return A handle to the constructor
+     */
+    static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+        try {
+            Constructor<?> constructor = type(className).getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Constructor of " + className + " not found", e);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks a whole download over loopback, from the DOWNLOAD request to the CLOSE_OK
+ * The Server runs in its own process, started once per trial in a temporary directory holding the file.
+ * The Client runs in the benchmark process through Client.main, so each measured download excludes JVM startup.
+ * It writes the file to the benchmark's working directory, where it is deleted before every download and after the trial.
+ * The Client's console output is discarded while the benchmark runs.
+ * Run with -p receivePath=direct,copy -prof gc to compare the allocation rate of the Client's two binary receive paths,
+ * the ChunkChannel's reused direct buffer and the DatagramPacket path of --copy-receive.
+ * Run with -p checksum=true,false to measure what verifying the CRC32C of every chunk and of the whole file costs.
+ * Run with -p compress=false,true to measure what trying to compress every chunk costs over loopback, where bytes are cheap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LoopbackTransferBenchmark {
+    private static final int SERVER_PORT = 50998;
+
+    private static final MethodHandle CLIENT_MAIN = DefaultPackage.method("Client", "main", String[].class);
+
+    @Param({"100000", "1000000", "10000000"})
+    public int fileSize;
+
+    @Param({"binary", "text"})
+    public String protocol;
+
+    @Param({"thread-per-handler", "nio"})
+    public String serverMode;
+
+    @Param({"direct"})
+    public String receivePath;
+
+    @Param({"true"})
+    public boolean checksum;
+
+    @Param({"false"})
+    public boolean compress;
+
+    private Path serverDir;
+    private Path fileList;
+    private Path downloadedFile;
+    private Process server;
+    private PrintStream console;
+    private String[] clientArgs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        String fileName = "jmh-loopback-" + fileSize + ".bin";
+        byte[] content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        serverDir = Files.createTempDirectory("jmh-loopback");
+        Files.write(serverDir.resolve(fileName), content);
+        fileList = Files.write(serverDir.resolve("files.txt"), (fileName + "\n").getBytes());
+        downloadedFile = Paths.get(fileName).toAbsolutePath();
+
+        // Start the Server from the benchmark's own classpath, with the file in its working directory
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Server");
+        command.add(String.valueOf(SERVER_PORT));
+        if (serverMode.equals("nio")) {
+            command.add("--nio");
+            command.add("4");
+        }
+        server = new ProcessBuilder(command).directory(serverDir.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectErrorStream(true)
+                .start();
+        Thread.sleep(1000);
+
+        List<String> clientOptions = new ArrayList<>(List.of("localhost", String.valueOf(SERVER_PORT), fileList.toString()));
+        if (protocol.equals("text")) {
+            clientOptions.add("--text");
+        }
+        if (receivePath.equals("copy")) {
+            clientOptions.add("--copy-receive");
+        }
+        if (!checksum) {
+            clientOptions.add("--no-checksum");
+        }
+        if (compress) {
+            clientOptions.add("--compress");
+        }
+        clientArgs = clientOptions.toArray(new String[0]);
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @Setup(Level.Invocation)
+    public void deleteDownload() throws Exception {
+        Files.deleteIfExists(downloadedFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        System.setOut(console);
+        server.destroy();
+        server.waitFor();
+        Files.deleteIfExists(downloadedFile);
+        Files.deleteIfExists(serverDir.resolve(downloadedFile.getFileName()));
+        Files.deleteIfExists(fileList);
+        Files.deleteIfExists(serverDir);
+    }
+
+    /**
+     * Downloads the file once and checks it arrived whole
+     */
+    @Benchmark
+    public long download() throws Throwable {
+        CLIENT_MAIN.invoke(clientArgs);
+        long size = Files.exists(downloadedFile) ? Files.size(downloadedFile) : -1;
+        if (size != fileSize) {
+            throw new IllegalStateException("Downloaded " + size + " of " + fileSize + " bytes");
+        }
+        return size;
+    }
+}
@@ -0,0 +1,134 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks parsing the protocol messages on both sides, text against binary
+ * The Server side parses FILE GET requests with Server.TextRequest.parse, binary GET headers with the
+ * Server's packet field readers, and DOWNLOAD requests with Server.DownloadRequest.parse.
+ * The Client side parses FILE OK responses, decoding their Base64 data, with Client.ChunkResponse.parseText,
+ * and binary DATA headers with Client.ChunkResponse.parseBinary.
+ * These are the methods both server modes and the Client parse every message with, called here through MethodHandles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolCodecBenchmark {
+    private static final String FILE_NAME = "benchmark.bin";
+    private static final int BINARY_HEADER_SIZE = 17;
+
+    private static final MethodHandle PARSE_TEXT_REQUEST = DefaultPackage.method("Server$TextRequest", "parse", String.class);
+    private static final MethodHandle PACKET_SESSION_ID = DefaultPackage.method("Server", "packetSessionId", ByteBuffer.class);
+    private static final MethodHandle PACKET_OFFSET = DefaultPackage.method("Server", "packetOffset", ByteBuffer.class);
+    private static final MethodHandle PACKET_LENGTH = DefaultPackage.method("Server", "packetLength", ByteBuffer.class);
+    private static final MethodHandle PARSE_DOWNLOAD_REQUEST = DefaultPackage.method("Server$DownloadRequest", "parse", String.class);
+    private static final MethodHandle PARSE_TEXT_RESPONSE = DefaultPackage.method("Client$ChunkResponse", "parseText",
+            String.class, boolean.class, boolean.class);
+    private static final MethodHandle PARSE_BINARY_RESPONSE = DefaultPackage.method("Client$ChunkResponse", "parseBinary",
+            ByteBuffer.class, boolean.class, boolean.class);
+
+    @Param({"1000", "1400", "8192"})
+    public int chunkSize;
+
+    private byte[] textGetRequest;
+    private byte[] binaryGetRequest;
+    private String downloadRequest;
+    private byte[] textChunkResponse;
+    private byte[] binaryChunkResponse;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        byte[] chunk = new byte[chunkSize];
+        new Random(42).nextBytes(chunk);
+        long startByte = 1_234L * chunkSize;
+        long endByte = startByte + chunkSize - 1;
+
+        textGetRequest = ("FILE " + FILE_NAME + " GET START " + startByte + " END " + endByte).getBytes();
+        binaryGetRequest = ByteBuffer.allocate(BINARY_HEADER_SIZE).put((byte) 1).putInt(42).putLong(startByte).putInt(chunkSize).array();
+        downloadRequest = FILE_NAME + " MTIME CHUNK " + chunkSize + " CHECKSUM CRC32C MODE BINARY";
+
+        byte[] header = ("FILE " + FILE_NAME + " OK START " + startByte + " END " + endByte + " DATA ").getBytes();
+        byte[] base64Data = Base64.getEncoder().encode(chunk);
+        textChunkResponse = new byte[header.length + base64Data.length];
+        System.arraycopy(header, 0, textChunkResponse, 0, header.length);
+        System.arraycopy(base64Data, 0, textChunkResponse, header.length, base64Data.length);
+        binaryChunkResponse = ByteBuffer.allocate(BINARY_HEADER_SIZE + chunkSize)
+                .put((byte) 2).putInt(42).putLong(startByte).putInt(chunkSize).put(chunk).array();
+    }
+
+    /**
+     * Server: a text FILE GET request decoded from its datagram and parsed
+     */
+    @Benchmark
+    public Object serverParseTextRequest() throws Throwable {
+        return PARSE_TEXT_REQUEST.invoke(new String(textGetRequest, 0, textGetRequest.length));
+    }
+
+    /**
+     * Server: the fields of a binary GET header
+     */
+    @Benchmark
+    public long serverParseBinaryRequest() throws Throwable {
+        ByteBuffer request = ByteBuffer.wrap(binaryGetRequest, 0, BINARY_HEADER_SIZE);
+        if (binaryGetRequest[0] != 1) {
+            return -1;
+        }
+        int sessionId = (int) PACKET_SESSION_ID.invoke(request);
+        long startByte = (long) PACKET_OFFSET.invoke(request);
+        int length = (int) PACKET_LENGTH.invoke(request);
+        return sessionId + startByte + length;
+    }
+
+    /**
+     * Server: a DOWNLOAD request with the last-modified time, a chunk size, checksums and binary framing
+     */
+    @Benchmark
+    public Object serverParseDownloadRequest() throws Throwable {
+        return PARSE_DOWNLOAD_REQUEST.invoke(downloadRequest);
+    }
+
+    /**
+     * Client: a text FILE OK response decoded from its datagram, parsed and its data decoded
+     */
+    @Benchmark
+    public Object clientParseTextResponse() throws Throwable {
+        return PARSE_TEXT_RESPONSE.invoke(new String(textChunkResponse, 0, textChunkResponse.length), false, false);
+    }
+
+    /**
+     * Client: only the Base64 decode of a text response's data
+     */
+    @Benchmark
+    public byte[] clientBase64Decode() {
+        return Base64.getDecoder().decode(ByteBuffer.wrap(textChunkResponse, textChunkResponse.length - (chunkSize + 2) / 3 * 4,
+                (chunkSize + 2) / 3 * 4)).array();
+    }
+
+    /**
+     * Client: a binary DATA header parsed, leaving the data in place to be written
+     */
+    @Benchmark
+    public Object clientParseBinaryResponse() throws Throwable {
+        return PARSE_BINARY_RESPONSE.invoke(ByteBuffer.wrap(binaryChunkResponse, 0, binaryChunkResponse.length), false, false);
+    }
+}
@@ -0,0 +1,166 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the steps the Server takes to answer one chunk request
+ * Covers reading a chunk from an open file, with positional reads or a memory mapping,
+ * building a binary DATA packet, Base64 encoding a chunk and building a whole text FILE OK response,
+ * each response with and without the CRC32C of its chunk that sessions negotiating checksums get.
+ * Each call moves on to the next chunk of a 16 MB file, so the reads are not all served from the same cache lines.
+ * The shared chunk cache is left disabled, so every call does the work a cache miss does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerDataPathBenchmark {
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+    private static final int BINARY_HEADER_SIZE = 17;
+    private static final int CHECKSUM_SIZE = 4;
+
+    private static final Class<?> CHUNK_READER = DefaultPackage.type("ChunkReader");
+    private static final MethodHandle NEW_CHUNK_READER = DefaultPackage.constructor("ChunkReader", String.class, long.class);
+    private static final MethodHandle READ = DefaultPackage.method("ChunkReader", "read", long.class, ByteBuffer.class);
+    private static final MethodHandle CLOSE = DefaultPackage.method("ChunkReader", "close");
+    private static final Class<?> CHUNK_COMPRESSOR = DefaultPackage.type("ChunkCompressor");
+    private static final MethodHandle BUILD_DATA_PACKET = DefaultPackage.method("Server", "buildDataPacket",
+            CHUNK_READER, long.class, int.class, int.class, CRC32C.class, CHUNK_COMPRESSOR, ByteBuffer.class, ByteBuffer.class);
+    private static final MethodHandle BUILD_TEXT_CHUNK_RESPONSE = DefaultPackage.method("Server", "buildTextChunkResponse",
+            CHUNK_READER, long.class, long.class, int.class, CRC32C.class, CHUNK_COMPRESSOR, ByteBuffer.class);
+
+    @Param({"1000", "1400", "8192", "65490"})
+    public int chunkSize;
+
+    @Param({"false", "true"})
+    public boolean mapped;
+
+    private Path file;
+    private Object reader;
+    private ByteBuffer readBuffer;
+    private ByteBuffer binaryResponse;
+    private final CRC32C payloadChecksum = new CRC32C();
+    private byte[] chunk;
+    private long position;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        byte[] content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        file = Files.createTempFile("jmh-data-path", ".bin");
+        Files.write(file, content);
+        // A threshold of 0 maps every file, the largest threshold maps none
+        reader = NEW_CHUNK_READER.invoke(file.toString(), mapped ? 0L : Long.MAX_VALUE);
+        readBuffer = ByteBuffer.allocate(chunkSize);
+        binaryResponse = ByteBuffer.allocate(BINARY_HEADER_SIZE + CHECKSUM_SIZE + chunkSize);
+        chunk = new byte[chunkSize];
+        System.arraycopy(content, 0, chunk, 0, chunkSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        CLOSE.invoke(reader);
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * @return The offset of the next chunk, wrapping around before the end of the file
+     */
+    private long nextPosition() {
+        position += chunkSize;
+        if (position + chunkSize > FILE_SIZE) {
+            position = 0;
+        }
+        return position;
+    }
+
+    /**
+     * ChunkReader.read into a reused heap buffer, the read every request starts with
+     */
+    @Benchmark
+    public int readChunk() throws Throwable {
+        readBuffer.clear();
+        return (int) READ.invoke(reader, nextPosition(), readBuffer);
+    }
+
+    /**
+     * Server.buildDataPacket, the chunk read straight into a DATA packet after its header, as a binary GET is served
+     */
+    @Benchmark
+    public ByteBuffer binaryDataPacket() throws Throwable {
+        return dataPacket(null);
+    }
+
+    /**
+     * The same DATA packet with the CRC32C of its payload, as a session that negotiated checksums is served
+     */
+    @Benchmark
+    public ByteBuffer binaryDataPacketWithChecksum() throws Throwable {
+        return dataPacket(payloadChecksum);
+    }
+
+    /**
+     * Builds the DATA packet of the next chunk, for a session without compression
+     */
+    private ByteBuffer dataPacket(CRC32C checksum) throws Throwable {
+        return (ByteBuffer) BUILD_DATA_PACKET.invoke(reader, nextPosition(), chunkSize, 1, checksum, null, null, binaryResponse);
+    }
+
+    /**
+     * Base64 encoding of one chunk, the largest cost of the text protocol
+     */
+    @Benchmark
+    public byte[] base64Encode() {
+        return Base64.getEncoder().encode(chunk);
+    }
+
+    /**
+     * The FILE OK header String built for every text response
+     */
+    @Benchmark
+    public byte[] textResponseHeader() {
+        long startByte = nextPosition();
+        return ("FILE jmh-data-path.bin OK START " + startByte + " END " + (startByte + chunkSize - 1) + " DATA ").getBytes();
+    }
+
+    /**
+     * Server.buildTextChunkResponse, the read, encode and String building of a whole text response
+     */
+    @Benchmark
+    public byte[] textChunkResponse() throws Throwable {
+        long startByte = nextPosition();
+        return (byte[]) BUILD_TEXT_CHUNK_RESPONSE.invoke(reader, startByte, startByte + chunkSize - 1, Integer.MAX_VALUE, null, null, readBuffer);
+    }
+
+    /**
+     * Server.buildTextChunkResponse with the CRC32C of the chunk in the response
+     */
+    @Benchmark
+    public byte[] textChunkResponseWithChecksum() throws Throwable {
+        long startByte = nextPosition();
+        return (byte[]) BUILD_TEXT_CHUNK_RESPONSE.invoke(reader, startByte, startByte + chunkSize - 1, Integer.MAX_VALUE, payloadChecksum, null, readBuffer);
+    }
+}